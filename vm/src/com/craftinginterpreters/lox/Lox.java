@@ -22,19 +22,64 @@ public class Lox {
 
     public static boolean DEBUG_TRACE_EXECUTION = false;
 
+    public static boolean DEBUG_PRINT_INLINE_CACHES = false;
+
+    // 把热点函数即时编译成 JVM 类
+    public static boolean ENABLE_JIT = true;
+
+    // 编译后把字节码翻译成寄存器指令, 由命令行参数 --register 打开
+    public static boolean REGISTER_VM = false;
+
+    /*
+     * 字节码优化级别, 由命令行参数 -O0 / -O1 / -O2 / -O3 指定
+     * 0: 不做优化, 字节码与源码一一对应; 1: 融合超级指令; 2: 再加上常量折叠和窥孔优化;
+     * 3: 再加上 SSA 上的循环不变量外提、公共子表达式消除和死存储消除, 需要显式打开
+     */
+    public static int OPTIMIZE_LEVEL = 2;
+
+    // -O2 起内联小函数, 被内联函数的字节码最多这么多字节; 由命令行参数 --inline=N 指定, 0 表示不内联
+    public static int INLINE_BUDGET = 32;
+
+    // 编译时打印每个被内联的调用点, 由命令行参数 --print-inlining 打开
+    public static boolean DEBUG_PRINT_INLINING = false;
+
+    // 编译时打印每个函数里被证明操作数都是数字的算术和比较指令所占的比例, 由命令行参数 --print-types 打开
+    public static boolean DEBUG_PRINT_TYPES = false;
+
     public static void main(String[] args) throws IOException {
+        int first = 0;
+        while (first < args.length && args[first].startsWith("-")) {
+            String option = args[first++];
+            if (option.equals("--register")) {
+                REGISTER_VM = true;
+            } else if (option.matches("-O[0-3]")) {
+                OPTIMIZE_LEVEL = option.charAt(2) - '0';
+            } else if (option.matches("--inline=\\d{1,4}")) {
+                INLINE_BUDGET = Integer.parseInt(option.substring("--inline=".length()));
+            } else if (option.equals("--print-inlining")) {
+                DEBUG_PRINT_INLINING = true;
+            } else if (option.equals("--print-types")) {
+                DEBUG_PRINT_TYPES = true;
+            } else {
+                usage();
+            }
+        }
         vm = new Vm();
 
-        if (args.length == 0) {
+        if (args.length == first) {
             repl();
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (args.length == first + 1) {
+            runFile(args[first]);
         } else {
-            System.err.println("Usage: jlox [path]\n");
-            System.exit(64);
+            usage();
         }
     }
 
+    private static void usage() {
+        System.err.println("Usage: jlox [--register] [-O0|-O1|-O2|-O3] [--inline=N] [--print-inlining] [--print-types] [path]\n");
+        System.exit(64);
+    }
+
     private static void repl() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
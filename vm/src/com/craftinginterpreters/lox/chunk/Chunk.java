@@ -1,48 +1,216 @@
 package com.craftinginterpreters.lox.chunk;
 
 import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.objects.ObjFunction;
+import com.craftinginterpreters.lox.objects.ObjString;
 import com.craftinginterpreters.lox.value.Value;
+import com.craftinginterpreters.lox.vm.InlineCache;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
+ * 字节码块
+ * 编译期间作为可增长的缓冲写入, 编译结束后 freeze 成紧凑的 byte[] 和常量数组
+ * 行号按游程编码保存, 只在报错和反汇编时解码
+ * 内联展开的指令在行号的高位记下内联点的编号, 报错时据此还原被内联函数的那一帧
+ *
  * @author hlx
  * @date 2023-08-05
  */
 public class Chunk {
 
-    private final List<Byte> codes;
-    private List<Integer> lines;
-    private List<Value> constants;
+    // 常量下标最多两个字节, 超过一个字节的由 WIDE 前缀的指令引用
+    public static final int CONSTANTS_MAX = 1 << 16;
+
+    // 行号占低位, 其上是内联点编号加一, 为 0 时不是内联展开的指令
+    private static final int LINE_BITS = 20;
+    private static final int LINE_MASK = (1 << LINE_BITS) - 1;
+    public static final int INLINE_SITES_MAX = (1 << (31 - LINE_BITS)) - 1;
+
+    private byte[] codes;
+    private int count;
+
+    private Value[] constants;
+    private int constantCount;
+
+    // 常量去重: 数字按位模式, 字符串按内容
+    private Map<Object, Integer> constantIndexes;
+
+    // 游程编码的行号表, 每两个元素一组: [行号, 该行最后一个字节之后的偏移量]
+    private int[] lines;
+    private int lineCount;
+
+    // 按指令偏移量存放的内联缓存, 运行时第一次执行到该指令才创建
+    private InlineCache[] inlineCaches;
+
+    // 内联点: 被内联的函数和调用所在的行号
+    private ObjFunction[] inlinedFunctions = new ObjFunction[0];
+    private int[] callLines = new int[0];
 
     public Chunk() {
-        codes = new ArrayList<>();
-        lines = new ArrayList<>();
-        constants = new ArrayList<>();
+        codes = new byte[8];
+        constants = new Value[8];
+        lines = new int[8];
+        constantIndexes = new HashMap<>();
     }
 
     public int addConstant(Value value) {
+        Object key = constantKey(value);
+        if (key != null) {
+            Integer index = constantIndexes.get(key);
+            if (index != null) return index;
+        }
+
         Lox.vm.push(value);
-        constants.add(value);
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount++] = value;
         Lox.vm.pop();
-        return constants.size() - 1;
+
+        if (key != null) constantIndexes.put(key, constantCount - 1);
+        return constantCount - 1;
+    }
+
+    private static Object constantKey(Value value) {
+        if (value.isNumber()) return value.getBits();
+        if (value.isString()) return ((ObjString) value.getObj()).getString();
+        return null;
     }
 
     public void write(byte b, int line) {
-        this.codes.add(b);
-        this.lines.add(line);
+        if (count == codes.length) {
+            codes = Arrays.copyOf(codes, count * 2);
+        }
+        codes[count++] = b;
+
+        if (lineCount > 0 && lines[lineCount - 2] == line) {
+            lines[lineCount - 1] = count;
+            return;
+        }
+        if (lineCount == lines.length) {
+            lines = Arrays.copyOf(lines, lineCount * 2);
+        }
+        lines[lineCount++] = line;
+        lines[lineCount++] = count;
+    }
+
+    // 清空字节码和行号, 保留常量表, 供优化遍重新写入
+    public void clearCode() {
+        count = 0;
+        lineCount = 0;
+    }
+
+    // 丢掉 count 之后的字节码和行号, 供编译器撤回刚写入的指令
+    public void truncate(int count) {
+        this.count = count;
+        while (lineCount > 2 && lines[lineCount - 3] >= count) {
+            lineCount -= 2;
+        }
+        if (lineCount > 0) {
+            if (count == 0) {
+                lineCount = 0;
+            } else {
+                lines[lineCount - 1] = count;
+            }
+        }
+    }
+
+    // 编译完成后收缩到实际大小, 之后只读
+    public void freeze() {
+        codes = Arrays.copyOf(codes, count);
+        constants = Arrays.copyOf(constants, constantCount);
+        lines = Arrays.copyOf(lines, lineCount);
+        constantIndexes = null;
     }
 
-    public List<Byte> getCodes() {
+    public byte[] getCodes() {
         return codes;
     }
 
-    public List<Integer> getLines() {
-        return lines;
+    public int getCount() {
+        return count;
+    }
+
+    public void setCode(int offset, byte b) {
+        codes[offset] = b;
     }
 
-    public List<Value> getConstants() {
+    public InlineCache getInlineCache(int offset) {
+        if (inlineCaches == null) {
+            inlineCaches = new InlineCache[count];
+        }
+        InlineCache cache = inlineCaches[offset];
+        if (cache == null) {
+            cache = new InlineCache();
+            inlineCaches[offset] = cache;
+        }
+        return cache;
+    }
+
+    // 只读查询, 没有执行过的指令返回 null
+    public InlineCache peekInlineCache(int offset) {
+        return inlineCaches == null ? null : inlineCaches[offset];
+    }
+
+    public int getLine(int offset) {
+        return getRawLine(offset) & LINE_MASK;
+    }
+
+    // 记录一个内联点, 返回编号; 内联点已满时返回 -1
+    public int addInlineSite(ObjFunction function, int callLine) {
+        int site = inlinedFunctions.length;
+        if (site == INLINE_SITES_MAX) return -1;
+        inlinedFunctions = Arrays.copyOf(inlinedFunctions, site + 1);
+        inlinedFunctions[site] = function;
+        callLines = Arrays.copyOf(callLines, site + 1);
+        callLines[site] = callLine;
+        return site;
+    }
+
+    // 内联点 site 展开的指令写入字节码块时使用的行号
+    public static int inlinedLine(int site, int line) {
+        return ((site + 1) << LINE_BITS) | (line & LINE_MASK);
+    }
+
+    // offset 处的指令由哪个函数内联而来, 不是内联展开的指令时返回 null
+    public ObjFunction getInlinedFunction(int offset) {
+        int site = inlineSite(offset);
+        return site == -1 ? null : inlinedFunctions[site];
+    }
+
+    // 内联展开的指令对应的调用所在的行号
+    public int getCallLine(int offset) {
+        return callLines[inlineSite(offset)];
+    }
+
+    private int inlineSite(int offset) {
+        return (getRawLine(offset) >>> LINE_BITS) - 1;
+    }
+
+    // 行号表里的原始值, 内联展开的指令带着内联点编号, 优化遍解码再编码时原样保留
+    public int getRawLine(int offset) {
+        // 二分查找第一个结束偏移量大于 offset 的游程
+        int low = 0;
+        int high = lineCount / 2 - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lines[mid * 2 + 1] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return lines[low * 2];
+    }
+
+    public Value[] getConstants() {
         return constants;
     }
+
+    public int getConstantCount() {
+        return constantCount;
+    }
 }
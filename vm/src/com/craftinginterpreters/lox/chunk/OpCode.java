@@ -1,57 +1,175 @@
 package com.craftinginterpreters.lox.chunk;
 
 /**
+ * 操作码, 直接以 byte 常量写入字节码, 虚拟机按原始字节 switch 分派
+ *
  * @author hlx
  * @date 2023-08-08
  */
-public enum OpCode {
-
-    CONSTANT,        // 写入常量
-    NIL,             // 空指令 nil
-    TRUE,            // true指令
-    FALSE,           // false指令
-    POP,             // 弹出指令
-    GET_LOCAL,       // 获取局部变量
-    SET_LOCAL,       // 赋值局部变量
-    GET_GLOBAL,      // 获取全局变量
-    DEFINE_GLOBAL,   // 定义全局变量
-    SET_GLOBAL,      // 赋值全局变量
-    GET_UPVALUE,     // 获取升值指令
-    SET_UPVALUE,     // 赋值升值指令
-    GET_PROPERTY,    // 获取属性指令
-    SET_PROPERTY,    // 赋值属性指令
-    GET_SUPER,       // 获取父类指令
-    EQUAL,           // 赋值指令 =
-    GREATER,         // 大于指令 >
-    LESS,            // 小于指令 <
-    ADD,             // 加指令 +
-    SUBTRACT,        // 减指令 -
-    MULTIPLY,        // 乘指令 *
-    DIVIDE,          // 除指令 /
-    NOT,             // 非指令 !
-    NEGATE,          // 负指令 -
-    PRINT,           // 打印指令
-    JUMP,            // 分支跳转指令
-    JUMP_IF_FALSE,   // if false分支跳转指令
-    LOOP,            // 循环指令
-    CALL,            // 调用指令
-    INVOKE,          // 执行指令
-    SUPER_INVOKE,    // 父类执行指令
-    CLOSURE,         // 闭包指令
-    CLOSE_UPVALUE,   // 关闭提升值
-    RETURN,          // 返回指令
-    CLASS,           // 类指令
-    INHERIT,         // 继承指令
-    METHOD;           // 方法指令
-
-    public static OpCode intOf(int i) {
-        OpCode[] values = OpCode.values();
-        for (OpCode value : values) {
-            if (value.ordinal() == i) {
-                return value;
-            }
+public final class OpCode {
+
+    public static final byte CONSTANT = 0;          // 写入常量
+    public static final byte NIL = 1;               // 空指令 nil
+    public static final byte TRUE = 2;              // true指令
+    public static final byte FALSE = 3;             // false指令
+    public static final byte POP = 4;               // 弹出指令
+    public static final byte GET_LOCAL = 5;         // 获取局部变量
+    public static final byte SET_LOCAL = 6;         // 赋值局部变量
+    public static final byte GET_GLOBAL = 7;        // 获取全局变量, 操作数是两个字节的全局槽位
+    public static final byte DEFINE_GLOBAL = 8;     // 定义全局变量
+    public static final byte SET_GLOBAL = 9;        // 赋值全局变量
+    public static final byte GET_UPVALUE = 10;      // 获取升值指令
+    public static final byte SET_UPVALUE = 11;      // 赋值升值指令
+    public static final byte GET_PROPERTY = 12;     // 获取属性指令
+    public static final byte SET_PROPERTY = 13;     // 赋值属性指令
+    public static final byte GET_SUPER = 14;        // 获取父类指令
+    public static final byte EQUAL = 15;            // 赋值指令 =
+    public static final byte GREATER = 16;          // 大于指令 >
+    public static final byte LESS = 17;             // 小于指令 <
+    public static final byte ADD = 18;              // 加指令 +
+    public static final byte SUBTRACT = 19;         // 减指令 -
+    public static final byte MULTIPLY = 20;         // 乘指令 *
+    public static final byte DIVIDE = 21;           // 除指令 /
+    public static final byte NOT = 22;              // 非指令 !
+    public static final byte NEGATE = 23;           // 负指令 -
+    public static final byte PRINT = 24;            // 打印指令
+    public static final byte JUMP = 25;             // 分支跳转指令
+    public static final byte JUMP_IF_FALSE = 26;    // if false分支跳转指令
+    public static final byte LOOP = 27;             // 循环指令
+    public static final byte CALL = 28;             // 调用指令
+    public static final byte INVOKE = 29;           // 执行指令
+    public static final byte SUPER_INVOKE = 30;     // 父类执行指令
+    public static final byte CLOSURE = 31;          // 闭包指令
+    public static final byte CLOSE_UPVALUE = 32;    // 关闭提升值
+    public static final byte RETURN = 33;           // 返回指令
+    public static final byte CLASS = 34;            // 类指令
+    public static final byte INHERIT = 35;          // 继承指令
+    public static final byte METHOD = 36;           // 方法指令
+
+    // 超级指令, 由 Superinstructions 在编译结束后把常见序列融合而成
+    public static final byte GET_LOCAL_LOCAL = 37;           // GET_LOCAL a; GET_LOCAL b
+    public static final byte GET_LOCAL_CONSTANT = 38;        // GET_LOCAL a; CONSTANT k
+    public static final byte ADD_LOCAL_CONSTANT = 39;        // GET_LOCAL a; CONSTANT k; ADD
+    public static final byte SUBTRACT_LOCAL_CONSTANT = 40;   // GET_LOCAL a; CONSTANT k; SUBTRACT
+    public static final byte INCREMENT_LOCAL = 41;           // GET_LOCAL a; CONSTANT k; ADD; SET_LOCAL a; POP
+    public static final byte EQUAL_JUMP_IF_FALSE = 42;       // EQUAL; JUMP_IF_FALSE; POP
+    public static final byte GREATER_JUMP_IF_FALSE = 43;     // GREATER; JUMP_IF_FALSE; POP
+    public static final byte LESS_JUMP_IF_FALSE = 44;        // LESS; JUMP_IF_FALSE; POP
+
+    // 前缀: 后面那条带常量下标的指令使用两个字节的下标, 其余操作数不变
+    public static final byte WIDE = 45;
+
+    public static final byte TAIL_CALL = 46;        // 尾调用, 复用当前栈帧; 后面总是跟着 RETURN
+
+    // 快速指令, 只由虚拟机在运行时按观察到的操作数类型原地改写, 编译器不会生成
+    public static final byte ADD_NUM = 47;          // 两个数字相加, 类型不符时退回 ADD
+    public static final byte ADD_STR = 48;          // 两个字符串拼接, 类型不符时退回 ADD
+
+    /*
+     * 寄存器指令, 由 RegisterTranslator 在寄存器模式下从栈式字节码翻译而来
+     * 寄存器 r 就是栈帧里的槽位 r, 局部变量固定在自己的寄存器里
+     * RK 操作数: 最高位为 0 时是寄存器, 为 1 时低 7 位是常量下标
+     */
+    public static final byte MOVE = 49;                         // MOVE a b: R[a] = R[b]
+    public static final byte LOADK = 50;                        // LOADK a k: R[a] = K[k]
+    public static final byte LOAD_NIL = 51;                     // LOAD_NIL a: R[a] = nil
+    public static final byte LOAD_BOOL = 52;                    // LOAD_BOOL a b: R[a] = b != 0
+    public static final byte ADD_RK = 53;                       // ADD_RK a b c: R[a] = RK[b] + RK[c]
+    public static final byte SUBTRACT_RK = 54;
+    public static final byte MULTIPLY_RK = 55;
+    public static final byte DIVIDE_RK = 56;
+    public static final byte EQUAL_RK = 57;
+    public static final byte GREATER_RK = 58;
+    public static final byte LESS_RK = 59;
+    public static final byte NOT_RK = 60;                       // NOT_RK a b: R[a] = !RK[b]
+    public static final byte NEGATE_RK = 61;
+    public static final byte TEST_JUMP_IF_FALSE = 62;           // RK[a] 为假时跳转
+    public static final byte EQUAL_RK_JUMP_IF_FALSE = 63;       // !(RK[a] == RK[b]) 时跳转
+    public static final byte GREATER_RK_JUMP_IF_FALSE = 64;
+    public static final byte LESS_RK_JUMP_IF_FALSE = 65;
+    public static final byte SET_TOP = 66;                      // SET_TOP a: 栈顶设为 R[a], 在栈式指令之前同步
+
+    /*
+     * 以属性读取初始化的局部变量 (方法别名) 多占一个隐藏槽位, 只用作被调用者时不创建绑定方法
+     * 变量槽位 + 隐藏槽位: 绑定方法或字段值 + nil, 或者接收者 + 方法闭包
+     */
+    public static final byte GET_ALIAS = 67;                    // 读取属性, 再压入 nil
+    public static final byte GET_ALIAS_METHOD = 68;             // 方法时保留接收者并压入方法闭包, 字段时同 GET_ALIAS
+    public static final byte CALL_ALIAS = 69;                   // 调用 [变量, 隐藏槽位, 参数...]
+
+    public static final byte JUMP_IF_TRUE = 70;     // 条件为真时跳转, 由 Peephole 把 NOT; JUMP_IF_FALSE 改写而来
+
+    /*
+     * 内联调用点的守卫, 操作数: 参数个数, 被内联函数的常量下标, 跳转距离
+     * 被调用者仍是编译时内联的那个函数时顺序执行展开的函数体, 否则跳到原来的调用指令; 不改变栈
+     */
+    public static final byte GUARD_CALL = 71;       // 被调用者是这个函数的闭包
+    public static final byte GUARD_INVOKE = 72;     // 接收者调用这个名字时解析到这个方法
+
+    // 不检查类型的数字指令, 由 NumericTypes 在编译期证明操作数都是数字后改写而来
+    public static final byte ADD_UNCHECKED = 73;
+    public static final byte SUBTRACT_UNCHECKED = 74;
+    public static final byte MULTIPLY_UNCHECKED = 75;
+    public static final byte DIVIDE_UNCHECKED = 76;
+    public static final byte GREATER_UNCHECKED = 77;
+    public static final byte LESS_UNCHECKED = 78;
+    public static final byte NEGATE_UNCHECKED = 79;
+
+    private OpCode() {}
+
+    // 快速指令对应的通用指令, 其他指令原样返回
+    public static byte generic(byte op) {
+        switch (op) {
+            case ADD_NUM:
+            case ADD_STR:
+                return ADD;
+            default:
+                return op;
+        }
+    }
+
+    // 数字指令对应的不检查类型的指令, 其他指令原样返回
+    public static byte unchecked(byte op) {
+        switch (op) {
+            case ADD:
+                return ADD_UNCHECKED;
+            case SUBTRACT:
+                return SUBTRACT_UNCHECKED;
+            case MULTIPLY:
+                return MULTIPLY_UNCHECKED;
+            case DIVIDE:
+                return DIVIDE_UNCHECKED;
+            case GREATER:
+                return GREATER_UNCHECKED;
+            case LESS:
+                return LESS_UNCHECKED;
+            case NEGATE:
+                return NEGATE_UNCHECKED;
+            default:
+                return op;
+        }
+    }
+
+    // 不检查类型的指令对应的原指令, 其他指令原样返回; 超级指令融合和寄存器翻译按原指令处理
+    public static byte checked(byte op) {
+        switch (op) {
+            case ADD_UNCHECKED:
+                return ADD;
+            case SUBTRACT_UNCHECKED:
+                return SUBTRACT;
+            case MULTIPLY_UNCHECKED:
+                return MULTIPLY;
+            case DIVIDE_UNCHECKED:
+                return DIVIDE;
+            case GREATER_UNCHECKED:
+                return GREATER;
+            case LESS_UNCHECKED:
+                return LESS;
+            case NEGATE_UNCHECKED:
+                return NEGATE;
+            default:
+                return op;
         }
-        throw new RuntimeException("OpCode exception");
     }
 
 }
@@ -1,5 +1,10 @@
 package com.craftinginterpreters.lox.compiler;
 
+import com.craftinginterpreters.lox.optimizer.Inliner;
+
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * @author hlx
  * @date 2023-08-08
@@ -10,6 +15,9 @@ public class ClassCompiler {
     private final ClassCompiler enclosing;
     private boolean hasSuperclass;
 
+    // 已经编译的可以内联的方法, 按名字索引; 同名方法后声明的覆盖先声明的
+    private final Map<String, Inliner.Template> inlineMethods = new HashMap<>();
+
     public ClassCompiler(){
         hasSuperclass = false;
         enclosing = ClassCompiler.currentClass;
@@ -27,4 +35,16 @@ public class ClassCompiler {
     public void setHasSuperclass(boolean hasSuperclass) {
         this.hasSuperclass = hasSuperclass;
     }
+
+    public Map<String, Inliner.Template> getInlineMethods() {
+        return inlineMethods;
+    }
+
+    public void putInlineMethod(String name, Inliner.Template template) {
+        if (template == null) {
+            inlineMethods.remove(name);
+        } else {
+            inlineMethods.put(name, template);
+        }
+    }
 }
@@ -4,14 +4,24 @@ import com.craftinginterpreters.lox.Lox;
 import com.craftinginterpreters.lox.chunk.Chunk;
 import com.craftinginterpreters.lox.chunk.OpCode;
 import com.craftinginterpreters.lox.debug.Debug;
+import com.craftinginterpreters.lox.objects.ObjClosure;
 import com.craftinginterpreters.lox.objects.ObjFunction;
 import com.craftinginterpreters.lox.objects.ObjString;
+import com.craftinginterpreters.lox.optimizer.Inliner;
+import com.craftinginterpreters.lox.optimizer.NumericTypes;
+import com.craftinginterpreters.lox.optimizer.Peephole;
+import com.craftinginterpreters.lox.optimizer.RegisterTranslator;
+import com.craftinginterpreters.lox.optimizer.SsaOptimizer;
+import com.craftinginterpreters.lox.optimizer.StackDepth;
+import com.craftinginterpreters.lox.optimizer.Superinstructions;
 import com.craftinginterpreters.lox.parser.Parser;
 import com.craftinginterpreters.lox.scanner.Scanner;
 import com.craftinginterpreters.lox.scanner.Token;
 import com.craftinginterpreters.lox.scanner.TokenType;
 import com.craftinginterpreters.lox.value.Value;
-import com.craftinginterpreters.lox.value.ValueType;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author hlx
@@ -23,6 +33,12 @@ public class Compiler {
 
     public static Parser parser = new Parser();
 
+    /*
+     * 顶层 fun 声明的可内联函数, 按全局槽位索引; 变量之后被重新赋值时由运行时的守卫退回普通调用
+     * 槽位属于虚拟机的全局变量表, 每次编译从表里复制一份, 编译成功后才写回
+     */
+    private static Map<Integer, Inliner.Template> inlineFunctions;
+
     private final Compiler enclosing;
 
     private final ObjFunction function;
@@ -33,10 +49,32 @@ public class Compiler {
 
     private int localCount;
 
+    // 方法别名的隐藏槽位数, 不计入局部变量个数的上限
+    private int aliasSlots;
+
     private final Upvalue[] upvalues;
 
     private int scopeDepth;
 
+    // 最近一条 CALL 指令的偏移量, 用于识别 return 中的尾调用
+    private int lastCall = -1;
+
+    // 最近一次属性读取 (GET_PROPERTY, 或 super 变量加 GET_SUPER) 的起止位置和名称常量,
+    // 紧跟调用时撤回属性读取, 改为 INVOKE 或 SUPER_INVOKE
+    private int lastProperty = -1;
+    private int lastPropertyEnd = -1;
+    private int lastPropertyName;
+    private boolean lastPropertySuper;
+
+    // 最近一次回填的跳转目标, 目标之前的指令不能撤回
+    private int lastJumpTarget = -1;
+
+    // 方法别名作为被调用者读取后的位置, 随后的调用用 CALL_ALIAS
+    private int aliasCall = -1;
+
+    // 编译完成后可以内联时的函数体
+    private Inliner.Template inlineTemplate;
+
     private final Scanner scanner;
 
     private final ParseRule[] rules;
@@ -89,7 +127,8 @@ public class Compiler {
         this.enclosing = current;
         this.type = type;
         this.scanner = scanner;
-        this.locals = new Local[Byte.MAX_VALUE];
+        // 隐藏槽位最多和变量一样多, 槽位操作数是一个字节, 两者合起来也放得下
+        this.locals = new Local[2 * Byte.MAX_VALUE];
         for (int i = 0; i < locals.length; i++) {
             locals[i] = new Local(0, false);
         }
@@ -123,19 +162,29 @@ public class Compiler {
     }
 
 
-    private byte makeConstant(Value value) {
+    private int makeConstant(Value value) {
         int constant = currentChunk().addConstant(value);
-        if (constant > Byte.MAX_VALUE) {
+        if (constant >= Chunk.CONSTANTS_MAX) {
             error("Too many constants in one chunk.");
             return 0;
         }
-        return (byte) constant;
+        return constant;
     }
 
-    private byte identifierConstant(Token name) {
+    private int identifierConstant(Token name) {
         return makeConstant(ObjString.copyString(name.message).toValue());
     }
 
+    // 全局变量在编译期解析成全局变量表的槽位
+    private int globalSlot(Token name) {
+        int slot = Lox.vm.getGlobals().resolve(name.message);
+        if (slot == -1) {
+            error("Too many global variables.");
+            return 0;
+        }
+        return slot;
+    }
+
     private boolean identifiersEqual(Token a, Token b) {
         return a.message.equals(b.message);
     }
@@ -159,33 +208,35 @@ public class Compiler {
         return true;
     }
 
-    private void emitByte(OpCode code) {
-        currentChunk().write((byte) code.ordinal(), parser.previous.line);
-    }
-
     private void emitByte(byte b) {
         currentChunk().write(b, parser.previous.line);
     }
 
-    private void emitBytes(OpCode op1, OpCode op2) {
-        emitByte(op1);
-        emitByte(op2);
-    }
-
     private void emitBytes(byte b1, byte b2) {
         emitByte(b1);
         emitByte(b2);
     }
 
-    private void emitBytes(OpCode op, byte b) {
+    // 常量下标放不进一个字节时加 WIDE 前缀, 用两个字节
+    private void emitConstantOp(byte op, int constant) {
+        if (constant > 0xff) {
+            emitByte(OpCode.WIDE);
+            emitShort(op, constant);
+        } else {
+            emitBytes(op, (byte) constant);
+        }
+    }
+
+    private void emitShort(byte op, int operand) {
         emitByte(op);
-        emitByte(b);
+        emitByte((byte) ((operand >> 8) & 0xff));
+        emitByte((byte) (operand & 0xff));
     }
 
     private void emitLoop(int loopStart) {
         emitByte(OpCode.LOOP);
 
-        int offset = currentChunk().getCodes().size() - loopStart + 2;
+        int offset = currentChunk().getCount() - loopStart + 2;
         if (offset > Short.MAX_VALUE) error("Loop body too large.");
 
         emitByte((byte) ((offset >> 8) & 0xff));
@@ -194,12 +245,12 @@ public class Compiler {
 
 
     private void emitConstant(Value value) {
-        emitBytes(OpCode.CONSTANT, makeConstant(value));
+        emitConstantOp(OpCode.CONSTANT, makeConstant(value));
     }
 
     private void patchJump(int offset) {
         // -offset得到 字节指令的位置  -2 再得到then语句的位置
-        int jump = currentChunk().getCodes().size() - offset - 2;
+        int jump = currentChunk().getCount() - offset - 2;
 
         // 最大只能跳转两个字节的字节码
         if (jump > Short.MAX_VALUE) {
@@ -207,8 +258,9 @@ public class Compiler {
         }
 
         // 回写需要跳过的大小
-        currentChunk().getCodes().set(offset, (byte) ((jump >> 8) & 0xff));
-        currentChunk().getCodes().set(offset + 1, (byte) (jump & 0xff));
+        currentChunk().setCode(offset, (byte) ((jump >> 8) & 0xff));
+        currentChunk().setCode(offset + 1, (byte) (jump & 0xff));
+        current.lastJumpTarget = currentChunk().getCount();
     }
 
     private void emitReturn() {
@@ -220,16 +272,17 @@ public class Compiler {
         emitByte(OpCode.RETURN);
     }
 
-    private int emitJump(OpCode instruction) {
+    private int emitJump(byte instruction) {
         emitByte(instruction);
         emitByte((byte) 0xff);
         emitByte((byte) 0xff);
-        return currentChunk().getCodes().size() - 2;
+        return currentChunk().getCount() - 2;
     }
 
     public ObjFunction compile() {
         parser.hadError = false;
         parser.panicMode = false;
+        inlineFunctions = new HashMap<>(Lox.vm.getGlobals().getInlineFunctions());
 
         advance();
 
@@ -238,7 +291,9 @@ public class Compiler {
         }
 
         ObjFunction objFunction = endCompiler();
-        return parser.hadError ? null : objFunction;
+        if (parser.hadError) return null;
+        Lox.vm.getGlobals().setInlineFunctions(inlineFunctions);
+        return objFunction;
     }
 
     public void advance() {
@@ -349,7 +404,7 @@ public class Compiler {
             expressionStatement();
         }
         // 循环起点
-        int loopStart = currentChunk().getCodes().size();
+        int loopStart = currentChunk().getCount();
         // for的第二语句  表达式语句
         int exitJump = -1;
         if (!match(TokenType.SEMICOLON)) {
@@ -364,7 +419,7 @@ public class Compiler {
         // for的第三语句 增量子句
         if (!match(TokenType.RIGHT_PAREN)) {
             int bodyJump = emitJump(OpCode.JUMP);
-            int incrementStart = currentChunk().getCodes().size();
+            int incrementStart = currentChunk().getCount();
             expression();
             emitByte(OpCode.POP);
             consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
@@ -435,6 +490,10 @@ public class Compiler {
 
             expression();
             consume(TokenType.SEMICOLON, "Expect ';' after return value.");
+            // 返回值表达式以调用结束时就是尾调用
+            if (current.lastCall != -1 && current.lastCall == currentChunk().getCount() - 2) {
+                currentChunk().setCode(current.lastCall, OpCode.TAIL_CALL);
+            }
             emitByte(OpCode.RETURN);
         }
     }
@@ -442,7 +501,7 @@ public class Compiler {
 
     private void whileStatement() {
         // 循环起点
-        int loopStart = currentChunk().getCodes().size();
+        int loopStart = currentChunk().getCount();
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
         expression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
@@ -467,7 +526,7 @@ public class Compiler {
     }
 
     private void addLocal(Token name) {
-        if (current.localCount == Byte.MAX_VALUE) {
+        if (current.localCount - current.aliasSlots == Byte.MAX_VALUE) {
             error("Too many local variables in function.");
             return;
         }
@@ -476,6 +535,10 @@ public class Compiler {
         local.setName(name);
         local.setDepth(-1);
         local.setCaptured(false);
+        local.setMutated(false);
+        local.getCaptureSites().clear();
+        local.setAliasSite(-1);
+        local.setEscapes(false);
     }
 
     private void declareVariable() {
@@ -496,13 +559,13 @@ public class Compiler {
         addLocal(name);
     }
 
-    private byte parseVariable(String errorMessage) {
+    private int parseVariable(String errorMessage) {
         consume(TokenType.IDENTIFIER, errorMessage);
 
         declareVariable();
         if (current.scopeDepth > 0) return 0;
 
-        return identifierConstant(parser.previous);
+        return globalSlot(parser.previous);
     }
 
     private void markInitialized() {
@@ -526,12 +589,13 @@ public class Compiler {
         return argCount;
     }
 
-    private void defineVariable(byte global) {
+    private void defineVariable(int global) {
         if (current.scopeDepth > 0) {
             markInitialized();
             return;
         }
-        emitBytes(OpCode.DEFINE_GLOBAL, global);
+        emitShort(OpCode.DEFINE_GLOBAL, global);
+        inlineFunctions.remove(global);
     }
 
     private int resolveLocal(Compiler compiler, Token name) {
@@ -585,8 +649,31 @@ public class Compiler {
         return -1;
     }
 
+    // 沿升值链找到被捕获的局部变量, 标记为被赋值
+    private void markUpvalueMutated(Compiler compiler, int upvalue) {
+        Upvalue resolved = compiler.upvalues[upvalue];
+        if (resolved.isLocal()) {
+            compiler.enclosing.locals[resolved.getIndex() & 0xff].setMutated(true);
+        } else {
+            markUpvalueMutated(compiler.enclosing, resolved.getIndex() & 0xff);
+        }
+    }
+
+    /*
+     * 局部变量离开作用域时对它的赋值都已编译完, 从未被赋值的变量把捕获它的 CLOSURE 改为按值复制
+     * 被赋值的变量保持默认的单元捕获, 返回是否需要关闭单元
+     */
+    private boolean resolveCaptures(Local local) {
+        if (!local.isCaptured()) return false;
+        if (local.isMutated()) return true;
+        for (int site : local.getCaptureSites()) {
+            currentChunk().setCode(site, ObjClosure.CAPTURE_VALUE);
+        }
+        return false;
+    }
+
     private void namedVariable(Token name, boolean canAssign) {
-        OpCode getOp, setOp;
+        byte getOp, setOp;
         int arg = resolveLocal(current, name);
         if (arg != -1) {
             getOp = OpCode.GET_LOCAL;
@@ -595,17 +682,37 @@ public class Compiler {
             getOp = OpCode.GET_UPVALUE;
             setOp = OpCode.SET_UPVALUE;
         } else {
-            arg = identifierConstant(name);
-            getOp = OpCode.GET_GLOBAL;
-            setOp = OpCode.SET_GLOBAL;
+            // 全局变量的操作数是两个字节的槽位
+            int slot = globalSlot(name);
+            if (canAssign && match(TokenType.EQUAL)) {
+                expression();
+                emitShort(OpCode.SET_GLOBAL, slot);
+            } else {
+                emitShort(OpCode.GET_GLOBAL, slot);
+            }
+            return;
         }
 
         // 接等号为赋值  反之为取值
         if (canAssign && match(TokenType.EQUAL)) {
             expression();
-            emitBytes((byte) setOp.ordinal(), (byte) arg);
+            if (setOp == OpCode.SET_LOCAL) {
+                current.locals[arg].setMutated(true);
+            } else {
+                markUpvalueMutated(current, arg);
+            }
+            emitBytes(setOp, (byte) arg);
+        } else if (getOp == OpCode.GET_LOCAL && current.locals[arg].getAliasSite() != -1) {
+            Local alias = current.locals[arg];
+            emitBytes(getOp, (byte) arg);
+            if (check(TokenType.LEFT_PAREN)) {
+                emitBytes(getOp, (byte) (arg + 1));
+                current.aliasCall = currentChunk().getCount();
+            } else {
+                alias.setEscapes(true);
+            }
         } else {
-            emitBytes((byte) getOp.ordinal(), (byte) arg);
+            emitBytes(getOp, (byte) arg);
         }
     }
 
@@ -619,8 +726,48 @@ public class Compiler {
 
     private ObjFunction endCompiler() {
 
+        for (int i = 0; i < current.localCount; i++) {
+            resolveCaptures(current.locals[i]);
+            resolveAlias(current.locals[i]);
+        }
         emitReturn();
         ObjFunction function = current.function;
+        boolean inlining = Lox.OPTIMIZE_LEVEL >= 2 && Lox.INLINE_BUDGET > 0 && !parser.hadError;
+        if (inlining) {
+            Inliner.inline(currentChunk(), function, inlineFunctions, inlineMethods());
+        }
+        if (Lox.OPTIMIZE_LEVEL >= 2 && !parser.hadError) {
+            Peephole.optimize(currentChunk());
+        }
+        if (Lox.OPTIMIZE_LEVEL >= 3 && !parser.hadError) {
+            // 外提和消除之后留下的冗余跳转和读取再交给窥孔优化清理
+            if (SsaOptimizer.optimize(currentChunk(), function.getArity())) {
+                Peephole.optimize(currentChunk());
+            }
+        }
+        if (inlining && (current.type == FunctionType.FUNCTION || current.type == FunctionType.METHOD)) {
+            current.inlineTemplate = Inliner.template(function);
+        }
+        if (Lox.OPTIMIZE_LEVEL >= 2 && !parser.hadError) {
+            // 内联模板已经取走, 展开到调用点之后由调用者的推断重新证明
+            NumericTypes.specialize(currentChunk(), function);
+        }
+        if (Lox.REGISTER_VM && !parser.hadError) {
+            // 寄存器就是栈帧里的槽位, 槽位数按翻译前的栈式字节码计算
+            function.setMaxSlots(StackDepth.compute(currentChunk(), function.getArity()));
+            if (!RegisterTranslator.translate(currentChunk(), function.getArity()) && Lox.OPTIMIZE_LEVEL >= 1) {
+                Superinstructions.fuse(currentChunk());
+            }
+            currentChunk().freeze();
+        } else {
+            if (Lox.OPTIMIZE_LEVEL >= 1) {
+                Superinstructions.fuse(currentChunk());
+            }
+            currentChunk().freeze();
+            if (!parser.hadError) {
+                function.setMaxSlots(StackDepth.compute(currentChunk(), function.getArity()));
+            }
+        }
 
         if (Lox.DEBUG_PRINT_CODE) {
             if (!parser.hadError) {
@@ -633,6 +780,12 @@ public class Compiler {
         return function;
     }
 
+    // 方法里 this 调用的可以内联的同类方法, 不在方法里时为 null
+    private static Map<String, Inliner.Template> inlineMethods() {
+        if (current.type != FunctionType.METHOD && current.type != FunctionType.INITIALIZER) return null;
+        return ClassCompiler.currentClass.getInlineMethods();
+    }
+
     private void beginScope() {
         current.scopeDepth++;
     }
@@ -643,8 +796,11 @@ public class Compiler {
 
         while (current.localCount > 0 &&
                 current.locals[current.localCount - 1].getDepth() > current.scopeDepth) {
-            // 被捕获的需要推送到闭包
-            if (current.locals[current.localCount - 1].isCaptured()) {
+            Local local = current.locals[current.localCount - 1];
+            resolveAlias(local);
+            if (local.getAliasSite() != -1) current.aliasSlots--;
+            // 通过单元捕获的需要关闭单元
+            if (resolveCaptures(local)) {
                 emitByte(OpCode.CLOSE_UPVALUE);
             } else {
                 emitByte(OpCode.POP);
@@ -661,7 +817,8 @@ public class Compiler {
         consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
     }
 
-    private void function(FunctionType type) {
+    // 返回编译出的函数可以内联时的函数体, 不能内联时为 null
+    private Inliner.Template function(FunctionType type) {
         Compiler compiler = new Compiler(current.scanner, type);
         beginScope();
         // 函数参数
@@ -672,7 +829,7 @@ public class Compiler {
                 if (current.function.getArity() > 255) {
                     errorAtCurrent("Can't have more than 255 parameters.");
                 }
-                byte constant = parseVariable("Expect parameter name.");
+                int constant = parseVariable("Expect parameter name.");
                 defineVariable(constant);
             } while (match(TokenType.COMMA));
         }
@@ -681,41 +838,55 @@ public class Compiler {
         block();
 
         ObjFunction function = endCompiler();
-        emitBytes(OpCode.CLOSURE, makeConstant(function.toValue()));
+        emitConstantOp(OpCode.CLOSURE, makeConstant(function.toValue()));
 
         for (int i = 0; i < function.getUpvalueCount(); i++) {
-            emitByte((byte) (compiler.upvalues[i].isLocal() ? 1 : 0));
-            emitByte(compiler.upvalues[i].getIndex());
+            Upvalue upvalue = compiler.upvalues[i];
+            if (upvalue.isLocal()) {
+                // 先按单元捕获, 变量离开作用域时再决定
+                current.locals[upvalue.getIndex() & 0xff].getCaptureSites().add(currentChunk().getCount());
+                emitByte(ObjClosure.CAPTURE_CELL);
+            } else {
+                emitByte(ObjClosure.CAPTURE_UPVALUE);
+            }
+            emitByte(upvalue.getIndex());
         }
+        return compiler.inlineTemplate;
     }
 
     private void method() {
         consume(TokenType.IDENTIFIER, "Expect method name.");
-        byte constant = identifierConstant(parser.previous);
+        int constant = identifierConstant(parser.previous);
+        Lox.vm.getSelectors().assign((ObjString) currentChunk().getConstants()[constant].getObj());
 
         FunctionType type = FunctionType.METHOD;
         if (parser.previous.length == 4 && "init".equals(parser.previous.message)) {
             type = FunctionType.INITIALIZER;
         }
-        function(type);
-        emitBytes(OpCode.METHOD, constant);
+        String name = parser.previous.message;
+        Inliner.Template template = function(type);
+        emitConstantOp(OpCode.METHOD, constant);
+        ClassCompiler.currentClass.putInlineMethod(name, template);
     }
 
     private void funDeclaration() {
-        byte global = parseVariable("Expect function name.");
+        int global = parseVariable("Expect function name.");
         markInitialized();
-        function(FunctionType.FUNCTION);
+        Inliner.Template template = function(FunctionType.FUNCTION);
         defineVariable(global);
+        if (current.scopeDepth == 0 && template != null) {
+            inlineFunctions.put(global, template);
+        }
     }
 
     private void classDeclaration() {
         consume(TokenType.IDENTIFIER, "Expect class name.");
         Token className = parser.previous;
-        byte nameConstant = identifierConstant(parser.previous);
+        int nameConstant = identifierConstant(parser.previous);
         declareVariable();
 
-        emitBytes(OpCode.CLASS, nameConstant);
-        defineVariable(nameConstant);
+        emitConstantOp(OpCode.CLASS, nameConstant);
+        defineVariable(current.scopeDepth > 0 ? 0 : globalSlot(className));
 
         ClassCompiler classCompiler = new ClassCompiler();
 
@@ -729,7 +900,7 @@ public class Compiler {
 
             beginScope();
             addLocal(syntheticToken("super"));
-            defineVariable((byte) 0);
+            defineVariable(0);
 
             namedVariable(className, false);
             emitByte(OpCode.INHERIT);
@@ -752,10 +923,14 @@ public class Compiler {
     }
 
     private void varDeclaration() {
-        byte global = parseVariable("Expect variable name.");
+        int global = parseVariable("Expect variable name.");
 
         if (match(TokenType.EQUAL)) {
             expression();
+            if (current.scopeDepth > 0 && endsWithProperty(false)
+                    && currentChunk().getCodes()[current.lastProperty] == OpCode.GET_PROPERTY) {
+                aliasDeclaration();
+            }
         } else {
             emitByte(OpCode.NIL);
         }
@@ -764,6 +939,34 @@ public class Compiler {
         defineVariable(global);
     }
 
+    /*
+     * 以属性读取初始化的局部变量 var m = obj.method; 作为方法别名, 多占一个隐藏槽位
+     * 先按 GET_ALIAS 编译, 值和普通变量一样; 变量离开作用域时, 如果只作为被调用者使用,
+     * 改为 GET_ALIAS_METHOD, 变量槽位直接保存接收者, 调用时不创建绑定方法
+     */
+    private void aliasDeclaration() {
+        Local alias = current.locals[current.localCount - 1];
+        currentChunk().setCode(current.lastProperty, OpCode.GET_ALIAS);
+        alias.setAliasSite(current.lastProperty);
+        alias.setDepth(current.scopeDepth);
+        current.aliasSlots++;
+        addLocal(syntheticToken(""));
+    }
+
+    // 方法别名只作为被调用者, 没有被赋值或捕获时不需要绑定方法
+    private void resolveAlias(Local local) {
+        if (local.getAliasSite() == -1) return;
+        if (local.escapes() || local.isMutated() || local.isCaptured()) return;
+        currentChunk().setCode(local.getAliasSite(), OpCode.GET_ALIAS_METHOD);
+    }
+
+    // 最后一条指令是否是可以撤回的属性读取
+    private boolean endsWithProperty(boolean allowSuper) {
+        return current.lastPropertyEnd == currentChunk().getCount()
+                && current.lastJumpTarget <= current.lastProperty
+                && (allowSuper || !current.lastPropertySuper);
+    }
+
     private void expression() {
         parsePrecedence(Precedence.ASSIGNMENT);
     }
@@ -854,7 +1057,13 @@ public class Compiler {
 
     private ParseFn call() {
         return (canAssign) -> {
+            boolean alias = current.aliasCall == currentChunk().getCount();
             byte argCount = argumentList();
+            if (alias) {
+                emitBytes(OpCode.CALL_ALIAS, argCount);
+                return;
+            }
+            current.lastCall = currentChunk().getCount();
             emitBytes(OpCode.CALL, argCount);
         };
     }
@@ -863,17 +1072,21 @@ public class Compiler {
     private ParseFn dot() {
         return (canAssign) -> {
             consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
-            byte name = identifierConstant(parser.previous);
+            int name = identifierConstant(parser.previous);
 
             if (canAssign && match(TokenType.EQUAL)) {
                 expression();
-                emitBytes(OpCode.SET_PROPERTY, name);
+                emitConstantOp(OpCode.SET_PROPERTY, name);
             } else if (match(TokenType.LEFT_PAREN)) {
                 byte argCount = argumentList();
-                emitBytes(OpCode.INVOKE, name);
+                emitConstantOp(OpCode.INVOKE, name);
                 emitByte(argCount);
             } else {
-                emitBytes(OpCode.GET_PROPERTY, name);
+                current.lastProperty = currentChunk().getCount();
+                emitConstantOp(OpCode.GET_PROPERTY, name);
+                current.lastPropertyEnd = currentChunk().getCount();
+                current.lastPropertyName = name;
+                current.lastPropertySuper = false;
             }
         };
     }
@@ -902,6 +1115,22 @@ public class Compiler {
         return (canAssign) -> {
             expression();
             consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+
+            // (a.b)(...) 和 (super.b)(...) 与不带括号的一样编译成 INVOKE 和 SUPER_INVOKE
+            if (endsWithProperty(true) && match(TokenType.LEFT_PAREN)) {
+                int name = current.lastPropertyName;
+                boolean isSuper = current.lastPropertySuper;
+                currentChunk().truncate(current.lastProperty);
+                current.lastPropertyEnd = -1;
+                byte argCount = argumentList();
+                if (isSuper) {
+                    namedVariable(syntheticToken("super"), false);
+                    emitConstantOp(OpCode.SUPER_INVOKE, name);
+                } else {
+                    emitConstantOp(OpCode.INVOKE, name);
+                }
+                emitByte(argCount);
+            }
         };
     }
 
@@ -909,7 +1138,7 @@ public class Compiler {
     private ParseFn number() {
         return (canAssign) -> {
             double value = Double.parseDouble(parser.previous.message);
-            emitConstant(new Value(ValueType.NUMBER, value));
+            emitConstant(Value.number(value));
         };
     }
 
@@ -951,17 +1180,21 @@ public class Compiler {
 
             consume(TokenType.DOT, "Expect '.' after 'super'.");
             consume(TokenType.IDENTIFIER, "Expect superclass method name.");
-            byte name = identifierConstant(parser.previous);
+            int name = identifierConstant(parser.previous);
 
             namedVariable(syntheticToken("this"), false);
             if (match(TokenType.LEFT_PAREN)) {
                 byte argCount = argumentList();
                 namedVariable(syntheticToken("super"), false);
-                emitBytes(OpCode.SUPER_INVOKE, name);
+                emitConstantOp(OpCode.SUPER_INVOKE, name);
                 emitByte(argCount);
             } else {
+                current.lastProperty = currentChunk().getCount();
                 namedVariable(syntheticToken("super"), false);
-                emitBytes(OpCode.GET_SUPER, name);
+                emitConstantOp(OpCode.GET_SUPER, name);
+                current.lastPropertyEnd = currentChunk().getCount();
+                current.lastPropertyName = name;
+                current.lastPropertySuper = true;
             }
         };
     }
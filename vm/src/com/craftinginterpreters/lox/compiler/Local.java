@@ -2,6 +2,9 @@ package com.craftinginterpreters.lox.compiler;
 
 import com.craftinginterpreters.lox.scanner.Token;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author hlx
  * @date 2023-08-05
@@ -14,6 +17,18 @@ public class Local {
 
     private boolean isCaptured;
 
+    // 声明之后是否被赋值过 (包括在内层函数中)
+    private boolean isMutated;
+
+    // 直接捕获该变量的 CLOSURE 指令中捕获方式字节的位置, 离开作用域时按是否被赋值回填
+    private final List<Integer> captureSites = new ArrayList<>();
+
+    // 以属性读取初始化时 GET_ALIAS 指令的位置, 否则为 -1
+    private int aliasSite = -1;
+
+    // 是否在被调用者以外的位置读取过
+    private boolean escapes;
+
     public Local(int depth, boolean isCaptured) {
         this.name = null;
         this.depth = depth;
@@ -32,6 +47,22 @@ public class Local {
         return isCaptured;
     }
 
+    public boolean isMutated() {
+        return isMutated;
+    }
+
+    public List<Integer> getCaptureSites() {
+        return captureSites;
+    }
+
+    public int getAliasSite() {
+        return aliasSite;
+    }
+
+    public boolean escapes() {
+        return escapes;
+    }
+
     public void setName(Token name) {
         this.name = name;
     }
@@ -40,6 +71,18 @@ public class Local {
         isCaptured = captured;
     }
 
+    public void setMutated(boolean mutated) {
+        isMutated = mutated;
+    }
+
+    public void setAliasSite(int aliasSite) {
+        this.aliasSite = aliasSite;
+    }
+
+    public void setEscapes(boolean escapes) {
+        this.escapes = escapes;
+    }
+
     public void setDepth(int depth) {
         this.depth = depth;
     }
@@ -1,10 +1,17 @@
 package com.craftinginterpreters.lox.debug;
 
+import com.craftinginterpreters.lox.Lox;
 import com.craftinginterpreters.lox.chunk.Chunk;
 import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjClosure;
 import com.craftinginterpreters.lox.objects.ObjFunction;
+import com.craftinginterpreters.lox.objects.ObjType;
+import com.craftinginterpreters.lox.value.Value;
+import com.craftinginterpreters.lox.vm.InlineCache;
 
-import java.util.Objects;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 /**
  * @author hlx
@@ -16,149 +23,397 @@ public class Debug {
         System.out.printf("== %s ==\n", name); // 打印字节码块名
 
         // 遍历字节码块中的字节码
-        for (int offset = 0; offset < chunk.getCodes().size(); ) {
+        for (int offset = 0; offset < chunk.getCount(); ) {
             offset = disassembleInstruction(chunk, offset);
         }
     }
 
+    // 打印函数及其内部函数中每个调用点的内联缓存状态和命中/未命中次数
+    public static void printInlineCaches(ObjFunction function) {
+        printInlineCaches(function, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    // 内联调用点的守卫也引用被内联的函数, 每个函数只打印一次
+    private static void printInlineCaches(ObjFunction function, Set<ObjFunction> printed) {
+        if (!printed.add(function)) return;
+        Chunk chunk = function.getChunk();
+        boolean header = false;
+        for (int offset = 0; offset < chunk.getCount(); offset++) {
+            InlineCache cache = chunk.peekInlineCache(offset);
+            if (cache == null) continue;
+            if (!header) {
+                System.out.printf("== %s inline caches ==\n",
+                        function.getName() == null ? "<script>" : function.getName().getString());
+                header = true;
+            }
+            System.out.printf("%04d %4d %-16s %-13s %d shapes, %d hits, %d misses\n",
+                    offset, chunk.getLine(offset), constantOpName(chunk.getCodes()[chunk.getCodes()[offset] == OpCode.WIDE ? offset + 1 : offset]),
+                    cache.getState(), cache.getCount(), cache.getHits(), cache.getMisses());
+        }
+
+        for (int i = 0; i < chunk.getConstantCount(); i++) {
+            Value constant = chunk.getConstants()[i];
+            if (constant.isObj() && constant.getObj().getType() == ObjType.FUNCTION) {
+                printInlineCaches(constant.asFunction(), printed);
+            }
+        }
+    }
+
+    // 带常量下标的指令名, 用于 WIDE 前缀和内联缓存的输出
+    private static String constantOpName(byte instruction) {
+        switch (instruction) {
+            case OpCode.CONSTANT:
+                return "CONSTANT";
+            case OpCode.GET_PROPERTY:
+                return "GET_PROPERTY";
+            case OpCode.SET_PROPERTY:
+                return "SET_PROPERTY";
+            case OpCode.GET_SUPER:
+                return "GET_SUPER";
+            case OpCode.GET_ALIAS:
+                return "GET_ALIAS";
+            case OpCode.GET_ALIAS_METHOD:
+                return "GET_ALIAS_METHOD";
+            case OpCode.INVOKE:
+                return "INVOKE";
+            case OpCode.GUARD_INVOKE:
+                return "GUARD_INVOKE";
+            case OpCode.SUPER_INVOKE:
+                return "SUPER_INVOKE";
+            case OpCode.CLOSURE:
+                return "CLOSURE";
+            case OpCode.CLASS:
+                return "CLASS";
+            case OpCode.METHOD:
+                return "METHOD";
+            default:
+                return String.valueOf(instruction);
+        }
+    }
+
     public static int disassembleInstruction(Chunk chunk, int offset) {
         System.out.printf("%04d ", offset);    // 字节码偏移量
         // 行号打印
-        if (offset > 0 && Objects.equals(chunk.getLines().get(offset), chunk.getLines().get(offset - 1))) {
+        if (offset > 0 && chunk.getLine(offset) == chunk.getLine(offset - 1)) {
             System.out.print("   | ");
         } else {
-            System.out.printf("%4d ", chunk.getLines().get(offset));
+            System.out.printf("%4d ", chunk.getLine(offset));
         }
 
         // 反汇编当前字节码
-        OpCode instruction = OpCode.intOf((int) chunk.getCodes().get(offset));
+        byte instruction = chunk.getCodes()[offset];
         switch (instruction) {
-            case CONSTANT:
+            case OpCode.CONSTANT:
                 return constantInstruction("CONSTANT", chunk, offset);
-            case NIL:
+            case OpCode.NIL:
                 return simpleInstruction("NIL", offset);
-            case TRUE:
+            case OpCode.TRUE:
                 return simpleInstruction("TRUE", offset);
-            case FALSE:
+            case OpCode.FALSE:
                 return simpleInstruction("FALSE", offset);
-            case POP:
+            case OpCode.POP:
                 return simpleInstruction("POP", offset);
-            case GET_LOCAL:
+            case OpCode.GET_LOCAL:
                 return byteInstruction("GET_LOCAL", chunk, offset);
-            case SET_LOCAL:
+            case OpCode.SET_LOCAL:
                 return byteInstruction("SET_LOCAL", chunk, offset);
-            case GET_GLOBAL:
-                return constantInstruction("GET_GLOBAL", chunk, offset);
-            case DEFINE_GLOBAL:
-                return constantInstruction("DEFINE_GLOBAL", chunk, offset);
-            case SET_GLOBAL:
-                return constantInstruction("SET_GLOBAL", chunk, offset);
-            case GET_UPVALUE:
+            case OpCode.GET_GLOBAL:
+                return globalInstruction("GET_GLOBAL", chunk, offset);
+            case OpCode.DEFINE_GLOBAL:
+                return globalInstruction("DEFINE_GLOBAL", chunk, offset);
+            case OpCode.SET_GLOBAL:
+                return globalInstruction("SET_GLOBAL", chunk, offset);
+            case OpCode.GET_UPVALUE:
                 return byteInstruction("GET_UPVALUE", chunk, offset);
-            case SET_UPVALUE:
+            case OpCode.SET_UPVALUE:
                 return byteInstruction("SET_UPVALUE", chunk, offset);
-            case GET_PROPERTY:
+            case OpCode.GET_PROPERTY:
                 return constantInstruction("GET_PROPERTY", chunk, offset);
-            case SET_PROPERTY:
+            case OpCode.SET_PROPERTY:
                 return constantInstruction("SET_PROPERTY", chunk, offset);
-            case GET_SUPER:
+            case OpCode.GET_SUPER:
                 return constantInstruction("GET_SUPER", chunk, offset);
-            case EQUAL:
+            case OpCode.GET_ALIAS:
+                return constantInstruction("GET_ALIAS", chunk, offset);
+            case OpCode.GET_ALIAS_METHOD:
+                return constantInstruction("GET_ALIAS_METHOD", chunk, offset);
+            case OpCode.EQUAL:
                 return simpleInstruction("EQUAL", offset);
-            case GREATER:
+            case OpCode.GREATER:
                 return simpleInstruction("GREATER", offset);
-            case LESS:
+            case OpCode.LESS:
                 return simpleInstruction("LESS", offset);
-            case ADD:
+            case OpCode.ADD:
                 return simpleInstruction("ADD", offset);
-            case SUBTRACT:
+            case OpCode.ADD_NUM:
+                return simpleInstruction("ADD_NUM", offset);
+            case OpCode.ADD_STR:
+                return simpleInstruction("ADD_STR", offset);
+            case OpCode.SUBTRACT:
                 return simpleInstruction("SUBTRACT", offset);
-            case MULTIPLY:
+            case OpCode.MULTIPLY:
                 return simpleInstruction("MULTIPLY", offset);
-            case DIVIDE:
+            case OpCode.DIVIDE:
                 return simpleInstruction("DIVIDE", offset);
-            case NOT:
+            case OpCode.NOT:
                 return simpleInstruction("NOT", offset);
-            case NEGATE:
+            case OpCode.NEGATE:
                 return simpleInstruction("NEGATE", offset);
-            case PRINT:
+            case OpCode.ADD_UNCHECKED:
+                return simpleInstruction("ADD_UNCHECKED", offset);
+            case OpCode.SUBTRACT_UNCHECKED:
+                return simpleInstruction("SUBTRACT_UNCHECKED", offset);
+            case OpCode.MULTIPLY_UNCHECKED:
+                return simpleInstruction("MULTIPLY_UNCHECKED", offset);
+            case OpCode.DIVIDE_UNCHECKED:
+                return simpleInstruction("DIVIDE_UNCHECKED", offset);
+            case OpCode.GREATER_UNCHECKED:
+                return simpleInstruction("GREATER_UNCHECKED", offset);
+            case OpCode.LESS_UNCHECKED:
+                return simpleInstruction("LESS_UNCHECKED", offset);
+            case OpCode.NEGATE_UNCHECKED:
+                return simpleInstruction("NEGATE_UNCHECKED", offset);
+            case OpCode.PRINT:
                 return simpleInstruction("PRINT", offset);
-            case JUMP:
+            case OpCode.JUMP:
                 return jumpInstruction("JUMP", 1, chunk, offset);
-            case JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_FALSE:
                 return jumpInstruction("JUMP_IF_FALSE", 1, chunk, offset);
-            case LOOP:
+            case OpCode.JUMP_IF_TRUE:
+                return jumpInstruction("JUMP_IF_TRUE", 1, chunk, offset);
+            case OpCode.GUARD_CALL:
+                return guardInstruction("GUARD_CALL", chunk, offset);
+            case OpCode.GUARD_INVOKE:
+                return guardInstruction("GUARD_INVOKE", chunk, offset);
+            case OpCode.LOOP:
                 return jumpInstruction("LOOP", -1, chunk, offset);
-            case CALL:
+            case OpCode.CALL:
                 return byteInstruction("CALL", chunk, offset);
-            case INVOKE:
+            case OpCode.TAIL_CALL:
+                return byteInstruction("TAIL_CALL", chunk, offset);
+            case OpCode.CALL_ALIAS:
+                return byteInstruction("CALL_ALIAS", chunk, offset);
+            case OpCode.INVOKE:
                 return invokeInstruction("INVOKE", chunk, offset);
-            case SUPER_INVOKE:
+            case OpCode.SUPER_INVOKE:
                 return invokeInstruction("SUPER_INVOKE", chunk, offset);
-            case CLOSURE: {
-                offset++;
-                byte constant = chunk.getCodes().get(offset++);
-                System.out.printf("%-16s %4d ", "CLOSURE", constant);
-                chunk.getConstants().get(constant).print();
-                System.out.println();
-
-                ObjFunction function = (ObjFunction) chunk.getConstants().get(constant).getObj();
-                for (int j = 0; j < function.getUpvalueCount(); j++) {
-                    int isLocal = chunk.getCodes().get(offset++);
-                    int index = chunk.getCodes().get(offset++);
-                    System.out.printf("%04d      |                     %s %d\n",
-                            offset - 2, isLocal != 0 ? "local" : "upvalue", index);
-                }
-
-                return offset;
-            }
-            case CLOSE_UPVALUE:
+            case OpCode.CLOSURE:
+                return closureInstruction("CLOSURE", chunk, offset + 2, chunk.getCodes()[offset + 1] & 0xff);
+            case OpCode.CLOSE_UPVALUE:
                 return simpleInstruction("CLOSE_UPVALUE", offset);
-            case RETURN:
+            case OpCode.RETURN:
                 return simpleInstruction("RETURN", offset);
-            case CLASS:
+            case OpCode.CLASS:
                 return constantInstruction("CLASS", chunk, offset);
-            case INHERIT:
+            case OpCode.INHERIT:
                 return simpleInstruction("INHERIT", offset);
-            case METHOD:
+            case OpCode.METHOD:
                 return constantInstruction("METHOD", chunk, offset);
+            case OpCode.GET_LOCAL_LOCAL:
+                return twoByteInstruction("GET_LOCAL_LOCAL", chunk, offset);
+            case OpCode.GET_LOCAL_CONSTANT:
+                return localConstantInstruction("GET_LOCAL_CONSTANT", chunk, offset);
+            case OpCode.ADD_LOCAL_CONSTANT:
+                return localConstantInstruction("ADD_LOCAL_CONSTANT", chunk, offset);
+            case OpCode.SUBTRACT_LOCAL_CONSTANT:
+                return localConstantInstruction("SUBTRACT_LOCAL_CONSTANT", chunk, offset);
+            case OpCode.INCREMENT_LOCAL:
+                return localConstantInstruction("INCREMENT_LOCAL", chunk, offset);
+            case OpCode.EQUAL_JUMP_IF_FALSE:
+                return jumpInstruction("EQUAL_JUMP_IF_FALSE", 1, chunk, offset);
+            case OpCode.GREATER_JUMP_IF_FALSE:
+                return jumpInstruction("GREATER_JUMP_IF_FALSE", 1, chunk, offset);
+            case OpCode.LESS_JUMP_IF_FALSE:
+                return jumpInstruction("LESS_JUMP_IF_FALSE", 1, chunk, offset);
+            case OpCode.MOVE:
+                return registerInstruction("MOVE", chunk, offset, 2, 0);
+            case OpCode.LOADK:
+                return loadConstantInstruction("LOADK", chunk, offset);
+            case OpCode.LOAD_NIL:
+                return registerInstruction("LOAD_NIL", chunk, offset, 1, 0);
+            case OpCode.LOAD_BOOL:
+                return twoByteInstruction("LOAD_BOOL", chunk, offset);
+            case OpCode.ADD_RK:
+                return registerInstruction("ADD_RK", chunk, offset, 1, 2);
+            case OpCode.SUBTRACT_RK:
+                return registerInstruction("SUBTRACT_RK", chunk, offset, 1, 2);
+            case OpCode.MULTIPLY_RK:
+                return registerInstruction("MULTIPLY_RK", chunk, offset, 1, 2);
+            case OpCode.DIVIDE_RK:
+                return registerInstruction("DIVIDE_RK", chunk, offset, 1, 2);
+            case OpCode.EQUAL_RK:
+                return registerInstruction("EQUAL_RK", chunk, offset, 1, 2);
+            case OpCode.GREATER_RK:
+                return registerInstruction("GREATER_RK", chunk, offset, 1, 2);
+            case OpCode.LESS_RK:
+                return registerInstruction("LESS_RK", chunk, offset, 1, 2);
+            case OpCode.NOT_RK:
+                return registerInstruction("NOT_RK", chunk, offset, 1, 1);
+            case OpCode.NEGATE_RK:
+                return registerInstruction("NEGATE_RK", chunk, offset, 1, 1);
+            case OpCode.TEST_JUMP_IF_FALSE:
+                return registerJumpInstruction("TEST_JUMP_IF_FALSE", chunk, offset, 1);
+            case OpCode.EQUAL_RK_JUMP_IF_FALSE:
+                return registerJumpInstruction("EQUAL_RK_JUMP_IF_FALSE", chunk, offset, 2);
+            case OpCode.GREATER_RK_JUMP_IF_FALSE:
+                return registerJumpInstruction("GREATER_RK_JUMP_IF_FALSE", chunk, offset, 2);
+            case OpCode.LESS_RK_JUMP_IF_FALSE:
+                return registerJumpInstruction("LESS_RK_JUMP_IF_FALSE", chunk, offset, 2);
+            case OpCode.SET_TOP:
+                return byteInstruction("SET_TOP", chunk, offset);
+            case OpCode.WIDE:
+                return wideInstruction(chunk, offset);
             default:
-                System.out.printf("Unknown opcode %d\n", instruction.ordinal());
+                System.out.printf("Unknown opcode %d\n", instruction);
                 return offset + 1;
         }
     }
 
+    private static int wideInstruction(Chunk chunk, int offset) {
+        byte op = chunk.getCodes()[offset + 1];
+        int constant = ((chunk.getCodes()[offset + 2] & 0xff) << 8) | (chunk.getCodes()[offset + 3] & 0xff);
+        String name = constantOpName(op) + "_WIDE";
+        switch (op) {
+            case OpCode.CLOSURE:
+                return closureInstruction(name, chunk, offset + 4, constant);
+            case OpCode.INVOKE:
+            case OpCode.SUPER_INVOKE:
+                System.out.printf("%-16s (%d args) %4d '", name, chunk.getCodes()[offset + 4], constant);
+                chunk.getConstants()[constant].print();
+                System.out.print("'\n");
+                return offset + 5;
+            default:
+                System.out.printf("%-16s %4d '", name, constant);
+                chunk.getConstants()[constant].print();
+                System.out.print("'\n");
+                return offset + 4;
+        }
+    }
+
+    // offset 指向第一个升值操作数
+    private static int closureInstruction(String name, Chunk chunk, int offset, int constant) {
+        System.out.printf("%-16s %4d ", name, constant);
+        chunk.getConstants()[constant].print();
+        System.out.println();
+
+        ObjFunction function = (ObjFunction) chunk.getConstants()[constant].getObj();
+        for (int j = 0; j < function.getUpvalueCount(); j++) {
+            int capture = chunk.getCodes()[offset++];
+            int index = chunk.getCodes()[offset++] & 0xff;
+            String kind = capture == ObjClosure.CAPTURE_VALUE ? "value"
+                    : capture == ObjClosure.CAPTURE_CELL ? "cell" : "upvalue";
+            System.out.printf("%04d      |                     %s %d\n", offset - 2, kind, index);
+        }
+
+        return offset;
+    }
+
     private static int constantInstruction(String name, Chunk chunk, int offset) {
-        byte constant = chunk.getCodes().get(offset + 1);
+        int constant = chunk.getCodes()[offset + 1] & 0xff;
         System.out.printf("%-16s %4d '", name, constant);
-        chunk.getConstants().get(constant).print();
+        chunk.getConstants()[constant].print();
         System.out.print("'\n");
         return offset + 2;
     }
 
+    private static int globalInstruction(String name, Chunk chunk, int offset) {
+        int slot = ((chunk.getCodes()[offset + 1] & 0xff) << 8) | (chunk.getCodes()[offset + 2] & 0xff);
+        System.out.printf("%-16s %4d '%s'\n", name, slot, Lox.vm.getGlobals().getName(slot));
+        return offset + 3;
+    }
+
     private static int simpleInstruction(String name, int offset) {
         System.out.printf("%s\n", name);
         return offset + 1;
     }
 
     private static int byteInstruction(String name, Chunk chunk, int offset) {
-        byte slot = chunk.getCodes().get(offset + 1);
+        byte slot = chunk.getCodes()[offset + 1];
         System.out.printf("%-16s %4d\n", name, slot);
         return offset + 2;
     }
 
+    private static int twoByteInstruction(String name, Chunk chunk, int offset) {
+        byte first = chunk.getCodes()[offset + 1];
+        byte second = chunk.getCodes()[offset + 2];
+        System.out.printf("%-16s %4d %4d\n", name, first, second);
+        return offset + 3;
+    }
+
+    private static int localConstantInstruction(String name, Chunk chunk, int offset) {
+        byte slot = chunk.getCodes()[offset + 1];
+        int constant = chunk.getCodes()[offset + 2] & 0xff;
+        System.out.printf("%-16s %4d %4d '", name, slot, constant);
+        chunk.getConstants()[constant].print();
+        System.out.print("'\n");
+        return offset + 3;
+    }
+
     private static int jumpInstruction(String name, int sign, Chunk chunk, int offset) {
-        short jump = (short) (chunk.getCodes().get(offset + 1) << 8);
-        jump |= chunk.getCodes().get(offset + 2);
+        short jump = (short) ((chunk.getCodes()[offset + 1] & 0xff) << 8);
+        jump |= chunk.getCodes()[offset + 2] & 0xff;
         System.out.printf("%-16s %4d -> %d\n", name, offset, offset + 3 + sign * jump);
         return offset + 3;
     }
 
+    // 寄存器指令: registers 个寄存器操作数之后是 rks 个 RK 操作数
+    private static int registerInstruction(String name, Chunk chunk, int offset, int registers, int rks) {
+        System.out.printf("%-16s", name);
+        for (int i = 0; i < registers; i++) {
+            System.out.printf(" r%d", chunk.getCodes()[offset + 1 + i] & 0xff);
+        }
+        for (int i = 0; i < rks; i++) {
+            printRk(chunk, chunk.getCodes()[offset + 1 + registers + i] & 0xff);
+        }
+        System.out.println();
+        return offset + 1 + registers + rks;
+    }
+
+    private static int registerJumpInstruction(String name, Chunk chunk, int offset, int rks) {
+        System.out.printf("%-16s", name);
+        for (int i = 0; i < rks; i++) {
+            printRk(chunk, chunk.getCodes()[offset + 1 + i] & 0xff);
+        }
+        int at = offset + 1 + rks;
+        int jump = ((chunk.getCodes()[at] & 0xff) << 8) | (chunk.getCodes()[at + 1] & 0xff);
+        System.out.printf(" -> %d\n", at + 2 + jump);
+        return at + 2;
+    }
+
+    private static void printRk(Chunk chunk, int operand) {
+        if ((operand & 0x80) == 0) {
+            System.out.printf(" r%d", operand);
+            return;
+        }
+        System.out.printf(" k%d '", operand & 0x7f);
+        chunk.getConstants()[operand & 0x7f].print();
+        System.out.print("'");
+    }
+
+    private static int loadConstantInstruction(String name, Chunk chunk, int offset) {
+        int register = chunk.getCodes()[offset + 1] & 0xff;
+        int constant = chunk.getCodes()[offset + 2] & 0xff;
+        System.out.printf("%-16s r%d %4d '", name, register, constant);
+        chunk.getConstants()[constant].print();
+        System.out.print("'\n");
+        return offset + 3;
+    }
+
+    private static int guardInstruction(String name, Chunk chunk, int offset) {
+        int argCount = chunk.getCodes()[offset + 1] & 0xff;
+        int constant = chunk.getCodes()[offset + 2] & 0xff;
+        int jump = ((chunk.getCodes()[offset + 3] & 0xff) << 8) | (chunk.getCodes()[offset + 4] & 0xff);
+        System.out.printf("%-16s (%d args) %4d '", name, argCount, constant);
+        chunk.getConstants()[constant].print();
+        System.out.printf("' -> %d\n", offset + 5 + jump);
+        return offset + 5;
+    }
+
     private static int invokeInstruction(String name, Chunk chunk, int offset) {
-        byte constant = chunk.getCodes().get(offset + 1);
-        byte argCount = chunk.getCodes().get(offset + 2);
+        int constant = chunk.getCodes()[offset + 1] & 0xff;
+        byte argCount = chunk.getCodes()[offset + 2];
         System.out.printf("%-16s (%d args) %4d '", name, argCount, constant);
-        chunk.getConstants().get(constant).print();
+        chunk.getConstants()[constant].print();
         System.out.print("'\n");
         return offset + 3;
     }
@@ -0,0 +1,123 @@
+package com.craftinginterpreters.lox.jit;
+
+import java.util.Arrays;
+
+/**
+ * 方法体的 JVM 字节码缓冲
+ * 跳转目标用整数标签表示, 先记录待回填的位置, toByteArray 时统一写入 16 位偏移量
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+final class CodeBuffer {
+
+    // 用到的 JVM 指令
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int LALOAD = 0x2f;
+    static final int AALOAD = 0x32;
+    static final int LSTORE = 0x37;
+    static final int LASTORE = 0x50;
+    static final int AASTORE = 0x53;
+    static final int IADD = 0x60;
+    static final int LADD = 0x61;
+    static final int LSUB = 0x65;
+    static final int LMUL = 0x69;
+    static final int LOR = 0x81;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+
+    // 方法体超过这个长度时 16 位的跳转偏移量可能放不下
+    static final int MAX_LENGTH = Short.MAX_VALUE;
+
+    private byte[] code = new byte[256];
+    private int length;
+
+    private int[] labels = new int[16];
+    private int labelCount;
+
+    // 每两个元素一组: [跳转指令的位置, 标签]
+    private int[] fixups = new int[32];
+    private int fixupCount;
+
+    void op(int opcode) {
+        u1(opcode);
+    }
+
+    void op(int opcode, int operand) {
+        u1(opcode);
+        u1(operand);
+    }
+
+    void u1(int b) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = (byte) b;
+    }
+
+    void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    int newLabel() {
+        if (labelCount == labels.length) {
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        }
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    void mark(int label) {
+        labels[label] = length;
+    }
+
+    void jump(int opcode, int label) {
+        if (fixupCount == fixups.length) {
+            fixups = Arrays.copyOf(fixups, fixupCount * 2);
+        }
+        fixups[fixupCount++] = length;
+        fixups[fixupCount++] = label;
+        u1(opcode);
+        u2(0);
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte[] toByteArray() {
+        for (int i = 0; i < fixupCount; i += 2) {
+            int at = fixups[i];
+            int target = labels[fixups[i + 1]];
+            if (target == -1) {
+                throw new IllegalStateException("Unbound label.");
+            }
+            int offset = target - at;
+            code[at + 1] = (byte) (offset >> 8);
+            code[at + 2] = (byte) offset;
+        }
+        return Arrays.copyOf(code, length);
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox.jit;
+
+import com.craftinginterpreters.lox.objects.Obj;
+import com.craftinginterpreters.lox.value.Value;
+
+/**
+ * 即时编译生成的类实现的接口
+ * 直接在虚拟机的值栈上执行, 从 ip 处的入口开始, 返回解释器应当继续执行的 ip;
+ * 守卫失败时返回 ~ip, 该指令尚未执行
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public interface CompiledCode {
+
+    int run(long[] stack, Obj[] refs, Value[] constants, int base, int ip);
+}
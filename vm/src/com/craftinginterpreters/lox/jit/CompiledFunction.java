@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox.jit;
+
+import com.craftinginterpreters.lox.objects.Obj;
+import com.craftinginterpreters.lox.value.Value;
+
+/**
+ * 一个函数编译后的代码, 以及回到解释器时恢复栈顶所需的各指令处栈深度
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class CompiledFunction {
+
+    // 守卫失败超过这个次数就丢弃编译结果, 这个函数之后一直解释执行
+    private static final int DEOPT_LIMIT = 1000;
+
+    private final CompiledCode code;
+
+    // 按字节码偏移量索引的栈深度, 从栈帧基址算起
+    private final int[] depths;
+
+    private int guardFailures;
+
+    CompiledFunction(CompiledCode code, int[] depths) {
+        this.code = code;
+        this.depths = depths;
+    }
+
+    public int run(long[] stack, Obj[] refs, Value[] constants, int base, int ip) {
+        return this.code.run(stack, refs, constants, base, ip);
+    }
+
+    public int getDepth(int offset) {
+        return this.depths[offset];
+    }
+
+    // 记录一次守卫失败, 返回是否应当放弃编译结果
+    public boolean guardFailed() {
+        return ++this.guardFailures > DEOPT_LIMIT;
+    }
+}
@@ -0,0 +1,34 @@
+package com.craftinginterpreters.lox.jit;
+
+import com.craftinginterpreters.lox.objects.ObjFunction;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分层执行: 统计每个函数的调用次数和循环回边次数, 变热后在后台线程编译成 JVM 类
+ * 编译完成前以及编译失败时, 函数照常由解释器执行
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class Jit {
+
+    // 调用和回边合计达到这个次数时提交编译
+    public static final int HOT_THRESHOLD = 1000;
+
+    private ExecutorService compiler;
+
+    public void profile(ObjFunction function) {
+        if (function.incrementHotness() != HOT_THRESHOLD) return;
+
+        if (this.compiler == null) {
+            this.compiler = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "lox-jit");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.compiler.execute(() -> function.setCompiled(JitCompiler.compile(function)));
+    }
+}
@@ -0,0 +1,558 @@
+package com.craftinginterpreters.lox.jit;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjFunction;
+import com.craftinginterpreters.lox.optimizer.Bytecode;
+import com.craftinginterpreters.lox.optimizer.Insn;
+import com.craftinginterpreters.lox.optimizer.StackDepth;
+import com.craftinginterpreters.lox.value.NanBox;
+import com.craftinginterpreters.lox.value.Value;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.jit.CodeBuffer.*;
+
+/**
+ * 把一个函数的字节码翻译成实现 CompiledCode 的隐藏类
+ *
+ * 生成的代码直接读写虚拟机的 long[] 值栈和 Obj[] 引用数组, 每条指令处的栈深度在编译期已知,
+ * 所以槽位都是 base 加常量, 每条指令结束时值栈的状态和解释器完全一致
+ * 只翻译局部变量、常量、全局变量读取、数字运算、比较、跳转和内联调用点的 GUARD_CALL;
+ * 其他指令 (调用、全局变量赋值、属性、升值、RETURN 等) 以及未定义的全局变量
+ * 编译成返回该指令的偏移量, 由解释器接着执行; 数字运算的类型守卫失败时返回 ~偏移量
+ * 加、减、乘和比较对两个小整数直接生成 int 运算, 只有溢出或者遇到 double 时才调用 NanBox
+ * 入口是函数开头和每个循环头, 解释器在函数调用和循环回边处进入编译后的代码
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class JitCompiler {
+
+    private static final String CLASS_NAME = "com/craftinginterpreters/lox/jit/CompiledLoxFunction";
+    private static final String OBJ = "com/craftinginterpreters/lox/objects/Obj";
+    private static final String VALUE = "com/craftinginterpreters/lox/value/Value";
+    private static final String NAN_BOX = "com/craftinginterpreters/lox/value/NanBox";
+    private static final String RUNTIME = "com/craftinginterpreters/lox/jit/JitRuntime";
+    private static final String RUN_DESCRIPTOR = "([J[L" + OBJ + ";[L" + VALUE + ";II)I";
+
+    // run 方法的局部变量
+    private static final int STACK = 1;
+    private static final int REFS = 2;
+    private static final int CONSTANTS = 3;
+    private static final int BASE = 4;
+    private static final int IP = 5;
+    private static final int A = 6;
+    private static final int B = 8;
+    private static final int RESULT = 10;
+    private static final int MAX_LOCALS = 12;
+    private static final int MAX_STACK = 16;
+
+    private final ClassWriter writer = new ClassWriter();
+    private final CodeBuffer code = new CodeBuffer();
+    private final Value[] constants;
+    private final List<Insn> insns;
+    private final int[] depths;
+    private final int[] labels;
+    private final Map<Insn, Integer> indexes = new IdentityHashMap<>();
+
+    // 每项是 [守卫失败的标签, 指令偏移量]
+    private final List<int[]> guards = new ArrayList<>();
+
+    private JitCompiler(ObjFunction function) {
+        Chunk chunk = function.getChunk();
+        this.constants = chunk.getConstants();
+        this.insns = Bytecode.decode(chunk);
+        this.depths = StackDepth.depths(this.insns, function.getArity());
+        this.labels = new int[this.insns.size()];
+        for (int i = 0; i < this.labels.length; i++) {
+            this.labels[i] = this.code.newLabel();
+            this.indexes.put(this.insns.get(i), i);
+        }
+    }
+
+    /*
+     * 不编译时返回 null: 没有循环的函数, 方法体过长, 或者生成的类无法加载
+     * 没有循环的函数通常在第一条调用或全局变量指令就退回解释器, 进出编译代码的开销比省下的分派还多
+     */
+    public static CompiledFunction compile(ObjFunction function) {
+        JitCompiler compiler = new JitCompiler(function);
+        if (!compiler.hasLoop()) return null;
+        byte[] bytes = compiler.generate();
+        if (bytes == null) return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            CompiledCode code = (CompiledCode) lookup.lookupClass().getDeclaredConstructor().newInstance();
+            return new CompiledFunction(code, compiler.depthsByOffset(function.getChunk().getCount()));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private boolean hasLoop() {
+        for (Insn insn : this.insns) {
+            if (insn.op == OpCode.LOOP) return true;
+        }
+        return false;
+    }
+
+    private int[] depthsByOffset(int count) {
+        int[] byOffset = new int[count];
+        Arrays.fill(byOffset, -1);
+        for (int i = 0; i < this.insns.size(); i++) {
+            byOffset[this.insns.get(i).offset] = this.depths[i];
+        }
+        return byOffset;
+    }
+
+    private byte[] generate() {
+        CodeBuffer init = new CodeBuffer();
+        init.op(ALOAD, 0);
+        init.op(INVOKESPECIAL);
+        init.u2(this.writer.methodRef("java/lang/Object", "<init>", "()V"));
+        init.op(RETURN);
+        this.writer.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+
+        entries();
+        for (int i = 0; i < this.insns.size(); i++) {
+            this.code.mark(this.labels[i]);
+            instruction(this.insns.get(i), this.depths[i]);
+        }
+        for (int[] guard : this.guards) {
+            this.code.mark(guard[0]);
+            pushInt(~guard[1]);
+            this.code.op(IRETURN);
+        }
+        if (this.code.length() > MAX_LENGTH) return null;
+
+        this.writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_FINAL, "run", RUN_DESCRIPTOR,
+                this.code, MAX_STACK, MAX_LOCALS);
+        return this.writer.toByteArray(CLASS_NAME, "java/lang/Object",
+                "com/craftinginterpreters/lox/jit/CompiledCode");
+    }
+
+    // 按传入的 ip 跳到函数开头或循环头, 其他位置原样返回
+    private void entries() {
+        boolean[] entry = new boolean[this.insns.size()];
+        if (!this.insns.isEmpty()) entry[0] = true;
+        for (Insn insn : this.insns) {
+            if (insn.op == OpCode.LOOP) {
+                entry[this.indexes.get(insn.target)] = true;
+            }
+        }
+        for (int i = 0; i < entry.length; i++) {
+            if (!entry[i] || this.depths[i] == -1) continue;
+            this.code.op(ILOAD, IP);
+            pushInt(this.insns.get(i).offset);
+            this.code.jump(IF_ICMPEQ, this.labels[i]);
+        }
+        this.code.op(ILOAD, IP);
+        this.code.op(IRETURN);
+    }
+
+    private void instruction(Insn insn, int depth) {
+        if (depth == -1) {
+            exit(insn);
+            return;
+        }
+        switch (insn.op) {
+            case OpCode.CONSTANT:
+                constant(insn.a, depth);
+                break;
+            case OpCode.NIL:
+                storeConstantBits(depth, NanBox.NIL_VAL);
+                break;
+            case OpCode.TRUE:
+                storeConstantBits(depth, NanBox.TRUE_VAL);
+                break;
+            case OpCode.FALSE:
+                storeConstantBits(depth, NanBox.FALSE_VAL);
+                break;
+            case OpCode.POP:
+                break;
+            case OpCode.GET_LOCAL:
+                copy(insn.a, depth);
+                break;
+            case OpCode.SET_LOCAL:
+                copy(depth - 1, insn.a);
+                break;
+            case OpCode.GET_GLOBAL: {
+                int defined = this.code.newLabel();
+                this.code.op(ALOAD, STACK);
+                this.code.op(ALOAD, REFS);
+                slot(depth);
+                pushInt(insn.a);
+                invokeRuntime("getGlobal", "([J[L" + OBJ + ";II)Z");
+                this.code.jump(IFNE, defined);
+                exit(insn);
+                this.code.mark(defined);
+                break;
+            }
+            case OpCode.GUARD_CALL: {
+                int callee = depth - insn.a - 1;
+                loadBits(callee);
+                loadRef(callee);
+                this.code.op(ALOAD, CONSTANTS);
+                pushInt(insn.b);
+                this.code.op(AALOAD);
+                this.code.op(INVOKEVIRTUAL);
+                this.code.u2(this.writer.methodRef(VALUE, "getObj", "()L" + OBJ + ";"));
+                invokeRuntime("isClosureOf", "(JL" + OBJ + ";L" + OBJ + ";)Z");
+                this.code.jump(IFEQ, label(insn.target));
+                break;
+            }
+            case OpCode.GET_LOCAL_LOCAL:
+                copy(insn.a, depth);
+                copy(insn.b, depth + 1);
+                break;
+            case OpCode.GET_LOCAL_CONSTANT:
+                copy(insn.a, depth);
+                constant(insn.b, depth + 1);
+                break;
+            case OpCode.EQUAL:
+                this.code.op(ALOAD, STACK);
+                slot(depth - 2);
+                valuesEqual(depth);
+                invokeNanBox("bool", "(Z)J");
+                this.code.op(LASTORE);
+                break;
+            case OpCode.GREATER:
+            case OpCode.GREATER_UNCHECKED:
+                compare(insn, depth, IF_ICMPLE, "greater");
+                break;
+            case OpCode.LESS:
+            case OpCode.LESS_UNCHECKED:
+                compare(insn, depth, IF_ICMPGE, "less");
+                break;
+            case OpCode.ADD:
+            case OpCode.ADD_UNCHECKED:
+                arithmetic(insn, depth, LADD, "add");
+                break;
+            case OpCode.SUBTRACT:
+            case OpCode.SUBTRACT_UNCHECKED:
+                arithmetic(insn, depth, LSUB, "subtract");
+                break;
+            case OpCode.MULTIPLY:
+            case OpCode.MULTIPLY_UNCHECKED:
+                arithmetic(insn, depth, LMUL, "multiply");
+                break;
+            case OpCode.DIVIDE:
+            case OpCode.DIVIDE_UNCHECKED:
+                arithmetic(insn, depth, -1, "divide");
+                break;
+            case OpCode.NOT:
+                this.code.op(ALOAD, STACK);
+                slot(depth - 1);
+                loadBits(depth - 1);
+                invokeNanBox("isFalsey", "(J)Z");
+                invokeNanBox("bool", "(Z)J");
+                this.code.op(LASTORE);
+                break;
+            case OpCode.NEGATE:
+            case OpCode.NEGATE_UNCHECKED:
+                loadBits(depth - 1);
+                this.code.op(LSTORE, A);
+                guardNumber(A, insn);
+                this.code.op(ALOAD, STACK);
+                slot(depth - 1);
+                this.code.op(LLOAD, A);
+                invokeNanBox("negate", "(J)J");
+                this.code.op(LASTORE);
+                break;
+            case OpCode.ADD_LOCAL_CONSTANT:
+            case OpCode.SUBTRACT_LOCAL_CONSTANT:
+            case OpCode.INCREMENT_LOCAL: {
+                Value constant = this.constants[insn.b];
+                if (!constant.isNumber()) {
+                    exit(insn);
+                    break;
+                }
+                loadBits(insn.a);
+                this.code.op(LSTORE, A);
+                ldc2(constant.getBits());
+                this.code.op(LSTORE, B);
+                if (insn.op == OpCode.SUBTRACT_LOCAL_CONSTANT) {
+                    operate(insn, LSUB, "subtract");
+                } else {
+                    operate(insn, LADD, "add");
+                }
+                storeResult(insn.op == OpCode.INCREMENT_LOCAL ? insn.a : depth);
+                break;
+            }
+            case OpCode.JUMP:
+            case OpCode.LOOP:
+                this.code.jump(GOTO, label(insn.target));
+                break;
+            case OpCode.JUMP_IF_FALSE:
+                loadBits(depth - 1);
+                invokeNanBox("isFalsey", "(J)Z");
+                this.code.jump(IFNE, label(insn.target));
+                break;
+            case OpCode.JUMP_IF_TRUE:
+                loadBits(depth - 1);
+                invokeNanBox("isFalsey", "(J)Z");
+                this.code.jump(IFEQ, label(insn.target));
+                break;
+            case OpCode.EQUAL_JUMP_IF_FALSE:
+                valuesEqual(depth);
+                this.code.jump(IFEQ, label(insn.target));
+                break;
+            case OpCode.GREATER_JUMP_IF_FALSE:
+                loadOperands(depth);
+                jumpUnless(insn, IF_ICMPLE, "greater", label(insn.target));
+                break;
+            case OpCode.LESS_JUMP_IF_FALSE:
+                loadOperands(depth);
+                jumpUnless(insn, IF_ICMPGE, "less", label(insn.target));
+                break;
+            default:
+                exit(insn);
+                break;
+        }
+    }
+
+    // 栈顶两个数字运算后写回 depth - 2
+    private void arithmetic(Insn insn, int depth, int opcode, String helper) {
+        loadOperands(depth);
+        operate(insn, opcode, helper);
+        storeResult(depth - 2);
+    }
+
+    /*
+     * A、B 两个操作数运算, 结果放在局部变量 RESULT
+     * 两个小整数时直接按 long 运算, 结果仍在 int 范围内 (乘法还要求不是 -0) 就打包成小整数, 不用检查类型;
+     * 其他情况检查两个操作数都是数字, 再调用 NanBox 中名为 helper 的方法, 和解释器的结果一样
+     * opcode 为 -1 时 (除法) 没有小整数的快速路径
+     */
+    private void operate(Insn insn, int opcode, String helper) {
+        int slow = this.code.newLabel();
+        int done = this.code.newLabel();
+        if (opcode != -1) {
+            this.code.op(LLOAD, A);
+            this.code.op(LLOAD, B);
+            invokeNanBox("bothInts", "(JJ)Z");
+            this.code.jump(IFEQ, slow);
+            this.code.op(LLOAD, A);
+            this.code.op(L2I);
+            this.code.op(I2L);
+            this.code.op(LLOAD, B);
+            this.code.op(L2I);
+            this.code.op(I2L);
+            this.code.op(opcode);
+            this.code.op(LSTORE, RESULT);
+            this.code.op(LLOAD, RESULT);
+            this.code.op(L2I);
+            this.code.op(I2L);
+            this.code.op(LLOAD, RESULT);
+            this.code.op(LCMP);
+            this.code.jump(IFNE, slow);
+            if (opcode == LMUL) {
+                // 0 乘负数在 double 里是 -0
+                int nonzero = this.code.newLabel();
+                this.code.op(LLOAD, RESULT);
+                this.code.op(L2I);
+                this.code.jump(IFNE, nonzero);
+                this.code.op(LLOAD, A);
+                this.code.op(LLOAD, B);
+                this.code.op(LOR);
+                this.code.op(L2I);
+                this.code.jump(IFLT, slow);
+                this.code.mark(nonzero);
+            }
+            this.code.op(LLOAD, RESULT);
+            this.code.op(L2I);
+            invokeNanBox("smallInt", "(I)J");
+            this.code.op(LSTORE, RESULT);
+            this.code.jump(GOTO, done);
+        }
+        this.code.mark(slow);
+        guardNumber(A, insn);
+        guardNumber(B, insn);
+        this.code.op(LLOAD, A);
+        this.code.op(LLOAD, B);
+        invokeNanBox(helper, "(JJ)J");
+        this.code.op(LSTORE, RESULT);
+        this.code.mark(done);
+    }
+
+    // 栈顶两个数字比较, 结果写回 depth - 2
+    private void compare(Insn insn, int depth, int opcode, String helper) {
+        int no = this.code.newLabel();
+        int done = this.code.newLabel();
+        loadOperands(depth);
+        jumpUnless(insn, opcode, helper, no);
+        storeConstantBits(depth - 2, NanBox.TRUE_VAL);
+        this.code.jump(GOTO, done);
+        this.code.mark(no);
+        storeConstantBits(depth - 2, NanBox.FALSE_VAL);
+        this.code.mark(done);
+    }
+
+    /*
+     * A、B 比较不成立时跳到 target
+     * 两个小整数时用 opcode (条件相反的 IF_ICMP 指令) 直接比较 int;
+     * 其他情况检查两个操作数都是数字, 再调用 NanBox 中名为 helper 的方法
+     */
+    private void jumpUnless(Insn insn, int opcode, String helper, int target) {
+        int slow = this.code.newLabel();
+        int done = this.code.newLabel();
+        this.code.op(LLOAD, A);
+        this.code.op(LLOAD, B);
+        invokeNanBox("bothInts", "(JJ)Z");
+        this.code.jump(IFEQ, slow);
+        this.code.op(LLOAD, A);
+        this.code.op(L2I);
+        this.code.op(LLOAD, B);
+        this.code.op(L2I);
+        this.code.jump(opcode, target);
+        this.code.jump(GOTO, done);
+        this.code.mark(slow);
+        guardNumber(A, insn);
+        guardNumber(B, insn);
+        this.code.op(LLOAD, A);
+        this.code.op(LLOAD, B);
+        invokeNanBox(helper, "(JJ)Z");
+        this.code.jump(IFEQ, target);
+        this.code.mark(done);
+    }
+
+    // 把栈顶两个值读入局部变量 A、B
+    private void loadOperands(int depth) {
+        loadBits(depth - 2);
+        this.code.op(LSTORE, A);
+        loadBits(depth - 1);
+        this.code.op(LSTORE, B);
+    }
+
+    private void storeResult(int slot) {
+        this.code.op(ALOAD, STACK);
+        slot(slot);
+        this.code.op(LLOAD, RESULT);
+        this.code.op(LASTORE);
+    }
+
+    // 把 depth - 2 和 depth - 1 两个值按 NanBox.valuesEqual 比较, 结果留在操作数栈上
+    private void valuesEqual(int depth) {
+        loadBits(depth - 2);
+        loadRef(depth - 2);
+        loadBits(depth - 1);
+        loadRef(depth - 1);
+        invokeNanBox("valuesEqual", "(JL" + OBJ + ";JL" + OBJ + ";)Z");
+    }
+
+    private void constant(int index, int slot) {
+        Value value = this.constants[index];
+        storeConstantBits(slot, value.getBits());
+        if (value.getObj() == null) return;
+        this.code.op(ALOAD, REFS);
+        slot(slot);
+        this.code.op(ALOAD, CONSTANTS);
+        pushInt(index);
+        this.code.op(AALOAD);
+        this.code.op(INVOKEVIRTUAL);
+        this.code.u2(this.writer.methodRef(VALUE, "getObj", "()L" + OBJ + ";"));
+        this.code.op(AASTORE);
+    }
+
+    private void storeConstantBits(int slot, long bits) {
+        this.code.op(ALOAD, STACK);
+        slot(slot);
+        ldc2(bits);
+        this.code.op(LASTORE);
+    }
+
+    private void copy(int from, int to) {
+        this.code.op(ALOAD, STACK);
+        slot(to);
+        loadBits(from);
+        this.code.op(LASTORE);
+        this.code.op(ALOAD, REFS);
+        slot(to);
+        loadRef(from);
+        this.code.op(AASTORE);
+    }
+
+    private void loadBits(int slot) {
+        this.code.op(ALOAD, STACK);
+        slot(slot);
+        this.code.op(LALOAD);
+    }
+
+    private void loadRef(int slot) {
+        this.code.op(ALOAD, REFS);
+        slot(slot);
+        this.code.op(AALOAD);
+    }
+
+    private void guardNumber(int local, Insn insn) {
+        // 不检查类型的指令在编译期已经证明操作数是数字
+        if (OpCode.checked(insn.op) != insn.op) return;
+        this.code.op(LLOAD, local);
+        invokeNanBox("isNumber", "(J)Z");
+        this.code.jump(IFEQ, guard(insn));
+    }
+
+    private int guard(Insn insn) {
+        int label = this.code.newLabel();
+        this.guards.add(new int[]{label, insn.offset});
+        return label;
+    }
+
+    // 交给解释器从这条指令继续执行
+    private void exit(Insn insn) {
+        pushInt(insn.offset);
+        this.code.op(IRETURN);
+    }
+
+    // 值栈下标 base + slot
+    private void slot(int slot) {
+        this.code.op(ILOAD, BASE);
+        if (slot == 0) return;
+        pushInt(slot);
+        this.code.op(IADD);
+    }
+
+    private int label(Insn target) {
+        return this.labels[this.indexes.get(target)];
+    }
+
+    private void invokeNanBox(String name, String descriptor) {
+        this.code.op(INVOKESTATIC);
+        this.code.u2(this.writer.methodRef(NAN_BOX, name, descriptor));
+    }
+
+    private void invokeRuntime(String name, String descriptor) {
+        this.code.op(INVOKESTATIC);
+        this.code.u2(this.writer.methodRef(RUNTIME, name, descriptor));
+    }
+
+    private void ldc2(long value) {
+        this.code.op(LDC2_W);
+        this.code.u2(this.writer.longConstant(value));
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            this.code.op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            this.code.op(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            this.code.op(SIPUSH);
+            this.code.u2(value);
+        } else {
+            int index = this.writer.intConstant(value);
+            if (index <= 0xff) {
+                this.code.op(LDC, index);
+            } else {
+                this.code.op(LDC_W);
+                this.code.u2(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.craftinginterpreters.lox.jit;
+
+import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.objects.Obj;
+import com.craftinginterpreters.lox.objects.ObjClosure;
+import com.craftinginterpreters.lox.value.NanBox;
+import com.craftinginterpreters.lox.vm.Globals;
+
+/**
+ * 生成的代码调用的辅助方法, 足够小, 会被 HotSpot 内联
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+final class JitRuntime {
+
+    private JitRuntime() {}
+
+    // 把全局变量读到值栈的 slot 处; 未定义时返回 false, 交给解释器报错
+    static boolean getGlobal(long[] stack, Obj[] refs, int slot, int global) {
+        Globals globals = Lox.vm.getGlobals();
+        long bits = globals.getBits(global);
+        if (bits == NanBox.UNDEFINED_VAL) return false;
+        stack[slot] = bits;
+        refs[slot] = globals.getRef(global);
+        return true;
+    }
+
+    // 内联调用点的守卫: 被调用者是 function 的闭包
+    static boolean isClosureOf(long bits, Obj ref, Obj function) {
+        return NanBox.isObj(bits) && ref instanceof ObjClosure && ((ObjClosure) ref).getFunction() == function;
+    }
+}
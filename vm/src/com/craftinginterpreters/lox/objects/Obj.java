@@ -7,13 +7,19 @@ import com.craftinginterpreters.lox.value.ValueType;
  * @author hlx
  * @date 2023-07-27
  */
-public interface Obj {
+public abstract class Obj {
 
-    ObjType getType();
+    // 装箱后的值只创建一次, 存入字段、全局变量时不再重复分配
+    private Value value;
 
-    void print();
+    public abstract ObjType getType();
 
-    default Value toValue() {
-        return new Value(ValueType.OBJ, this);
+    public abstract void print();
+
+    public Value toValue() {
+        if (this.value == null) {
+            this.value = new Value(ValueType.OBJ, this);
+        }
+        return this.value;
     }
 }
@@ -6,7 +6,7 @@ import com.craftinginterpreters.lox.value.Value;
  * @author hlx
  * @date 2023-08-17
  */
-public class ObjBoundMethod implements Obj {
+public class ObjBoundMethod extends Obj {
 
     private final Value receiver;
 
@@ -1,23 +1,43 @@
 package com.craftinginterpreters.lox.objects;
 
-import com.craftinginterpreters.lox.value.Value;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
+ * 类的方法表是按选择子编号索引的数组 (见 Selectors), 按名字查找也是先取名字的编号再取下标
+ * 子类继承时直接共享父类的数组, 第一次定义自己的方法时才复制, 只覆盖少数方法的深层继承链不必逐层拷贝
+ * 实例化的快速路径: 初始化方法单独缓存, 在 METHOD 和 INHERIT 时更新;
+ * 记录实例出现过的最多字段数, 新实例的字段数组按它预分配
+ *
  * @author hlx
  * @date 2023-07-27
  */
-public class ObjClass implements Obj {
+public class ObjClass extends Obj {
+
+    private static final ObjClosure[] NO_METHODS = new ObjClosure[0];
 
     private final ObjString name;
 
-    private final Map<ObjString, Value> methods;
+    private ObjClosure[] methods;
+
+    // methods 与父类或子类共享, 修改前要复制
+    private boolean sharedMethods;
+
+    // 初始化方法, 没有时为 null
+    private ObjClosure initializer;
+
+    // 本类实例的初始 Shape, 各实例的字段布局从这里转移出来
+    private final Shape rootShape;
+
+    // 本类实例出现过的最多字段数
+    private int fieldCapacity;
+
+    // 方法表每次修改都加一, 内联缓存据此判断缓存的方法是否失效
+    private int version;
 
     public ObjClass(ObjString name) {
         this.name = name;
-        methods = new HashMap<>();
+        methods = NO_METHODS;
+        rootShape = new Shape();
     }
 
     @Override
@@ -34,8 +54,58 @@ public class ObjClass implements Obj {
         return name;
     }
 
-    public Map<ObjString, Value> getMethods() {
-        return methods;
+    // 没有这个方法时返回 null
+    public ObjClosure getMethod(ObjString name) {
+        return getMethod(name.getSelector());
+    }
+
+    public ObjClosure getMethod(int selector) {
+        return selector >= 0 && selector < methods.length ? methods[selector] : null;
+    }
+
+    // name 必须已经分配了选择子
+    public void putMethod(ObjString name, ObjClosure method) {
+        int selector = name.getSelector();
+        if (sharedMethods || selector >= methods.length) {
+            methods = Arrays.copyOf(methods, Math.max(methods.length, selector + 1));
+            sharedMethods = false;
+        }
+        methods[selector] = method;
+        version++;
+    }
+
+    public void inheritMethods(ObjClass superclass) {
+        methods = superclass.methods;
+        sharedMethods = true;
+        superclass.sharedMethods = true;
+        initializer = superclass.initializer;
+        version++;
+    }
+
+    public ObjClosure getInitializer() {
+        return initializer;
+    }
+
+    public void setInitializer(ObjClosure initializer) {
+        this.initializer = initializer;
+    }
+
+    public int getFieldCapacity() {
+        return fieldCapacity;
+    }
+
+    void observeFieldCount(int count) {
+        if (count > fieldCapacity) {
+            fieldCapacity = count;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public Shape getRootShape() {
+        return rootShape;
     }
 
 }
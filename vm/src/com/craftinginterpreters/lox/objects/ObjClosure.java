@@ -1,27 +1,34 @@
 package com.craftinginterpreters.lox.objects;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
+ * 扁平闭包: 每个捕获的变量占一项, 只包含函数体实际用到的变量
+ * 从未被赋值的变量在创建闭包时按值复制 (位模式和对象引用),
+ * 被赋值过的变量存放共享的 ObjUpvalue 单元, 这时 upvalues 中对应的位模式不用
+ *
  * @author hlx
  * @date 2023-07-27
  */
-public class ObjClosure implements Obj {
+public class ObjClosure extends Obj {
+
+    // CLOSURE 指令中每个捕获变量的捕获方式
+    public static final byte CAPTURE_UPVALUE = 0;   // 复制外层闭包的一项
+    public static final byte CAPTURE_CELL = 1;      // 外层函数的局部变量, 通过单元共享
+    public static final byte CAPTURE_VALUE = 2;     // 外层函数的局部变量, 按值复制
+
+    private static final long[] NO_UPVALUES = new long[0];
+    private static final Obj[] NO_UPVALUE_REFS = new Obj[0];
 
     private final ObjFunction function;
 
-    private final List<ObjUpvalue> upvalues;
+    private final long[] upvalues;
 
-    private final int upvalueCount;
+    private final Obj[] upvalueRefs;
 
     public ObjClosure(ObjFunction function) {
         this.function = function;
-        this.upvalueCount = function.getUpvalueCount();
-        this.upvalues = new ArrayList<>();
-        for (int i = 0; i < upvalueCount; i++) {
-            this.upvalues.add(new ObjUpvalue());
-        }
+        int upvalueCount = function.getUpvalueCount();
+        this.upvalues = upvalueCount == 0 ? NO_UPVALUES : new long[upvalueCount];
+        this.upvalueRefs = upvalueCount == 0 ? NO_UPVALUE_REFS : new Obj[upvalueCount];
     }
 
     @Override
@@ -38,12 +45,22 @@ public class ObjClosure implements Obj {
         return function;
     }
 
-    public List<ObjUpvalue> getUpvalues() {
-        return upvalues;
+    public int getUpvalueCount() {
+        return upvalues.length;
     }
 
-    public int getUpvalueCount() {
-        return upvalueCount;
+    public long getUpvalue(int index) {
+        return upvalues[index];
+    }
+
+    // 是 ObjUpvalue 时该项是共享单元
+    public Obj getUpvalueRef(int index) {
+        return upvalueRefs[index];
+    }
+
+    public void setUpvalue(int index, long value, Obj ref) {
+        upvalues[index] = value;
+        upvalueRefs[index] = ref;
     }
 
 }
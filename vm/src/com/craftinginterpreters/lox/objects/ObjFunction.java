@@ -1,18 +1,26 @@
 package com.craftinginterpreters.lox.objects;
 
 import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.jit.CompiledFunction;
 
 /**
  * @author hlx
  * @date 2023-07-27
  */
-public class ObjFunction implements Obj {
+public class ObjFunction extends Obj {
 
     private int arity;
     private int upvalueCount;
+    private int maxSlots;   // 执行时最多占用的值栈槽位数, 由编译器在结束时计算
     private final Chunk chunk;
     private ObjString name;
 
+    // 调用和循环回边的次数, 由 Jit 统计
+    private int hotness;
+
+    // 后台线程编译完成后发布, 为 null 时解释执行
+    private volatile CompiledFunction compiled;
+
     @Override
     public ObjType getType() {
         return ObjType.FUNCTION;
@@ -50,6 +58,14 @@ public class ObjFunction implements Obj {
         this.upvalueCount = upvalueCount;
     }
 
+    public int getMaxSlots() {
+        return maxSlots;
+    }
+
+    public void setMaxSlots(int maxSlots) {
+        this.maxSlots = maxSlots;
+    }
+
     public Chunk getChunk() {
         return chunk;
     }
@@ -61,4 +77,16 @@ public class ObjFunction implements Obj {
     public void setName(ObjString name) {
         this.name = name;
     }
+
+    public int incrementHotness() {
+        return ++hotness;
+    }
+
+    public CompiledFunction getCompiled() {
+        return compiled;
+    }
+
+    public void setCompiled(CompiledFunction compiled) {
+        this.compiled = compiled;
+    }
 }
@@ -2,22 +2,35 @@ package com.craftinginterpreters.lox.objects;
 
 import com.craftinginterpreters.lox.value.Value;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
+ * 字段值按 shape 的槽位存放, 和虚拟机栈一样拆成位模式和对象引用两个数组, 读写字段不分配 Value
+ * 数组按类记录的字段数预分配, 构造函数里逐个添加字段时不需要扩容
+ *
  * @author hlx
  * @date 2023-08-17
  */
-public class ObjInstance implements Obj {
+public class ObjInstance extends Obj {
+
+    private static final long[] NO_FIELDS = new long[0];
+    private static final Obj[] NO_FIELD_REFS = new Obj[0];
 
     private final ObjClass klass;
 
-    private final Map<ObjString, Value> fields;
+    private Shape shape;
+
+    // 长度可能大于字段数
+    private long[] fields;
+
+    private Obj[] fieldRefs;
 
     public ObjInstance(ObjClass klass){
         this.klass = klass;
-        this.fields = new HashMap<>();
+        this.shape = klass.getRootShape();
+        int capacity = klass.getFieldCapacity();
+        this.fields = capacity == 0 ? NO_FIELDS : new long[capacity];
+        this.fieldRefs = capacity == 0 ? NO_FIELD_REFS : new Obj[capacity];
     }
 
     @Override
@@ -34,8 +47,41 @@ public class ObjInstance implements Obj {
         return klass;
     }
 
-    public Map<ObjString, Value> getFields() {
-        return fields;
+    public Shape getShape() {
+        return shape;
+    }
+
+    // 没有这个字段时返回 null
+    public Value getField(ObjString name) {
+        int slot = shape.lookup(name);
+        return slot == -1 ? null : Value.of(fields[slot], fieldRefs[slot]);
+    }
+
+    // 添加一个新字段, next 必须是当前 Shape 的转移
+    public void addField(Shape next, long value, Obj ref) {
+        int slot = shape.getFieldCount();
+        if (slot == fields.length) {
+            int capacity = Math.max(4, slot * 2);
+            fields = Arrays.copyOf(fields, capacity);
+            fieldRefs = Arrays.copyOf(fieldRefs, capacity);
+        }
+        fields[slot] = value;
+        fieldRefs[slot] = ref;
+        shape = next;
+        klass.observeFieldCount(slot + 1);
+    }
+
+    public long getFieldAt(int slot) {
+        return fields[slot];
+    }
+
+    public Obj getFieldRefAt(int slot) {
+        return fieldRefs[slot];
+    }
+
+    public void setFieldAt(int slot, long value, Obj ref) {
+        fields[slot] = value;
+        fieldRefs[slot] = ref;
     }
 
 }
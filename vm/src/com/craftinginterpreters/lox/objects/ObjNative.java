@@ -4,7 +4,7 @@ package com.craftinginterpreters.lox.objects;
  * @author hlx
  * @date 2023-08-17
  */
-public class ObjNative implements Obj{
+public class ObjNative extends Obj {
 
     private final NativeFn function;
 
@@ -2,33 +2,94 @@ package com.craftinginterpreters.lox.objects;
 
 import com.craftinginterpreters.lox.Lox;
 
+import java.util.ArrayDeque;
+
 /**
+ * 字符串都经过虚拟机的驻留表创建, 内容相同即同一个对象, equals 沿用引用比较
+ * 例外是拼接产生的绳索: 拼接时只记录左右两半, 直到哈希、比较或打印时才展平并驻留,
+ * 这样在循环里不断 s = s + x 是线性的
+ *
  * @author hlx
  * @date 2023-08-05
  */
-public class ObjString implements Obj {
+public class ObjString extends Obj {
+
+    // 两边都是长度不超过这个值的平坦字符串时直接拼接, 不值得建绳索节点
+    private static final int ROPE_MIN_LENGTH = 64;
+
+    // 绳索展平前为 null
+    private String string;
+
+    // 未展平的绳索的左右两半, 展平后清空以释放子节点
+    private ObjString left;
+
+    private ObjString right;
 
-    private final String string;
+    private final int length;
 
-    public ObjString(String string){
+    private int hash;
+
+    // 驻留表中内容相同的那个字符串, 驻留表创建的字符串就是自己
+    private ObjString interned;
+
+    // 用作方法名时的选择子编号, 见 Selectors
+    private int selector = -1;
+
+    ObjString(String string, int hash) {
         this.string = string;
+        this.length = string.length();
+        this.hash = hash;
+        this.interned = this;
+    }
+
+    private ObjString(ObjString left, ObjString right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
     }
 
     public static ObjString copyString(String string) {
-        return new ObjString(string);
+        return Lox.vm.getStrings().intern(string);
+    }
+
+    public static ObjString concat(StringTable strings, ObjString a, ObjString b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        if (a.string != null && b.string != null && a.length + b.length <= ROPE_MIN_LENGTH) {
+            return strings.intern(a.string + b.string);
+        }
+        return new ObjString(a, b);
+    }
+
+    // 驻留后的字符串, 内容相同的字符串返回同一个对象
+    public ObjString intern() {
+        if (this.interned == null) {
+            this.interned = Lox.vm.getStrings().intern(this);
+        }
+        return this.interned;
+    }
+
+    // 两个字符串内容是否相同, 长度不同时不必展平
+    public boolean contentEquals(ObjString other) {
+        if (this == other) return true;
+        if (this.length != other.length) return false;
+        return intern() == other.intern();
+    }
+
+    // 由驻留表调用, 这个展平后的绳索成为该内容的代表
+    void markInterned(int hash) {
+        this.hash = hash;
+        this.interned = this;
     }
 
     @Override
     public int hashCode() {
-        return string.hashCode();
+        return intern().hash;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if (!(obj instanceof  ObjString)) {
-            throw new RuntimeException();
-        }
-        return string.equals(((ObjString) obj).string);
+    // 驻留过的字符串的哈希值, 供 Table 直接读取
+    int hash() {
+        return hash;
     }
 
     @Override
@@ -38,15 +99,49 @@ public class ObjString implements Obj {
 
     @Override
     public void print() {
-        System.out.print(this.string);
+        System.out.print(getString());
     }
 
     public String getString() {
+        if (this.string == null) {
+            flatten();
+        }
         return string;
     }
 
+    public int length() {
+        return length;
+    }
+
+    public int getSelector() {
+        return selector;
+    }
+
+    void setSelector(int selector) {
+        this.selector = selector;
+    }
+
+    // 用显式栈按从左到右的顺序收集叶子, 很深的绳索也不会栈溢出
+    private void flatten() {
+        StringBuilder builder = new StringBuilder(this.length);
+        ArrayDeque<ObjString> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            ObjString node = pending.pop();
+            if (node.string != null) {
+                builder.append(node.string);
+            } else {
+                pending.push(node.right);
+                pending.push(node.left);
+            }
+        }
+        this.string = builder.toString();
+        this.left = null;
+        this.right = null;
+    }
+
     @Override
     public String toString() {
-        return string;
+        return getString();
     }
 }
@@ -1,29 +1,30 @@
 package com.craftinginterpreters.lox.objects;
 
-import com.craftinginterpreters.lox.value.Value;
-
-import java.util.List;
-
 /**
+ * 被赋值过的捕获变量共享的单元
+ * 打开时值还在栈上的 location 槽位, 变量离开作用域时关闭, 值移到单元自身
+ * 打开的单元组成双向链表, 头部是最近打开的, 关闭任意一个都是 O(1)
+ *
  * @author hlx
  * @date 2023-07-27
  */
-public class ObjUpvalue implements Obj {
+public class ObjUpvalue extends Obj {
 
+    // 关闭后为 -1
     private int location;
 
-    private Value closed;
+    private long closed;
+
+    private Obj closedRef;
+
+    private ObjUpvalue prev;
 
     private ObjUpvalue next;
 
     public ObjUpvalue(int location) {
-        this.closed = new Value();
         this.location = location;
-        this.next = null;
     }
 
-    public ObjUpvalue(){}
-
     @Override
     public ObjType getType() {
         return ObjType.UPVALUE;
@@ -34,20 +35,39 @@ public class ObjUpvalue implements Obj {
         System.out.print("upvalue");
     }
 
+    public boolean isOpen() {
+        return location != -1;
+    }
+
     public int getLocation() {
         return location;
     }
 
-    public void setLocation(int location) {
-        this.location = location;
+    public long getClosed() {
+        return closed;
     }
 
-    public Value getClosed() {
-        return closed;
+    public Obj getClosedRef() {
+        return closedRef;
     }
 
-    public void setClosed(Value closed) {
+    public void setClosed(long closed, Obj closedRef) {
         this.closed = closed;
+        this.closedRef = closedRef;
+    }
+
+    public void close(long value, Obj ref) {
+        this.location = -1;
+        this.closed = value;
+        this.closedRef = ref;
+    }
+
+    public ObjUpvalue getPrev() {
+        return prev;
+    }
+
+    public void setPrev(ObjUpvalue prev) {
+        this.prev = prev;
     }
 
     public ObjUpvalue getNext() {
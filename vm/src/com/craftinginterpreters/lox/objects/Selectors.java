@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox.objects;
+
+import java.util.Arrays;
+
+/**
+ * 方法选择子
+ * 编译方法声明时给方法名分配从 0 开始的连续编号, 记在驻留的方法名字符串上, 类的方法表按编号索引
+ * 这里强引用所有方法名, 驻留表中同名的字符串始终是带编号的那一个
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class Selectors {
+
+    private ObjString[] names = new ObjString[16];
+
+    private int count;
+
+    public int assign(ObjString name) {
+        if (name.getSelector() != -1) return name.getSelector();
+
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+        }
+        names[count] = name;
+        name.setSelector(count);
+        return count++;
+    }
+
+    public ObjString getName(int selector) {
+        return names[selector];
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
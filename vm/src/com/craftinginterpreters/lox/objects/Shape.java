@@ -0,0 +1,73 @@
+package com.craftinginterpreters.lox.objects;
+
+/**
+ * 实例的隐藏类
+ * 字段插入顺序相同的实例共享同一个 Shape, 字段值按 Shape 分配的槽位存放在实例的数组里
+ * 添加字段时沿着父 Shape 上缓存的转移走到子 Shape
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class Shape {
+
+    // 字段不多时线性查找比哈希更快, 超过这个数量才建立索引表; 字段名都已驻留, 直接比较引用
+    private static final int LINEAR_LOOKUP_MAX = 8;
+
+    private final ObjString[] keys;
+
+    private Table<Integer> slots;
+
+    private Table<Shape> transitions;
+
+    public Shape() {
+        this.keys = new ObjString[0];
+    }
+
+    private Shape(Shape parent, ObjString key) {
+        int count = parent.keys.length;
+        this.keys = new ObjString[count + 1];
+        System.arraycopy(parent.keys, 0, this.keys, 0, count);
+        this.keys[count] = key;
+    }
+
+    public int lookup(ObjString name) {
+        ObjString[] keys = this.keys;
+        if (keys.length <= LINEAR_LOOKUP_MAX) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == name) return i;
+            }
+            return -1;
+        }
+
+        if (this.slots == null) {
+            this.slots = new Table<>();
+            for (int i = 0; i < keys.length; i++) {
+                this.slots.put(keys[i], i);
+            }
+        }
+        Integer slot = this.slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // 添加字段后的 Shape, 新字段占用槽位 getFieldCount()
+    public Shape transition(ObjString name) {
+        if (this.transitions == null) {
+            this.transitions = new Table<>();
+        }
+        Shape next = this.transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            this.transitions.put(name, next);
+        }
+        return next;
+    }
+
+    public int getFieldCount() {
+        return keys.length;
+    }
+
+    public ObjString getKey(int slot) {
+        return keys[slot];
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.craftinginterpreters.lox.objects;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * 字符串驻留表
+ * 内容相同的字符串只存在一个 ObjString, 字符串比较退化为引用比较
+ * 表项是弱引用, 不可达的字符串被回收后在下一次驻留时从表中清除
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class StringTable {
+
+    private static final float MAX_LOAD = 0.75f;
+
+    private static final class Entry extends WeakReference<ObjString> {
+        private final int hash;
+        private Entry next;
+
+        Entry(ObjString string, int hash, ReferenceQueue<ObjString> queue, Entry next) {
+            super(string, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private final ReferenceQueue<ObjString> queue = new ReferenceQueue<>();
+
+    private Entry[] buckets = new Entry[16];
+
+    private int count;
+
+    public ObjString intern(String chars) {
+        expunge();
+
+        int hash = hashString(chars);
+        ObjString string = find(chars, hash);
+        if (string == null) {
+            string = new ObjString(chars, hash);
+            add(string, hash);
+        }
+        return string;
+    }
+
+    // 驻留一个拼接出来的绳索, 已有相同内容时返回已有的字符串, 否则绳索本身成为代表
+    ObjString intern(ObjString rope) {
+        expunge();
+
+        String chars = rope.getString();
+        int hash = hashString(chars);
+        ObjString string = find(chars, hash);
+        if (string == null) {
+            rope.markInterned(hash);
+            add(rope, hash);
+            string = rope;
+        }
+        return string;
+    }
+
+    private ObjString find(String chars, int hash) {
+        for (Entry entry = buckets[hash & (buckets.length - 1)]; entry != null; entry = entry.next) {
+            if (entry.hash != hash) continue;
+            ObjString string = entry.get();
+            if (string != null && string.getString().equals(chars)) return string;
+        }
+        return null;
+    }
+
+    private void add(ObjString string, int hash) {
+        if (count + 1 > buckets.length * MAX_LOAD) {
+            resize();
+        }
+        int index = hash & (buckets.length - 1);
+        buckets[index] = new Entry(string, hash, queue, buckets[index]);
+        count++;
+    }
+
+    public int getCount() {
+        expunge();
+        return count;
+    }
+
+    // FNV-1a, 只在驻留时计算一次, 之后由 ObjString 缓存
+    private static int hashString(String chars) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < chars.length(); i++) {
+            hash ^= chars.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private void resize() {
+        Entry[] old = buckets;
+        buckets = new Entry[old.length * 2];
+        for (Entry head : old) {
+            for (Entry entry = head; entry != null; ) {
+                Entry next = entry.next;
+                int index = entry.hash & (buckets.length - 1);
+                entry.next = buckets[index];
+                buckets[index] = entry;
+                entry = next;
+            }
+        }
+    }
+
+    // 移除已被回收的字符串对应的表项
+    private void expunge() {
+        for (Object ref; (ref = queue.poll()) != null; ) {
+            Entry dead = (Entry) ref;
+            int index = dead.hash & (buckets.length - 1);
+            Entry prev = null;
+            for (Entry entry = buckets[index]; entry != null; prev = entry, entry = entry.next) {
+                if (entry != dead) continue;
+                if (prev == null) {
+                    buckets[index] = entry.next;
+                } else {
+                    prev.next = entry.next;
+                }
+                count--;
+                break;
+            }
+        }
+    }
+}
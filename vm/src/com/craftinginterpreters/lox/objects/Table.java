@@ -0,0 +1,130 @@
+package com.craftinginterpreters.lox.objects;
+
+/**
+ * 以驻留字符串为键的开放寻址哈希表
+ * 键都是驻留过的 ObjString, 哈希值缓存在字符串里, 比较键只比较引用
+ * 线性探测, 容量是 2 的幂; 删除留下墓碑, 墓碑计入负载, 扩容时丢弃
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class Table<V> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    // 负载 (包括墓碑) 超过容量的一半时扩容, 线性探测在更高的负载下未命中的探测链太长
+    private static final int MAX_LOAD_NUMERATOR = 1;
+    private static final int MAX_LOAD_DENOMINATOR = 2;
+
+    // 墓碑键, 不是驻留字符串, 不会和任何键相同
+    private static final ObjString TOMBSTONE = new ObjString("", 0);
+
+    private ObjString[] keys;
+
+    private Object[] values;
+
+    // 键的数量, 不包括墓碑
+    private int size;
+
+    // 键和墓碑的数量
+    private int used;
+
+    public Table() {
+        this.keys = new ObjString[MIN_CAPACITY];
+        this.values = new Object[MIN_CAPACITY];
+    }
+
+    // 没有这个键时返回 null
+    @SuppressWarnings("unchecked")
+    public V get(ObjString key) {
+        ObjString[] keys = this.keys;
+        int mask = keys.length - 1;
+        for (int index = key.hash() & mask; ; index = (index + 1) & mask) {
+            ObjString entry = keys[index];
+            if (entry == key) return (V) this.values[index];
+            if (entry == null) return null;
+        }
+    }
+
+    // 返回键原来对应的值
+    @SuppressWarnings("unchecked")
+    public V put(ObjString key, V value) {
+        int index = find(key);
+        ObjString entry = this.keys[index];
+        if (entry == key) {
+            V old = (V) this.values[index];
+            this.values[index] = value;
+            return old;
+        }
+
+        if (entry == null) {
+            if ((this.used + 1) * MAX_LOAD_DENOMINATOR > this.keys.length * MAX_LOAD_NUMERATOR) {
+                resize(this.size + 1);
+                index = find(key);
+            }
+            this.used++;
+        }
+        this.keys[index] = key;
+        this.values[index] = value;
+        this.size++;
+        return null;
+    }
+
+    // 删除后留下墓碑, 后面的探测链不断开; 返回被删除的值
+    @SuppressWarnings("unchecked")
+    public V remove(ObjString key) {
+        int index = find(key);
+        if (this.keys[index] != key) return null;
+
+        V old = (V) this.values[index];
+        this.keys[index] = TOMBSTONE;
+        this.values[index] = null;
+        this.size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * 键所在的位置; 不存在时返回插入位置: 探测路径上的第一个墓碑, 没有墓碑时是遇到的空位
+     */
+    private int find(ObjString key) {
+        ObjString[] keys = this.keys;
+        int mask = keys.length - 1;
+        int tombstone = -1;
+        for (int index = key.hash() & mask; ; index = (index + 1) & mask) {
+            ObjString entry = keys[index];
+            if (entry == key) return index;
+            if (entry == null) return tombstone != -1 ? tombstone : index;
+            if (entry == TOMBSTONE && tombstone == -1) tombstone = index;
+        }
+    }
+
+    // 按键的数量重新分配, 同时清掉墓碑
+    private void resize(int minSize) {
+        int capacity = MIN_CAPACITY;
+        while (minSize * MAX_LOAD_DENOMINATOR > capacity * MAX_LOAD_NUMERATOR) {
+            capacity *= 2;
+        }
+        ObjString[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        this.keys = new ObjString[capacity];
+        this.values = new Object[capacity];
+        this.used = 0;
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            ObjString key = oldKeys[i];
+            if (key == null || key == TOMBSTONE) continue;
+            int index = key.hash() & mask;
+            while (this.keys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            this.keys[index] = key;
+            this.values[index] = oldValues[i];
+            this.used++;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjFunction;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 字节码块与指令列表之间的解码和编码
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class Bytecode {
+
+    private Bytecode() {}
+
+    public static List<Insn> decode(Chunk chunk) {
+        byte[] code = chunk.getCodes();
+        List<Insn> insns = new ArrayList<>();
+        Insn[] byOffset = new Insn[chunk.getCount() + 1];
+        // 跳转距离, 按指令偏移量暂存, 解码完再统一解析成目标指令
+        int[] distances = new int[chunk.getCount()];
+
+        for (int offset = 0; offset < chunk.getCount(); ) {
+            // WIDE 前缀只改变常量下标的宽度, 解码后的指令不再区分, 编码时按下标大小重新决定
+            boolean wide = code[offset] == OpCode.WIDE;
+            int start = offset;
+            if (wide) offset++;
+
+            // 运行时可能已经被改写成快速指令, 优化遍只处理通用形式
+            byte op = OpCode.generic(code[offset]);
+            Insn insn = new Insn(op, chunk.getRawLine(start));
+            insn.offset = start;
+            byOffset[start] = insn;
+            insns.add(insn);
+
+            if (wide) {
+                insn.a = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+                offset += 1;
+            }
+
+            switch (operandKind(op)) {
+                case NONE:
+                    offset += 1;
+                    break;
+                case BYTE:
+                    if (!wide) insn.a = code[offset + 1] & 0xff;
+                    offset += 2;
+                    break;
+                case TWO_BYTES:
+                    if (!wide) insn.a = code[offset + 1] & 0xff;
+                    insn.b = code[offset + 2] & 0xff;
+                    offset += 3;
+                    break;
+                case SHORT:
+                    insn.a = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+                    offset += 3;
+                    break;
+                case THREE_BYTES:
+                    insn.a = code[offset + 1] & 0xff;
+                    insn.b = code[offset + 2] & 0xff;
+                    insn.c = code[offset + 3] & 0xff;
+                    offset += 4;
+                    break;
+                case JUMP:
+                    distances[start] = ((code[offset + 1] & 0xff) << 8) | (code[offset + 2] & 0xff);
+                    offset += 3;
+                    break;
+                case BYTE_JUMP:
+                    insn.a = code[offset + 1] & 0xff;
+                    distances[start] = ((code[offset + 2] & 0xff) << 8) | (code[offset + 3] & 0xff);
+                    offset += 4;
+                    break;
+                case TWO_BYTES_JUMP:
+                    insn.a = code[offset + 1] & 0xff;
+                    insn.b = code[offset + 2] & 0xff;
+                    distances[start] = ((code[offset + 3] & 0xff) << 8) | (code[offset + 4] & 0xff);
+                    offset += 5;
+                    break;
+                case CLOSURE: {
+                    if (!wide) insn.a = code[offset + 1] & 0xff;
+                    ObjFunction function = chunk.getConstants()[insn.a].asFunction();
+                    insn.upvalues = new byte[function.getUpvalueCount() * 2];
+                    System.arraycopy(code, offset + 2, insn.upvalues, 0, insn.upvalues.length);
+                    offset += 2 + insn.upvalues.length;
+                    break;
+                }
+            }
+        }
+
+        for (Insn insn : insns) {
+            if (!isJump(insn.op)) continue;
+            int next = insn.offset + baseLength(insn);
+            int distance = distances[insn.offset];
+            insn.target = byOffset[insn.op == OpCode.LOOP ? next - distance : next + distance];
+        }
+        return insns;
+    }
+
+    public static void encode(List<Insn> insns, Chunk chunk) {
+        int offset = 0;
+        for (Insn insn : insns) {
+            insn.offset = offset;
+            offset += length(insn);
+        }
+
+        chunk.clearCode();
+        for (Insn insn : insns) {
+            if (isWide(insn)) {
+                chunk.write(OpCode.WIDE, insn.line);
+                chunk.write(insn.op, insn.line);
+                chunk.write((byte) ((insn.a >> 8) & 0xff), insn.line);
+            } else {
+                chunk.write(insn.op, insn.line);
+            }
+            switch (operandKind(insn.op)) {
+                case NONE:
+                    break;
+                case BYTE:
+                    chunk.write((byte) insn.a, insn.line);
+                    break;
+                case TWO_BYTES:
+                    chunk.write((byte) insn.a, insn.line);
+                    chunk.write((byte) insn.b, insn.line);
+                    break;
+                case SHORT:
+                    chunk.write((byte) ((insn.a >> 8) & 0xff), insn.line);
+                    chunk.write((byte) (insn.a & 0xff), insn.line);
+                    break;
+                case THREE_BYTES:
+                    chunk.write((byte) insn.a, insn.line);
+                    chunk.write((byte) insn.b, insn.line);
+                    chunk.write((byte) insn.c, insn.line);
+                    break;
+                case JUMP:
+                    writeJump(insn, chunk);
+                    break;
+                case BYTE_JUMP:
+                    chunk.write((byte) insn.a, insn.line);
+                    writeJump(insn, chunk);
+                    break;
+                case TWO_BYTES_JUMP:
+                    chunk.write((byte) insn.a, insn.line);
+                    chunk.write((byte) insn.b, insn.line);
+                    writeJump(insn, chunk);
+                    break;
+                case CLOSURE:
+                    chunk.write((byte) insn.a, insn.line);
+                    for (byte b : insn.upvalues) {
+                        chunk.write(b, insn.line);
+                    }
+                    break;
+            }
+        }
+    }
+
+    // 删除标记的指令, 指向它们的跳转改为指向之后第一条保留的指令
+    public static void remove(List<Insn> insns, boolean[] removed) {
+        Map<Insn, Insn> successors = new IdentityHashMap<>();
+        Insn follow = null;
+        for (int i = insns.size() - 1; i >= 0; i--) {
+            if (removed[i]) {
+                successors.put(insns.get(i), follow);
+            } else {
+                follow = insns.get(i);
+            }
+        }
+        if (successors.isEmpty()) return;
+
+        int kept = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            if (removed[i]) continue;
+            Insn insn = insns.get(i);
+            if (insn.target != null && successors.containsKey(insn.target)) {
+                insn.target = successors.get(insn.target);
+            }
+            insns.set(kept++, insn);
+        }
+        insns.subList(kept, insns.size()).clear();
+    }
+
+    private static void writeJump(Insn insn, Chunk chunk) {
+        int next = insn.offset + baseLength(insn);
+        int jump = insn.op == OpCode.LOOP ? next - insn.target.offset : insn.target.offset - next;
+        chunk.write((byte) ((jump >> 8) & 0xff), insn.line);
+        chunk.write((byte) (jump & 0xff), insn.line);
+    }
+
+    private static int length(Insn insn) {
+        if (isWide(insn)) return 2 + baseLength(insn);
+        return baseLength(insn);
+    }
+
+    private static int baseLength(Insn insn) {
+        switch (operandKind(insn.op)) {
+            case NONE:
+                return 1;
+            case BYTE:
+                return 2;
+            case CLOSURE:
+                return 2 + insn.upvalues.length;
+            case THREE_BYTES:
+            case BYTE_JUMP:
+                return 4;
+            case TWO_BYTES_JUMP:
+                return 5;
+            default:
+                return 3;
+        }
+    }
+
+    // 常量下标超过一个字节, 需要 WIDE 前缀
+    private static boolean isWide(Insn insn) {
+        return insn.a > 0xff && isConstantIndexed(insn.op);
+    }
+
+    public static boolean isConstantIndexed(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.GET_PROPERTY:
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.INVOKE:
+            case OpCode.SUPER_INVOKE:
+            case OpCode.CLOSURE:
+            case OpCode.CLASS:
+            case OpCode.METHOD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static boolean isJump(byte op) {
+        OperandKind kind = operandKind(op);
+        return kind == OperandKind.JUMP || kind == OperandKind.BYTE_JUMP || kind == OperandKind.TWO_BYTES_JUMP;
+    }
+
+    private enum OperandKind {
+        NONE,
+        BYTE,
+        TWO_BYTES,
+        SHORT,
+        THREE_BYTES,
+        JUMP,
+        BYTE_JUMP,
+        TWO_BYTES_JUMP,
+        CLOSURE
+    }
+
+    private static OperandKind operandKind(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.GET_LOCAL:
+            case OpCode.SET_LOCAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.SET_UPVALUE:
+            case OpCode.GET_PROPERTY:
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.GET_ALIAS:
+            case OpCode.GET_ALIAS_METHOD:
+            case OpCode.CALL:
+            case OpCode.TAIL_CALL:
+            case OpCode.CALL_ALIAS:
+            case OpCode.CLASS:
+            case OpCode.METHOD:
+            case OpCode.LOAD_NIL:
+            case OpCode.SET_TOP:
+                return OperandKind.BYTE;
+            case OpCode.INVOKE:
+            case OpCode.SUPER_INVOKE:
+            case OpCode.GET_LOCAL_LOCAL:
+            case OpCode.GET_LOCAL_CONSTANT:
+            case OpCode.ADD_LOCAL_CONSTANT:
+            case OpCode.SUBTRACT_LOCAL_CONSTANT:
+            case OpCode.INCREMENT_LOCAL:
+            case OpCode.MOVE:
+            case OpCode.LOADK:
+            case OpCode.LOAD_BOOL:
+            case OpCode.NOT_RK:
+            case OpCode.NEGATE_RK:
+                return OperandKind.TWO_BYTES;
+            case OpCode.ADD_RK:
+            case OpCode.SUBTRACT_RK:
+            case OpCode.MULTIPLY_RK:
+            case OpCode.DIVIDE_RK:
+            case OpCode.EQUAL_RK:
+            case OpCode.GREATER_RK:
+            case OpCode.LESS_RK:
+                return OperandKind.THREE_BYTES;
+            case OpCode.GET_GLOBAL:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.SET_GLOBAL:
+                return OperandKind.SHORT;
+            case OpCode.JUMP:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE:
+            case OpCode.LOOP:
+            case OpCode.EQUAL_JUMP_IF_FALSE:
+            case OpCode.GREATER_JUMP_IF_FALSE:
+            case OpCode.LESS_JUMP_IF_FALSE:
+                return OperandKind.JUMP;
+            case OpCode.TEST_JUMP_IF_FALSE:
+                return OperandKind.BYTE_JUMP;
+            case OpCode.EQUAL_RK_JUMP_IF_FALSE:
+            case OpCode.GREATER_RK_JUMP_IF_FALSE:
+            case OpCode.LESS_RK_JUMP_IF_FALSE:
+            case OpCode.GUARD_CALL:
+            case OpCode.GUARD_INVOKE:
+                return OperandKind.TWO_BYTES_JUMP;
+            case OpCode.CLOSURE:
+                return OperandKind.CLOSURE;
+            default:
+                return OperandKind.NONE;
+        }
+    }
+}
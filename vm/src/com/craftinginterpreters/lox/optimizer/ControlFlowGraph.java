@@ -0,0 +1,262 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.OpCode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 指令列表上的控制流图: 基本块、逆后序、支配树和自然循环
+ * 基本块是指令列表中连续的一段, 不可达的指令不属于任何基本块
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class ControlFlowGraph {
+
+    public final List<Insn> insns;
+
+    // 每条指令执行前的栈深度, 不可达的为 -1
+    public final int[] depths;
+
+    public final List<Block> blocks = new ArrayList<>();
+
+    // 按逆后序排列的可达基本块
+    public final List<Block> order = new ArrayList<>();
+
+    // 按头部的逆后序排列, 外层循环在前
+    public final List<Loop> loops = new ArrayList<>();
+
+    private final Block[] blockOf;
+
+    private final Map<Insn, Integer> indexes = new IdentityHashMap<>();
+
+    public static final class Block {
+
+        public final int id;
+
+        public final int start;        // 第一条指令的下标
+
+        public final int end;          // 最后一条指令之后的下标
+
+        public final List<Block> predecessors = new ArrayList<>();
+
+        public final List<Block> successors = new ArrayList<>();
+
+        public Block dominator;
+
+        public int order = -1;         // 在逆后序中的位置, 不可达时为 -1
+
+        public Loop loop;              // 以这个块为头部的循环
+
+        Block(int id, int start, int end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static final class Loop {
+
+        public final Block header;
+
+        public final BitSet blocks = new BitSet();       // 循环内基本块的 id
+
+        public final List<Block> latches = new ArrayList<>();
+
+        Loop(Block header) {
+            this.header = header;
+        }
+
+        public boolean contains(Block block) {
+            return block != null && this.blocks.get(block.id);
+        }
+    }
+
+    public ControlFlowGraph(List<Insn> insns, int arity) {
+        this.insns = insns;
+        this.depths = StackDepth.depths(insns, arity);
+        this.blockOf = new Block[insns.size()];
+        for (int i = 0; i < insns.size(); i++) {
+            this.indexes.put(insns.get(i), i);
+        }
+        buildBlocks();
+        orderBlocks();
+        computeDominators();
+        findLoops();
+    }
+
+    public int indexOf(Insn insn) {
+        return this.indexes.get(insn);
+    }
+
+    public Block blockOf(int index) {
+        return this.blockOf[index];
+    }
+
+    public boolean dominates(Block a, Block b) {
+        for (Block block = b; block != null; block = block.dominator == block ? null : block.dominator) {
+            if (block == a) return true;
+        }
+        return false;
+    }
+
+    public static boolean fallsThrough(byte op) {
+        return op != OpCode.JUMP && op != OpCode.LOOP && op != OpCode.RETURN;
+    }
+
+    private void buildBlocks() {
+        boolean[] leaders = new boolean[this.insns.size() + 1];
+        if (!this.insns.isEmpty()) leaders[0] = true;
+        for (int i = 0; i < this.insns.size(); i++) {
+            Insn insn = this.insns.get(i);
+            if (insn.target != null) {
+                leaders[indexOf(insn.target)] = true;
+                leaders[i + 1] = true;
+            } else if (insn.op == OpCode.RETURN) {
+                leaders[i + 1] = true;
+            }
+        }
+
+        for (int start = 0; start < this.insns.size(); ) {
+            int end = start + 1;
+            while (end < this.insns.size() && !leaders[end]) end++;
+            if (this.depths[start] != -1) {
+                Block block = new Block(this.blocks.size(), start, end);
+                this.blocks.add(block);
+                for (int i = start; i < end; i++) {
+                    this.blockOf[i] = block;
+                }
+            }
+            start = end;
+        }
+
+        for (Block block : this.blocks) {
+            Insn last = this.insns.get(block.end - 1);
+            if (fallsThrough(last.op) && block.end < this.insns.size()) {
+                link(block, this.blockOf[block.end]);
+            }
+            if (last.target != null) {
+                link(block, this.blockOf[indexOf(last.target)]);
+            }
+        }
+    }
+
+    private static void link(Block from, Block to) {
+        if (to == null || from.successors.contains(to)) return;
+        from.successors.add(to);
+        to.predecessors.add(from);
+    }
+
+    private void orderBlocks() {
+        if (this.blocks.isEmpty()) return;
+        // 非递归的深度优先遍历, 记录后序
+        List<Block> postorder = new ArrayList<>();
+        boolean[] visited = new boolean[this.blocks.size()];
+        ArrayDeque<Block> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> next = new ArrayDeque<>();
+        Block entry = this.blocks.get(0);
+        visited[entry.id] = true;
+        stack.push(entry);
+        next.push(0);
+        while (!stack.isEmpty()) {
+            Block block = stack.peek();
+            int i = next.pop();
+            if (i < block.successors.size()) {
+                next.push(i + 1);
+                Block successor = block.successors.get(i);
+                if (!visited[successor.id]) {
+                    visited[successor.id] = true;
+                    stack.push(successor);
+                    next.push(0);
+                }
+            } else {
+                stack.pop();
+                postorder.add(block);
+            }
+        }
+        Collections.reverse(postorder);
+        for (Block block : postorder) {
+            block.order = this.order.size();
+            this.order.add(block);
+        }
+    }
+
+    // Cooper、Harvey 和 Kennedy 的迭代算法
+    private void computeDominators() {
+        if (this.order.isEmpty()) return;
+        Block entry = this.order.get(0);
+        entry.dominator = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < this.order.size(); i++) {
+                Block block = this.order.get(i);
+                Block dominator = null;
+                for (Block predecessor : block.predecessors) {
+                    if (predecessor.dominator == null) continue;
+                    dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+                }
+                if (dominator != block.dominator) {
+                    block.dominator = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.order > b.order) a = a.dominator;
+            while (b.order > a.order) b = b.dominator;
+        }
+        return a;
+    }
+
+    // 回边的目标支配回边的起点, 循环体是不经过头部就能到达回边起点的所有块
+    private void findLoops() {
+        for (Block header : this.order) {
+            for (Block latch : header.predecessors) {
+                if (latch.order == -1 || !dominates(header, latch)) continue;
+                if (header.loop == null) {
+                    header.loop = new Loop(header);
+                    header.loop.blocks.set(header.id);
+                    this.loops.add(header.loop);
+                }
+                Loop loop = header.loop;
+                loop.latches.add(latch);
+
+                ArrayDeque<Block> worklist = new ArrayDeque<>();
+                if (!loop.blocks.get(latch.id)) {
+                    loop.blocks.set(latch.id);
+                    worklist.push(latch);
+                }
+                while (!worklist.isEmpty()) {
+                    Block block = worklist.pop();
+                    for (Block predecessor : block.predecessors) {
+                        if (predecessor.order != -1 && !loop.blocks.get(predecessor.id)) {
+                            loop.blocks.set(predecessor.id);
+                            worklist.push(predecessor);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // 逆后序中 block 的前驱都已经排在它前面, 只有循环头部例外; 出现其他情况说明控制流不可归约
+    public boolean isReducible() {
+        for (Block block : this.order) {
+            for (Block predecessor : block.predecessors) {
+                if (predecessor.order == -1 || predecessor.order < block.order) continue;
+                if (block.loop == null || !block.loop.latches.contains(predecessor)) return false;
+            }
+        }
+        return true;
+    }
+}
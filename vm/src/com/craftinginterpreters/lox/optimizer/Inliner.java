@@ -0,0 +1,238 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjFunction;
+import com.craftinginterpreters.lox.objects.ObjString;
+import com.craftinginterpreters.lox.value.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 编译期内联: 编译时就知道调用目标的小函数直接展开到调用点, 省掉压栈帧、检查参数个数和返回
+ *
+ * 能内联的只有叶子函数: 不调用、不创建闭包、不访问升值, 所以一定不递归; 字节码不超过 Lox.INLINE_BUDGET 个字节
+ * 调用目标已知的调用点有两种:
+ * 1. GET_GLOBAL f; 参数...; CALL (或 TAIL_CALL), f 是之前在顶层用 fun 声明的函数
+ * 2. 方法里的 GET_LOCAL 0; 参数...; INVOKE m, 即 this.m(...), m 是当前类里之前声明的方法
+ *
+ * 展开后:
+ *     GET_GLOBAL f / GET_LOCAL 0; 参数...
+ *     GUARD_CALL / GUARD_INVOKE -> slow    调用目标变了才跳走
+ *     被内联函数的指令                      槽位加上被调用者所在的栈位置, 常量换成本函数常量表的下标
+ *                                          每个 RETURN 改成 SET_LOCAL 被调用者位置; POP...; JUMP done
+ *     slow: 原来的调用指令                  全局变量被重新赋值、方法被子类覆盖或者被字段遮住时照常调用
+ *     done:
+ *
+ * 展开的指令按 Chunk.inlinedLine 记录行号, 运行时报错仍然打印被内联函数的那一帧
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class Inliner {
+
+    // 局部变量槽位的操作数只有一个字节
+    private static final int SLOTS_MAX = 0xff;
+
+    private Inliner() {}
+
+    /**
+     * 可以内联的函数体: 函数优化之后、融合超级指令之前的指令和每条指令执行前的栈深度
+     */
+    public static final class Template {
+
+        final ObjFunction function;
+
+        final List<Insn> insns;
+
+        final int[] depths;
+
+        final int maxDepth;
+
+        private Template(ObjFunction function, List<Insn> insns, int[] depths, int maxDepth) {
+            this.function = function;
+            this.insns = insns;
+            this.depths = depths;
+            this.maxDepth = maxDepth;
+        }
+    }
+
+    // 函数可以内联时返回它的函数体, 否则返回 null; 在函数编译完、融合超级指令之前调用
+    public static Template template(ObjFunction function) {
+        Chunk chunk = function.getChunk();
+        if (chunk.getCount() > Lox.INLINE_BUDGET) return null;
+
+        List<Insn> insns = Bytecode.decode(chunk);
+        for (Insn insn : insns) {
+            if (!isInlinable(insn.op)) return null;
+        }
+        int[] depths = StackDepth.depths(insns, function.getArity());
+        int maxDepth = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            if (depths[i] == -1) return null;
+            maxDepth = Math.max(maxDepth, Math.max(depths[i], depths[i] + StackDepth.effect(insns.get(i))));
+        }
+        return new Template(function, insns, depths, maxDepth);
+    }
+
+    // 叶子函数里可以出现的指令
+    private static boolean isInlinable(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.POP:
+            case OpCode.GET_LOCAL:
+            case OpCode.SET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.SET_GLOBAL:
+            case OpCode.GET_PROPERTY:
+            case OpCode.SET_PROPERTY:
+            case OpCode.EQUAL:
+            case OpCode.GREATER:
+            case OpCode.LESS:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.NOT:
+            case OpCode.NEGATE:
+            case OpCode.PRINT:
+            case OpCode.JUMP:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE:
+            case OpCode.LOOP:
+            case OpCode.RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * 展开 caller 的字节码里调用目标已知的调用点, 返回是否有改动
+     * functions 按全局槽位索引顶层函数; methods 按名字索引当前类的方法, caller 不是方法时为 null
+     */
+    public static boolean inline(Chunk chunk, ObjFunction caller, Map<Integer, Template> functions,
+                                 Map<String, Template> methods) {
+        List<Insn> insns = Bytecode.decode(chunk);
+        int[] depths = StackDepth.depths(insns, caller.getArity());
+        Set<Insn> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Insn insn : insns) {
+            if (insn.target != null) targets.add(insn.target);
+        }
+
+        List<Insn> out = new ArrayList<>();
+        Map<ObjFunction, Integer> functionConstants = new IdentityHashMap<>();
+        boolean changed = false;
+        for (int i = 0; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            if (insn.op == OpCode.CALL || insn.op == OpCode.TAIL_CALL || insn.op == OpCode.INVOKE) {
+                int argCount = insn.op == OpCode.INVOKE ? insn.b : insn.a;
+                int j = producer(insns, depths, targets, i, argCount);
+                Template template = j == -1 ? null : target(chunk, insns.get(j), insn, functions, methods);
+                int base = j == -1 ? 0 : depths[j];
+                if (template != null && template.function.getArity() == argCount && base + template.maxDepth <= SLOTS_MAX + 1
+                        && expand(chunk, template, insn, base, insns.get(i + 1), out, functionConstants)) {
+                    if (Lox.DEBUG_PRINT_INLINING) {
+                        System.out.printf("inline %s() into %s at line %d\n", template.function.getName(),
+                                caller.getName() == null ? "script" : caller.getName() + "()", insn.line);
+                    }
+                    changed = true;
+                }
+            }
+            out.add(insn);
+        }
+
+        if (changed) {
+            Bytecode.encode(out, chunk);
+        }
+        return changed;
+    }
+
+    /*
+     * 压入第 i 条调用指令的被调用者的那条指令, 要求和调用在同一段直线代码里, 否则返回 -1
+     * 中间的参数求值不能有跳转, 也不能是跳转目标
+     */
+    private static int producer(List<Insn> insns, int[] depths, Set<Insn> targets, int i, int argCount) {
+        if (depths[i] == -1) return -1;
+        int base = depths[i] - argCount - 1;
+        int j = i - 1;
+        while (j >= 0 && depths[j] > base) j--;
+        if (j < 0 || depths[j] != base) return -1;
+        for (int k = j + 1; k <= i; k++) {
+            if (targets.contains(insns.get(k)) || insns.get(k - 1).target != null) return -1;
+        }
+        return j;
+    }
+
+    private static Template target(Chunk chunk, Insn producer, Insn call, Map<Integer, Template> functions,
+                                   Map<String, Template> methods) {
+        if (call.op != OpCode.INVOKE) {
+            return producer.op == OpCode.GET_GLOBAL ? functions.get(producer.a) : null;
+        }
+        if (methods == null || producer.op != OpCode.GET_LOCAL || producer.a != 0) return null;
+        ObjString name = (ObjString) chunk.getConstants()[call.a].getObj();
+        return methods.get(name.getString());
+    }
+
+    // 在调用指令 call 之前写入守卫和展开的函数体, 常量表或内联点已满时不展开, 返回 false
+    private static boolean expand(Chunk chunk, Template template, Insn call, int base, Insn done, List<Insn> out,
+                                  Map<ObjFunction, Integer> functionConstants) {
+        Integer constant = functionConstants.get(template.function);
+        if (constant == null) {
+            if (chunk.getConstantCount() > 0xff) return false;
+            constant = chunk.addConstant(template.function.toValue());
+            functionConstants.put(template.function, constant);
+        }
+        int site = chunk.addInlineSite(template.function, call.line);
+        if (site == -1) return false;
+
+        List<Insn> body = new ArrayList<>();
+        Map<Insn, Insn> copies = new IdentityHashMap<>();
+        Value[] constants = template.function.getChunk().getConstants();
+        for (int k = 0; k < template.insns.size(); k++) {
+            Insn original = template.insns.get(k);
+            Insn copy = new Insn(original.op, Chunk.inlinedLine(site, original.line));
+            copy.a = original.a;
+            copy.b = original.b;
+            copies.put(original, copy);
+            body.add(copy);
+
+            if (original.op == OpCode.GET_LOCAL || original.op == OpCode.SET_LOCAL) {
+                copy.a += base;
+            } else if (Bytecode.isConstantIndexed(original.op)) {
+                copy.a = chunk.addConstant(constants[original.a]);
+                if (copy.a >= Chunk.CONSTANTS_MAX) return false;
+            } else if (original.op == OpCode.RETURN) {
+                // 返回值写到被调用者的位置, 弹掉参数和局部变量, 和真正的调用返回后一样
+                copy.op = OpCode.SET_LOCAL;
+                copy.a = base;
+                for (int p = 1; p < template.depths[k]; p++) {
+                    body.add(new Insn(OpCode.POP, copy.line));
+                }
+                Insn jump = new Insn(OpCode.JUMP, copy.line);
+                jump.target = done;
+                body.add(jump);
+            }
+        }
+        for (Insn original : template.insns) {
+            if (original.target != null) copies.get(original).target = copies.get(original.target);
+        }
+
+        Insn guard = new Insn(call.op == OpCode.INVOKE ? OpCode.GUARD_INVOKE : OpCode.GUARD_CALL, call.line);
+        guard.a = call.op == OpCode.INVOKE ? call.b : call.a;
+        guard.b = constant;
+        guard.target = call;
+        out.add(guard);
+        out.addAll(body);
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+package com.craftinginterpreters.lox.optimizer;
+
+/**
+ * 优化遍使用的指令, 由 Bytecode 从字节码块解码, 跳转目标直接引用目标指令
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class Insn {
+
+    public byte op;
+
+    public int a;              // 第一个操作数: 常量下标、槽位或参数个数
+
+    public int b;              // 第二个操作数
+
+    public int c;              // 第三个操作数, 只有寄存器指令使用
+
+    public Insn target;        // 跳转指令的目标
+
+    public byte[] upvalues;    // CLOSURE 之后的 (isLocal, index) 对
+
+    public int line;
+
+    public int offset;         // 解码或编码时在字节码中的偏移量
+
+    public Insn(byte op, int line) {
+        this.op = op;
+        this.line = line;
+    }
+
+}
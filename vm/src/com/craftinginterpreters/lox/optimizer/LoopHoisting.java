@@ -0,0 +1,361 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjClosure;
+import com.craftinginterpreters.lox.optimizer.ControlFlowGraph.Block;
+import com.craftinginterpreters.lox.optimizer.ControlFlowGraph.Loop;
+import com.craftinginterpreters.lox.optimizer.Ssa.Node;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 循环不变量外提: 把每次迭代开头都会算出同一个值的读取和运算提到循环之前, 存进新的槽位
+ *
+ * 栈式字节码里值只能放在栈上, 外提的值压在循环头部的栈深度 d 处, 循环里原来的计算改成 GET_LOCAL,
+ * 循环里所有 >= d 的槽位 (块内局部变量和闭包捕获) 整体后移; 循环的出口先弹掉这些值再回到原来的出口
+ *
+ * 只外提迭代开头那一段直线代码里的计算 (从头部出发, 沿无条件跳转和循环条件的继续分支走, 遇到副作用为止),
+ * 这样外提的计算在原来的每次迭代里都必然执行; 它之前还有不外提、可能报错的运算时不外提, 保证报错的顺序不变
+ * 越过循环条件的计算在前置块里先照抄一遍条件, 条件不成立时不执行, 一次都不迭代的循环不会多报错
+ *
+ * 读取全局变量、升值和字段时要求循环里没有调用, 也没有写同名的全局变量、升值和字段
+ * 读取方法会创建新的绑定方法, 只在结果马上被调用或者参与运算时外提, 不改变对象的同一性
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+final class LoopHoisting {
+
+    // 一个循环最多外提的值
+    private static final int MAX_HOISTED = 16;
+
+    private static final int MAX_SLOT = 255;
+
+    private final ControlFlowGraph cfg;
+    private final Ssa ssa;
+    private final Loop loop;
+    private final Block header;
+    private final Ssa.LoopEffects effects;
+    private final List<Insn> insns;
+    private final int base;         // 循环头部的栈深度, 外提的值从这个槽位开始存放
+
+    private final Map<Node, Boolean> invariant = new IdentityHashMap<>();
+
+    // 迭代开头那一段直线代码, 以及越过循环条件的位置
+    private final List<Integer> path = new ArrayList<>();
+    private final BitSet onPath = new BitSet();
+    private int exitBranch = -1;
+    private int guardFrom = Integer.MAX_VALUE;
+    private boolean guarded;        // 前置块是否要先照抄循环条件
+
+    // 外提的计算段 {起点, 终点} 和对应的值
+    private final List<int[]> ranges = new ArrayList<>();
+    private final List<Node> rangeNodes = new ArrayList<>();
+
+    private LoopHoisting(ControlFlowGraph cfg, Ssa ssa, Loop loop) {
+        this.cfg = cfg;
+        this.ssa = ssa;
+        this.loop = loop;
+        this.header = loop.header;
+        this.effects = ssa.effects(loop);
+        this.insns = cfg.insns;
+        this.base = cfg.depths[this.header.start];
+    }
+
+    // 改写成功时直接修改 cfg.insns, cfg 和 ssa 随之失效
+    static boolean hoist(ControlFlowGraph cfg, Ssa ssa, Loop loop) {
+        LoopHoisting hoisting = new LoopHoisting(cfg, ssa, loop);
+        return hoisting.walk() && hoisting.select() && hoisting.rewrite();
+    }
+
+    private boolean walk() {
+        for (Block block : this.cfg.blocks) {
+            if (this.loop.contains(block) && block.start < this.header.start) return false;
+        }
+
+        int i = this.header.start;
+        while (i < this.insns.size()) {
+            Block block = this.cfg.blockOf(i);
+            if (!this.loop.contains(block)) break;
+            Insn insn = this.insns.get(i);
+            byte op = insn.op;
+
+            if (op == OpCode.JUMP) {
+                int target = this.cfg.indexOf(insn.target);
+                if (target <= i) break;
+                i = target;
+                continue;
+            }
+            if (op == OpCode.JUMP_IF_FALSE || op == OpCode.JUMP_IF_TRUE) {
+                if (!isExitBranch(i)) break;
+                this.exitBranch = i;
+                this.guardFrom = this.path.size();
+                i++;
+                continue;
+            }
+
+            this.path.add(i);
+            this.onPath.set(i);
+            if (!Ssa.isValueOp(op) && op != OpCode.POP && op != OpCode.SET_LOCAL) break;
+            i++;
+        }
+        return !this.path.isEmpty();
+    }
+
+    // 头部末尾跳出循环、顺序执行留在循环里的条件跳转, 条件只由纯计算得出时才能在前置块里照抄
+    private boolean isExitBranch(int i) {
+        if (this.exitBranch != -1 || this.cfg.blockOf(i) != this.header || i != this.header.end - 1) return false;
+        Insn branch = this.insns.get(i);
+        if (this.loop.contains(this.cfg.blockOf(this.cfg.indexOf(branch.target)))) return false;
+        if (!this.loop.contains(this.cfg.blockOf(i + 1))) return false;
+        for (int j = this.header.start; j < i; j++) {
+            if (!Ssa.isValueOp(this.insns.get(j).op)) return false;
+        }
+        return true;
+    }
+
+    private boolean select() {
+        // 从后往前找, 先得到最外层的不变计算
+        int coveredFrom = Integer.MAX_VALUE;
+        List<int[]> found = new ArrayList<>();
+        for (int q = this.path.size() - 1; q >= 0; q--) {
+            int end = this.path.get(q);
+            if (end >= coveredFrom) continue;
+            Node node = this.ssa.results[end];
+            int start = this.ssa.rangeStarts[end];
+            Insn root = this.insns.get(end);
+            if (node == null || start == -1 || !Ssa.isValueOp(root.op) || root.op == OpCode.GET_LOCAL) continue;
+            if (start == end && !isRead(root.op)) continue;
+            if (this.onPath.nextClearBit(start) <= end) continue;
+            if (!isInvariant(node) || !emit(node, null) || !SsaOptimizer.identitySafe(this.cfg, start, end)) continue;
+            found.add(0, new int[]{start, end});
+            coveredFrom = start;
+        }
+
+        // 前面有不外提、可能报错的运算时, 它之后的计算都不能提前; 照抄的循环条件会先按原来的顺序报错
+        int strict = cut(found, 0);
+        int kept = this.exitBranch == -1 ? strict : cut(found, this.guardFrom);
+        while (found.size() > kept) found.remove(found.size() - 1);
+        this.guarded = kept > strict || (kept > 0 && this.path.indexOf(found.get(kept - 1)[1]) >= this.guardFrom);
+
+        for (int[] range : found) {
+            Node node = this.ssa.results[range[1]];
+            if (!this.rangeNodes.contains(node) && hoistedNodes().size() == MAX_HOISTED) break;
+            this.ranges.add(range);
+            this.rangeNodes.add(node);
+        }
+        return !this.ranges.isEmpty();
+    }
+
+    // 路径上从 from 开始第一个不外提、可能报错的运算之前的计算段个数
+    private int cut(List<int[]> found, int from) {
+        int next = 0;
+        for (int q = from; q < this.path.size(); q++) {
+            int i = this.path.get(q);
+            while (next < found.size() && found.get(next)[1] < i) next++;
+            boolean inside = next < found.size() && found.get(next)[0] <= i;
+            if (!inside && Ssa.isFallible(this.insns.get(i).op)) return next;
+        }
+        return found.size();
+    }
+
+    // 外提的值, 按首次出现的顺序
+    private List<Node> hoistedNodes() {
+        List<Node> nodes = new ArrayList<>();
+        for (Node node : this.rangeNodes) {
+            if (!nodes.contains(node)) nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private static boolean isRead(byte op) {
+        return op == OpCode.GET_GLOBAL || op == OpCode.GET_UPVALUE || op == OpCode.GET_PROPERTY;
+    }
+
+    // 值在整个循环里不变: 在循环外定义, 或者由不变的操作数和循环里没写过的内存算出
+    private boolean isInvariant(Node node) {
+        Boolean known = this.invariant.get(node);
+        if (known != null) return known;
+
+        boolean result;
+        switch (node.op) {
+            case Ssa.PARAM:
+            case Ssa.PHI:
+            case Ssa.OPAQUE:
+                result = !this.loop.contains(node.block);
+                break;
+            case OpCode.GET_GLOBAL:
+                result = !this.effects.calls && !this.effects.globals.contains(node.a);
+                break;
+            case OpCode.GET_UPVALUE:
+                result = !this.effects.calls && !this.effects.upvalues.contains(node.a);
+                break;
+            case OpCode.GET_PROPERTY:
+                result = !this.effects.calls && !this.effects.properties.contains(node.a);
+                break;
+            default:
+                result = Ssa.isValueOp(node.op);
+                break;
+        }
+        for (Node operand : node.operands) {
+            result = result && isInvariant(operand);
+        }
+        this.invariant.put(node, result);
+        return result;
+    }
+
+    // 在前置块里重新算出 node; out 为 null 时只检查能否算出
+    private boolean emit(Node node, List<Insn> out) {
+        // 循环外定义的值没有行号, 记在循环头部那一行
+        int line = node.line != 0 ? node.line : this.insns.get(this.header.start).line;
+        int slot = entrySlot(node);
+        if (slot != -1) {
+            if (out != null) out.add(insn(OpCode.GET_LOCAL, slot, line));
+            return true;
+        }
+        if (node.op < 0 || node.op == OpCode.GET_LOCAL) return false;
+        for (Node operand : node.operands) {
+            if (!emit(operand, out)) return false;
+        }
+        if (out != null) out.add(insn(node.op, node.a, line));
+        return true;
+    }
+
+    // 进入循环时就在、循环里也不会改写的槽位
+    private int entrySlot(Node node) {
+        Node[] entry = this.ssa.entrySlots(this.header);
+        for (int p = 0; p < entry.length; p++) {
+            if (entry[p] == node && !this.effects.slots.get(p)) return p;
+        }
+        return -1;
+    }
+
+    private boolean rewrite() {
+        List<Node> hoisted = hoistedNodes();
+        int k = hoisted.size();
+
+        // 槽位后移之后不能超出单字节操作数
+        for (Block block : this.cfg.blocks) {
+            if (!this.loop.contains(block)) continue;
+            for (int i = block.start; i < block.end; i++) {
+                Insn insn = this.insns.get(i);
+                int deepest = Math.max(this.cfg.depths[i], this.cfg.depths[i] + StackDepth.effect(insn));
+                if (deepest + k > MAX_SLOT) return false;
+            }
+        }
+
+        // 所有出口都要到同一处, 并且那里之前没有别的代码顺序执行进来
+        Block exit = null;
+        int loopEnd = 0;
+        for (Block block : this.cfg.blocks) {
+            if (!this.loop.contains(block)) continue;
+            loopEnd = Math.max(loopEnd, block.end);
+            for (Block successor : block.successors) {
+                if (this.loop.contains(successor)) continue;
+                if (exit != null && exit != successor) return false;
+                exit = successor;
+            }
+        }
+        if (exit == null || exit.start < loopEnd) return false;
+        Insn beforeExit = this.insns.get(exit.start - 1);
+        if (!this.loop.contains(this.cfg.blockOf(exit.start - 1)) && ControlFlowGraph.fallsThrough(beforeExit.op)) return false;
+        int extra = this.cfg.depths[exit.start] - this.base;
+        if (extra < 0 || exit.start + extra >= this.insns.size()) return false;
+        for (int i = exit.start; i < exit.start + extra; i++) {
+            if (this.insns.get(i).op != OpCode.POP) return false;
+        }
+
+        // 前置块: 需要时先照抄循环条件, 再算出外提的值
+        List<Insn> preheader = new ArrayList<>();
+        if (this.guarded) {
+            for (int i = this.header.start; i < this.exitBranch; i++) {
+                Insn original = this.insns.get(i);
+                preheader.add(insn(original.op, original.a, original.line));
+            }
+            Insn branch = this.insns.get(this.exitBranch);
+            Insn guard = insn(branch.op, 0, branch.line);
+            guard.target = this.insns.get(exit.start);
+            preheader.add(guard);
+            for (int depth = this.cfg.depths[this.exitBranch]; depth > this.base; depth--) {
+                preheader.add(insn(OpCode.POP, 0, branch.line));
+            }
+        }
+        for (Node node : hoisted) {
+            emit(node, preheader);
+        }
+
+        // 出口: 弹掉外提的值和原来出口处的 POP, 再跳回原来的出口之后
+        int line = this.insns.get(exit.start).line;
+        List<Insn> landing = new ArrayList<>();
+        for (int i = 0; i < extra + k; i++) {
+            landing.add(insn(OpCode.POP, 0, line));
+        }
+        Insn resume = insn(OpCode.JUMP, 0, line);
+        resume.target = this.insns.get(exit.start + extra);
+        landing.add(resume);
+
+        Insn headerStart = this.insns.get(this.header.start);
+        Insn exitStart = this.insns.get(exit.start);
+        for (int i = 0; i < this.insns.size(); i++) {
+            Insn insn = this.insns.get(i);
+            Block block = this.cfg.blockOf(i);
+            if (this.loop.contains(block)) {
+                rebase(insn, k);
+                if (insn.target == exitStart) insn.target = landing.get(0);
+            } else if (insn.target == headerStart) {
+                insn.target = preheader.get(0);
+            }
+        }
+
+        boolean[] removed = new boolean[this.insns.size()];
+        for (int r = 0; r < this.ranges.size(); r++) {
+            int[] range = this.ranges.get(r);
+            Insn first = this.insns.get(range[0]);
+            first.op = OpCode.GET_LOCAL;
+            first.a = this.base + hoisted.indexOf(this.rangeNodes.get(r));
+            for (int i = range[0] + 1; i <= range[1]; i++) {
+                removed[i] = true;
+            }
+        }
+
+        List<Insn> result = new ArrayList<>();
+        for (int i = 0; i < this.insns.size(); i++) {
+            if (i == this.header.start) result.addAll(preheader);
+            if (i == exit.start) result.addAll(landing);
+            if (!removed[i]) result.add(this.insns.get(i));
+        }
+        this.insns.clear();
+        this.insns.addAll(result);
+        return true;
+    }
+
+    // 循环里 >= base 的槽位后移 k 个
+    private void rebase(Insn insn, int k) {
+        switch (insn.op) {
+            case OpCode.GET_LOCAL:
+            case OpCode.SET_LOCAL:
+                if (insn.a >= this.base) insn.a += k;
+                break;
+            case OpCode.CLOSURE:
+                for (int j = 0; j < insn.upvalues.length; j += 2) {
+                    int slot = insn.upvalues[j + 1] & 0xff;
+                    if (insn.upvalues[j] != ObjClosure.CAPTURE_UPVALUE && slot >= this.base) {
+                        insn.upvalues[j + 1] = (byte) (slot + k);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static Insn insn(byte op, int a, int line) {
+        Insn insn = new Insn(op, line);
+        insn.a = a;
+        return insn;
+    }
+}
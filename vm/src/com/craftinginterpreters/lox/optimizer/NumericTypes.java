@@ -0,0 +1,230 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjFunction;
+import com.craftinginterpreters.lox.value.Value;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 数字类型推断: 操作数一定是数字的算术和比较指令改写成不检查类型的 *_UNCHECKED 指令
+ *
+ * 沿控制流做前向数据流分析, 记录每条指令执行前栈帧里每个槽位是否一定是数字, 汇合点取交集直到不动点:
+ * 1. 数字常量、减乘除和取负的结果、两个数字相加的结果是数字, SET_LOCAL 把栈顶的类型带进局部变量
+ * 2. 检查类型的运算执行成功后操作数一定是数字, 操作数是 GET_LOCAL 读出来的时候那个局部变量此后也是数字
+ * 3. 参数、全局变量、属性、升值和调用结果类型未知; 被闭包按单元捕获的局部变量可能被调用改写, 始终当作未知
+ *
+ * 在融合超级指令和翻译寄存器指令之前运行, 两者都把不检查的指令当作原指令处理
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class NumericTypes {
+
+    private NumericTypes() {}
+
+    // 一条指令执行前的状态: 哪些槽位一定是数字, 每个槽位的值是从哪个局部变量读出来的 (-1 表示不是)
+    private static final class State {
+
+        final BitSet numbers;
+
+        final int[] origins;
+
+        State(int size) {
+            this.numbers = new BitSet(size);
+            this.origins = new int[size];
+            Arrays.fill(this.origins, -1);
+        }
+
+        State(State other) {
+            this.numbers = (BitSet) other.numbers.clone();
+            this.origins = other.origins.clone();
+        }
+
+        // 和另一条路径的状态取交集, 返回是否有变化
+        boolean meet(State other) {
+            boolean changed = false;
+            BitSet numbers = (BitSet) this.numbers.clone();
+            numbers.and(other.numbers);
+            if (!numbers.equals(this.numbers)) {
+                this.numbers.and(other.numbers);
+                changed = true;
+            }
+            for (int p = 0; p < this.origins.length; p++) {
+                if (this.origins[p] != other.origins[p] && this.origins[p] != -1) {
+                    this.origins[p] = -1;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        void set(int slot, boolean number, int origin) {
+            this.numbers.set(slot, number);
+            this.origins[slot] = origin;
+        }
+
+        // 弹出 depth 及以上的槽位
+        void truncate(int depth) {
+            this.numbers.clear(depth, this.origins.length);
+            Arrays.fill(this.origins, depth, this.origins.length, -1);
+        }
+
+        // 检查类型的运算成功之后, 操作数所在的局部变量和它的其他副本也是数字
+        void refine(int slot) {
+            this.numbers.set(slot);
+            int local = this.origins[slot];
+            if (local == -1) return;
+            this.numbers.set(local);
+            for (int p = 0; p < this.origins.length; p++) {
+                if (this.origins[p] == local) this.numbers.set(p);
+            }
+        }
+
+        // 局部变量被重新赋值, 之前读出来的副本不再和它相等
+        void forget(int local) {
+            for (int p = 0; p < this.origins.length; p++) {
+                if (this.origins[p] == local) this.origins[p] = -1;
+            }
+            this.origins[local] = -1;
+        }
+    }
+
+    // 改写可以证明的指令, 返回是否有改动; 遇到不认识的指令时不改写
+    public static boolean specialize(Chunk chunk, ObjFunction function) {
+        List<Insn> insns = Bytecode.decode(chunk);
+        int[] depths = StackDepth.depths(insns, function.getArity());
+        State[] states = analyze(insns, depths, chunk.getConstants(), function.getArity());
+
+        int total = 0;
+        int proven = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            byte unchecked = OpCode.unchecked(insn.op);
+            if (unchecked == insn.op || depths[i] == -1) continue;
+            total++;
+            int depth = depths[i];
+            boolean numbers = states != null && states[i].numbers.get(depth - 1)
+                    && (insn.op == OpCode.NEGATE || states[i].numbers.get(depth - 2));
+            if (numbers) {
+                insn.op = unchecked;
+                proven++;
+            }
+        }
+
+        if (Lox.DEBUG_PRINT_TYPES && total > 0) {
+            System.out.printf("types %s: %d/%d arithmetic ops numeric (%d%%)\n",
+                    function.getName() == null ? "script" : function.getName() + "()", proven, total, proven * 100 / total);
+        }
+        if (proven > 0) {
+            Bytecode.encode(insns, chunk);
+        }
+        return proven > 0;
+    }
+
+    // 每条指令执行前的状态, 不可达的指令为 null; 有不认识的指令时返回 null
+    private static State[] analyze(List<Insn> insns, int[] depths, Value[] constants, int arity) {
+        Map<Insn, Integer> indexes = new IdentityHashMap<>();
+        int size = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            indexes.put(insn, i);
+            if (depths[i] == -1) continue;
+            if (Ssa.pops(insn) == -1) return null;
+            size = Math.max(size, Math.max(depths[i], depths[i] + StackDepth.effect(insn)));
+        }
+        BitSet cells = Ssa.cellSlots(insns, depths);
+
+        State[] states = new State[insns.size()];
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        if (!insns.isEmpty()) {
+            states[0] = new State(Math.max(size, 1 + arity));
+            worklist.push(0);
+        }
+        while (!worklist.isEmpty()) {
+            int i = worklist.pop();
+            Insn insn = insns.get(i);
+            State state = new State(states[i]);
+            transfer(insn, depths[i], state, constants, cells);
+
+            if (insn.target != null) {
+                flow(states, worklist, indexes.get(insn.target), state);
+            }
+            if (StackDepth.fallsThrough(insn.op) && i + 1 < insns.size()) {
+                flow(states, worklist, i + 1, state);
+            }
+        }
+        return states;
+    }
+
+    private static void flow(State[] states, ArrayDeque<Integer> worklist, int index, State state) {
+        if (states[index] == null) {
+            states[index] = new State(state);
+            worklist.push(index);
+        } else if (states[index].meet(state)) {
+            worklist.push(index);
+        }
+    }
+
+    private static void transfer(Insn insn, int depth, State state, Value[] constants, BitSet cells) {
+        int top = depth - 1;
+        switch (insn.op) {
+            case OpCode.CONSTANT:
+                state.set(depth, constants[insn.a].isNumber(), -1);
+                return;
+            case OpCode.GET_LOCAL:
+                if (cells.get(insn.a)) {
+                    state.set(depth, false, -1);
+                } else {
+                    state.set(depth, state.numbers.get(insn.a), insn.a);
+                }
+                return;
+            case OpCode.SET_LOCAL:
+                if (cells.get(insn.a)) return;
+                state.forget(insn.a);
+                state.numbers.set(insn.a, state.numbers.get(top));
+                if (top != insn.a) state.origins[top] = insn.a;
+                return;
+            case OpCode.ADD: {
+                // 字符串也能相加, 成功不说明操作数是数字
+                boolean numbers = state.numbers.get(top - 1) && state.numbers.get(top);
+                state.truncate(top - 1);
+                state.set(top - 1, numbers, -1);
+                return;
+            }
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.GREATER:
+            case OpCode.LESS: {
+                state.refine(top - 1);
+                state.refine(top);
+                state.truncate(top - 1);
+                state.set(top - 1, insn.op != OpCode.GREATER && insn.op != OpCode.LESS, -1);
+                return;
+            }
+            case OpCode.NEGATE:
+                state.refine(top);
+                state.set(top, true, -1);
+                return;
+            case OpCode.JUMP:
+            case OpCode.LOOP:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE:
+            case OpCode.GUARD_CALL:
+            case OpCode.GUARD_INVOKE:
+                return;
+            default:
+                // 弹出的槽位丢掉, 压入的结果类型未知
+                state.truncate(depth - Ssa.pops(insn));
+                return;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjString;
+import com.craftinginterpreters.lox.value.NanBox;
+import com.craftinginterpreters.lox.value.Value;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 窥孔优化和常量折叠, 在编译结束、融合超级指令之前执行
+ *
+ * 在指令列表上反复执行下面三遍, 直到没有变化:
+ * 1. 折叠: 只有常量参与的算术、比较、取反和字符串拼接直接算出结果; 常量条件的 JUMP_IF_FALSE
+ *    改成 JUMP 或者删掉; 常量、局部变量和升值的读取之后紧跟 POP 的成对删掉, 常量被 JUMP 带到 POP 的也删掉;
+ *    NOT 之后的条件跳转在两条出路都弹出条件时去掉 NOT 并反转条件; 条件跳转只越过一条 JUMP 时反转条件并直接跳到 JUMP 的目标
+ * 2. 跳转穿透: 跳到无条件跳转、或者跳到结果已知的条件跳转时, 直接指向最终目标; 跳到下一条的跳转删掉
+ * 3. 删掉从入口不可达的指令, 比如 RETURN 之后、常量条件的死分支里的代码
+ *
+ * 只折叠运行时不会报错的运算, 会报错的留给虚拟机在原来的行号上报告
+ * 被删掉的指令如果是跳转目标, 跳转改为指向它之后第一条保留的指令
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class Peephole {
+
+    // 跳转指令执行时栈顶条件的真假
+    private static final int UNKNOWN = 0;
+    private static final int TRUTHY = 1;
+    private static final int FALSY = 2;
+
+    private final Chunk chunk;
+    private final List<Insn> insns;
+
+    // 每一遍开始时重新计算
+    private boolean[] removed;
+    private Set<Insn> targets;
+    private Map<Insn, Integer> indexes;
+    private boolean changed;
+
+    private Peephole(Chunk chunk) {
+        this.chunk = chunk;
+        this.insns = Bytecode.decode(chunk);
+    }
+
+    public static void optimize(Chunk chunk) {
+        Peephole peephole = new Peephole(chunk);
+        boolean changed = false;
+        while (peephole.fold() | peephole.threadJumps() | peephole.removeUnreachable()) {
+            changed = true;
+        }
+        if (changed) {
+            Bytecode.encode(peephole.insns, chunk);
+        }
+    }
+
+    private boolean fold() {
+        begin();
+        for (int i = 0; i < this.insns.size(); i++) {
+            if (this.removed[i]) continue;
+            // 折叠出的常量可能和后面的指令继续折叠
+            while (foldAt(i)) ;
+        }
+        return compact();
+    }
+
+    // 以第 i 条指令开头折叠, 第 i 条改写成结果, 能继续尝试时返回 true
+    private boolean foldAt(int i) {
+        Insn first = this.insns.get(i);
+        switch (first.op) {
+            case OpCode.NOT:
+                invertBranch(i);
+                return false;
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE:
+                skipJump(i);
+                return false;
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_UPVALUE:
+                dropRead(i);
+                return false;
+            default:
+                break;
+        }
+
+        Value a = constantOf(first);
+        if (a == null) return false;
+        int j = nextLive(i);
+        if (j == -1 || this.targets.contains(this.insns.get(j))) return false;
+        Insn second = this.insns.get(j);
+
+        switch (second.op) {
+            case OpCode.POP:
+                remove(i);
+                remove(j);
+                return false;
+            case OpCode.JUMP_IF_FALSE:
+                // 条件为假总是跳转, 为真从不跳转; 条件值仍留在栈上, 由两边的 POP 弹出
+                if (NanBox.isFalsey(a.getBits())) {
+                    second.op = OpCode.JUMP;
+                    this.changed = true;
+                } else {
+                    remove(j);
+                }
+                return true;
+            case OpCode.JUMP:
+                // 常量只被带到目标处的 POP 弹出, 直接跳到 POP 之后
+                if (second.target.op == OpCode.POP) {
+                    int pop = this.indexes.get(second.target);
+                    int after = nextLive(pop);
+                    if (after != -1 && after > j) {
+                        second.target = this.insns.get(after);
+                        remove(i);
+                    }
+                }
+                return false;
+            case OpCode.NOT:
+            case OpCode.NEGATE: {
+                Value result = unary(second.op, a);
+                if (result == null || !setConstant(first, result)) return false;
+                remove(j);
+                return true;
+            }
+            default:
+                break;
+        }
+
+        Value b = constantOf(second);
+        if (b == null) return false;
+        int k = nextLive(j);
+        if (k == -1 || this.targets.contains(this.insns.get(k))) return false;
+        Value result = binary(this.insns.get(k).op, a, b);
+        if (result == null || !setConstant(first, result)) return false;
+        remove(j);
+        remove(k);
+        return true;
+    }
+
+    // 读出来马上弹掉的局部变量和升值成对删掉
+    private void dropRead(int i) {
+        int j = nextLive(i);
+        if (j == -1 || this.insns.get(j).op != OpCode.POP || this.targets.contains(this.insns.get(j))) return;
+        remove(i);
+        remove(j);
+    }
+
+    // NOT; 条件跳转 L; POP 且 L 处也是 POP 时, 条件只用于分支, 去掉 NOT 并反转跳转条件
+    private void invertBranch(int i) {
+        int j = nextLive(i);
+        if (j == -1) return;
+        Insn jump = this.insns.get(j);
+        if (!isConditional(jump.op) || this.targets.contains(jump) || jump.target.op != OpCode.POP) return;
+        int k = nextLive(j);
+        if (k == -1 || this.insns.get(k).op != OpCode.POP || this.targets.contains(this.insns.get(k))) return;
+
+        remove(i);
+        jump.op = invert(jump.op);
+    }
+
+    // 条件跳转 L; JUMP M; L: 改成反向的条件跳转 M
+    private void skipJump(int i) {
+        Insn branch = this.insns.get(i);
+        int j = nextLive(i);
+        if (j == -1) return;
+        Insn jump = this.insns.get(j);
+        if (jump.op != OpCode.JUMP || this.targets.contains(jump)) return;
+        int k = nextLive(j);
+        if (k == -1 || this.insns.get(k) != branch.target) return;
+
+        branch.op = invert(branch.op);
+        branch.target = jump.target;
+        remove(j);
+    }
+
+    private static boolean isConditional(byte op) {
+        return op == OpCode.JUMP_IF_FALSE || op == OpCode.JUMP_IF_TRUE;
+    }
+
+    private static byte invert(byte op) {
+        return op == OpCode.JUMP_IF_FALSE ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE;
+    }
+
+    private boolean threadJumps() {
+        begin();
+        for (int i = 0; i < this.insns.size(); i++) {
+            Insn jump = this.insns.get(i);
+            if (jump.target == null || this.removed[i]) continue;
+
+            Insn target = thread(jump, sense(i));
+            if (target == null) continue;
+
+            int targetIndex = this.indexes.get(target);
+            if (jump.op == OpCode.JUMP || jump.op == OpCode.LOOP) {
+                if (target.op == OpCode.RETURN) {
+                    // 跳到 RETURN 就地返回
+                    jump.op = OpCode.RETURN;
+                    jump.target = null;
+                    this.changed = true;
+                    continue;
+                }
+                // 无条件跳转按方向选择 JUMP 或 LOOP
+                jump.op = targetIndex <= i ? OpCode.LOOP : OpCode.JUMP;
+            } else if (targetIndex <= i) {
+                // 条件跳转只能向前
+                continue;
+            }
+            if (target != jump.target) {
+                jump.target = target;
+                this.changed = true;
+            }
+
+            if (jump.op != OpCode.LOOP && targetIndex == nextLive(i)) {
+                remove(i);
+            }
+        }
+        return compact();
+    }
+
+    // 沿跳转链找到最终目标, 链成环时返回 null
+    private Insn thread(Insn jump, int sense) {
+        Set<Insn> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.add(jump);
+        Insn target = jump.target;
+        for (Insn next = threadThrough(target, sense); next != null; next = threadThrough(target, sense)) {
+            if (!visited.add(target)) return null;
+            target = next;
+        }
+        return target;
+    }
+
+    // 从 target 处继续穿透, 返回新的目标, 无法穿透时返回 null
+    private Insn threadThrough(Insn target, int sense) {
+        switch (target.op) {
+            case OpCode.JUMP:
+            case OpCode.LOOP:
+                return target.target;
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE: {
+                if (sense == UNKNOWN) return null;
+                boolean taken = (target.op == OpCode.JUMP_IF_FALSE) == (sense == FALSY);
+                if (taken) return target.target;
+                int next = nextLive(this.indexes.get(target));
+                return next == -1 ? null : this.insns.get(next);
+            }
+            default:
+                return null;
+        }
+    }
+
+    // 第 i 条跳转执行时栈顶条件的真假: 条件跳转跳走时已知, 紧跟在条件跳转之后的无条件跳转也已知
+    private int sense(int i) {
+        Insn jump = this.insns.get(i);
+        if (jump.op == OpCode.JUMP_IF_FALSE) return FALSY;
+        if (jump.op == OpCode.JUMP_IF_TRUE) return TRUTHY;
+        if (i == 0 || this.targets.contains(jump)) return UNKNOWN;
+
+        Insn previous = this.insns.get(i - 1);
+        if (this.removed[i - 1]) return UNKNOWN;
+        if (previous.op == OpCode.JUMP_IF_FALSE) return TRUTHY;
+        if (previous.op == OpCode.JUMP_IF_TRUE) return FALSY;
+        return UNKNOWN;
+    }
+
+    private boolean removeUnreachable() {
+        begin();
+        int[] depths = StackDepth.depths(this.insns, 0);
+        for (int i = 0; i < this.insns.size(); i++) {
+            if (depths[i] == -1) remove(i);
+        }
+        return compact();
+    }
+
+    private Value constantOf(Insn insn) {
+        switch (insn.op) {
+            case OpCode.NIL:
+                return Value.NIL;
+            case OpCode.TRUE:
+                return Value.TRUE;
+            case OpCode.FALSE:
+                return Value.FALSE;
+            case OpCode.CONSTANT: {
+                Value value = this.chunk.getConstants()[insn.a];
+                return value.isNumber() || value.isString() ? value : null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    // 把 insn 改写成压入 value 的指令, 常量表已满时返回 false
+    private boolean setConstant(Insn insn, Value value) {
+        if (value.isNil()) {
+            insn.op = OpCode.NIL;
+        } else if (value.isBool()) {
+            insn.op = value.asBool() ? OpCode.TRUE : OpCode.FALSE;
+        } else {
+            int constant = this.chunk.addConstant(value);
+            if (constant >= Chunk.CONSTANTS_MAX) return false;
+            insn.op = OpCode.CONSTANT;
+            insn.a = constant;
+        }
+        return true;
+    }
+
+    private static Value unary(byte op, Value a) {
+        if (op == OpCode.NOT) return bool(NanBox.isFalsey(a.getBits()));
+        return a.isNumber() ? number(-a.asNumber()) : null;
+    }
+
+    private static Value binary(byte op, Value a, Value b) {
+        if (op == OpCode.EQUAL) {
+            return bool(NanBox.valuesEqual(a.getBits(), a.getObj(), b.getBits(), b.getObj()));
+        }
+        if (op == OpCode.ADD && a.isString() && b.isString()) {
+            return ObjString.copyString(a.asString().getString() + b.asString().getString()).toValue();
+        }
+        if (!a.isNumber() || !b.isNumber()) return null;
+
+        double x = a.asNumber();
+        double y = b.asNumber();
+        switch (op) {
+            case OpCode.GREATER:
+                return bool(x > y);
+            case OpCode.LESS:
+                return bool(x < y);
+            case OpCode.ADD:
+                return number(x + y);
+            case OpCode.SUBTRACT:
+                return number(x - y);
+            case OpCode.MULTIPLY:
+                return number(x * y);
+            case OpCode.DIVIDE:
+                return number(x / y);
+            default:
+                return null;
+        }
+    }
+
+    private static Value bool(boolean value) {
+        return value ? Value.TRUE : Value.FALSE;
+    }
+
+    private static Value number(double value) {
+        return Value.number(value);
+    }
+
+    private void begin() {
+        this.removed = new boolean[this.insns.size()];
+        this.targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        this.indexes = new IdentityHashMap<>();
+        for (int i = 0; i < this.insns.size(); i++) {
+            Insn insn = this.insns.get(i);
+            this.indexes.put(insn, i);
+            if (insn.target != null) this.targets.add(insn.target);
+        }
+        this.changed = false;
+    }
+
+    private void remove(int i) {
+        this.removed[i] = true;
+        this.changed = true;
+    }
+
+    private int nextLive(int i) {
+        for (int j = i + 1; j < this.insns.size(); j++) {
+            if (!this.removed[j]) return j;
+        }
+        return -1;
+    }
+
+    // 真正删除标记的指令, 返回这一遍是否有改动
+    private boolean compact() {
+        Bytecode.remove(this.insns, this.removed);
+        return this.changed;
+    }
+}
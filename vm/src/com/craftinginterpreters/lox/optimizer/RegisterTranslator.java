@@ -0,0 +1,445 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 把栈式字节码翻译成寄存器指令
+ *
+ * 寄存器就是栈帧里的槽位: 局部变量固定在自己的寄存器, 表达式的中间结果放在它在栈上对应深度的寄存器
+ * 翻译时维护一个符号栈, 记录每个栈位置的值实际在哪里 (原位、另一个寄存器、常量、nil/true/false),
+ * GET_LOCAL、CONSTANT、POP 只改符号栈不生成指令, 运算直接以寄存器或常量为操作数
+ * 紧跟在运算之后的 SET_LOCAL 直接改写运算的目标寄存器, i = i + 1 只剩一条 ADD_RK
+ *
+ * 其他指令仍按栈式执行: 之前先把符号栈落实到各自的寄存器 (flush), 并用 SET_TOP 同步虚拟机的栈顶
+ * 寄存器指令不读写栈顶, 所以只有栈式指令之前需要同步; 跳转目标处符号栈都是落实过的, 栈顶未知
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class RegisterTranslator {
+
+    // 符号栈上每个位置的值在哪里
+    private static final int CANONICAL = 0;     // 就在该位置的寄存器里
+    private static final int REGISTER = 1;      // 在另一个寄存器 (局部变量) 里
+    private static final int CONSTANT = 2;      // 常量 K[value]
+    private static final int NIL = 3;
+    private static final int TRUE = 4;
+    private static final int FALSE = 5;
+
+    // RK 操作数的最高位区分寄存器和常量, 只能编码 0..127
+    private static final int RK_MAX = 0x7f;
+    private static final int RK_CONSTANT = 0x80;
+
+    // 寄存器操作数只有一个字节
+    private static final int REGISTERS_MAX = 0xff;
+
+    private final List<Insn> insns;
+    private final int[] depths;
+    private final Set<Insn> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final List<Insn> out = new ArrayList<>();
+
+    // 跳转目标 (原指令) 到翻译后第一条指令的映射, 目标本身不生成指令时绑定到之后生成的第一条
+    private final Map<Insn, Insn> labels = new IdentityHashMap<>();
+    private final List<Insn> pendingLabels = new ArrayList<>();
+    private final List<Insn> jumps = new ArrayList<>();
+
+    private final int[] kinds;
+    private final int[] values;
+    private int depth;
+
+    // 虚拟机栈顶对应的深度, 未知时为 -1
+    private int synced;
+
+    // 上一条生成的指令, 如果它把结果写到栈顶的寄存器, 后面的 SET_LOCAL 可以改写它的目标
+    private Insn lastResult;
+
+    private int line;
+
+    private RegisterTranslator(List<Insn> insns, int[] depths, int maxDepth) {
+        this.insns = insns;
+        this.depths = depths;
+        this.kinds = new int[maxDepth + 1];
+        this.values = new int[maxDepth + 1];
+        for (Insn insn : insns) {
+            if (insn.target != null) this.targets.add(insn.target);
+        }
+    }
+
+    // 栈深度超过寄存器操作数的范围时不翻译, 返回 false, 字节码保持栈式
+    public static boolean translate(Chunk chunk, int arity) {
+        List<Insn> insns = Bytecode.decode(chunk);
+        int[] depths = StackDepth.depths(insns, arity);
+        int maxDepth = 0;
+        for (int i = 0; i < insns.size(); i++) {
+            if (depths[i] == -1) continue;
+            maxDepth = Math.max(maxDepth, Math.max(depths[i], depths[i] + StackDepth.effect(insns.get(i))));
+        }
+        if (maxDepth > REGISTERS_MAX) return false;
+
+        RegisterTranslator translator = new RegisterTranslator(insns, depths, maxDepth);
+        translator.run();
+        Bytecode.encode(translator.out, chunk);
+        return true;
+    }
+
+    private void run() {
+        reset(this.depths[0]);
+        this.synced = this.depths[0];
+        boolean live = true;
+        for (int i = 0; i < this.insns.size(); ) {
+            Insn insn = this.insns.get(i);
+            if (this.depths[i] == -1) {
+                i++;
+                continue;
+            }
+            this.line = insn.line;
+
+            if (this.targets.contains(insn)) {
+                if (live) flush();
+                reset(this.depths[i]);
+                this.pendingLabels.add(insn);
+            }
+            if (this.depth != this.depths[i]) {
+                throw new IllegalStateException("Stack depth mismatch at " + insn.offset + ".");
+            }
+
+            int consumed = translate(i);
+            byte last = this.insns.get(i + consumed - 1).op;
+            live = last != OpCode.JUMP && last != OpCode.LOOP && last != OpCode.RETURN;
+            i += consumed;
+        }
+
+        for (Insn jump : this.jumps) {
+            jump.target = this.labels.get(jump.target);
+        }
+    }
+
+    // 翻译第 i 条指令, 返回消耗的原指令数
+    private int translate(int i) {
+        Insn insn = this.insns.get(i);
+        // 寄存器指令没有不检查类型的版本
+        switch (OpCode.checked(insn.op)) {
+            case OpCode.CONSTANT:
+                if (insn.a > REGISTERS_MAX) {
+                    stackOp(insn);
+                } else {
+                    push(CONSTANT, insn.a);
+                }
+                return 1;
+            case OpCode.NIL:
+                push(NIL, 0);
+                return 1;
+            case OpCode.TRUE:
+                push(TRUE, 0);
+                return 1;
+            case OpCode.FALSE:
+                push(FALSE, 0);
+                return 1;
+            case OpCode.POP:
+                this.depth--;
+                return 1;
+            case OpCode.GET_LOCAL:
+                materialize(insn.a);
+                push(REGISTER, insn.a);
+                return 1;
+            case OpCode.SET_LOCAL:
+                setLocal(insn.a);
+                return 1;
+            case OpCode.EQUAL:
+                return compare(i, OpCode.EQUAL_RK, OpCode.EQUAL_RK_JUMP_IF_FALSE);
+            case OpCode.GREATER:
+                return compare(i, OpCode.GREATER_RK, OpCode.GREATER_RK_JUMP_IF_FALSE);
+            case OpCode.LESS:
+                return compare(i, OpCode.LESS_RK, OpCode.LESS_RK_JUMP_IF_FALSE);
+            case OpCode.ADD:
+                binary(insn, OpCode.ADD_RK);
+                return 1;
+            case OpCode.SUBTRACT:
+                binary(insn, OpCode.SUBTRACT_RK);
+                return 1;
+            case OpCode.MULTIPLY:
+                binary(insn, OpCode.MULTIPLY_RK);
+                return 1;
+            case OpCode.DIVIDE:
+                binary(insn, OpCode.DIVIDE_RK);
+                return 1;
+            case OpCode.NOT:
+                unary(insn, OpCode.NOT_RK);
+                return 1;
+            case OpCode.NEGATE:
+                unary(insn, OpCode.NEGATE_RK);
+                return 1;
+            case OpCode.JUMP_IF_FALSE:
+                jumpIfFalse(i);
+                return 1;
+            case OpCode.JUMP_IF_TRUE:
+                jumpIfTrue(i);
+                return 1;
+            case OpCode.JUMP:
+            case OpCode.LOOP:
+                flush();
+                jump(new Insn(insn.op, this.line), insn.target);
+                return 1;
+            default:
+                stackOp(insn);
+                return 1;
+        }
+    }
+
+    private void binary(Insn insn, byte op) {
+        int b = rk(this.depth - 2);
+        int c = rk(this.depth - 1);
+        if (b == -1 || c == -1) {
+            stackOp(insn);
+            return;
+        }
+        Insn result = new Insn(op, this.line);
+        result.a = this.depth - 2;
+        result.b = b;
+        result.c = c;
+        emit(result);
+        this.depth--;
+        this.kinds[this.depth - 1] = CANONICAL;
+        this.lastResult = result;
+    }
+
+    private void unary(Insn insn, byte op) {
+        int b = rk(this.depth - 1);
+        if (b == -1) {
+            stackOp(insn);
+            return;
+        }
+        Insn result = new Insn(op, this.line);
+        result.a = this.depth - 1;
+        result.b = b;
+        emit(result);
+        this.kinds[this.depth - 1] = CANONICAL;
+        this.lastResult = result;
+    }
+
+    /*
+     * 比较之后紧跟 JUMP_IF_FALSE; POP, 且跳转目标也以 POP 开头时, 比较结果只用于分支,
+     * 融合成一条不写结果的比较跳转
+     */
+    private int compare(int i, byte op, byte jumpOp) {
+        Insn insn = this.insns.get(i);
+        if (this.insns.get(i + 1).op != OpCode.JUMP_IF_FALSE || !branchOnly(i + 1)) {
+            binary(insn, op);
+            return 1;
+        }
+
+        for (int p = 0; p < this.depth - 2; p++) {
+            materialize(p);
+        }
+        int a = rk(this.depth - 2);
+        int b = rk(this.depth - 1);
+        if (a == -1 || b == -1) {
+            binary(insn, op);
+            return 1;
+        }
+        Insn jump = new Insn(jumpOp, this.line);
+        jump.a = a;
+        jump.b = b;
+        jump(jump, this.insns.get(i + 1).target);
+        this.depth -= 2;
+        return 3;
+    }
+
+    private void jumpIfFalse(int i) {
+        Insn insn = this.insns.get(i);
+        if (branchOnly(i)) {
+            // 条件只用于分支, 不必落实到寄存器
+            for (int p = 0; p < this.depth - 1; p++) {
+                materialize(p);
+            }
+            int a = rk(this.depth - 1);
+            if (a != -1) {
+                Insn jump = new Insn(OpCode.TEST_JUMP_IF_FALSE, this.line);
+                jump.a = a;
+                jump(jump, insn.target);
+                return;
+            }
+        }
+
+        flush();
+        if (this.depth - 1 <= RK_MAX) {
+            Insn jump = new Insn(OpCode.TEST_JUMP_IF_FALSE, this.line);
+            jump.a = this.depth - 1;
+            jump(jump, insn.target);
+        } else {
+            sync(this.depth);
+            jump(new Insn(OpCode.JUMP_IF_FALSE, this.line), insn.target);
+        }
+    }
+
+    /*
+     * 没有为真跳转的寄存器指令
+     * 条件只用于分支时还原成 NOT_RK 之后的为假跳转, 两条出路都会弹出条件, 取反不影响结果;
+     * 否则 (or 表达式) 跳转后条件就是表达式的值, 不能改写, 落实符号栈后按栈式指令跳转
+     */
+    private void jumpIfTrue(int i) {
+        if (branchOnly(i)) {
+            unary(new Insn(OpCode.NOT, this.line), OpCode.NOT_RK);
+            jumpIfFalse(i);
+            return;
+        }
+        flush();
+        sync(this.depth);
+        jump(new Insn(OpCode.JUMP_IF_TRUE, this.line), this.insns.get(i).target);
+    }
+
+    // 第 i 条是 JUMP_IF_FALSE 或 JUMP_IF_TRUE, 两条出路都先 POP 掉条件
+    private boolean branchOnly(int i) {
+        if (i + 1 >= this.insns.size()) return false;
+        Insn jump = this.insns.get(i);
+        Insn next = this.insns.get(i + 1);
+        return (jump.op == OpCode.JUMP_IF_FALSE || jump.op == OpCode.JUMP_IF_TRUE) && !this.targets.contains(jump)
+                && next.op == OpCode.POP && !this.targets.contains(next)
+                && jump.target.op == OpCode.POP;
+    }
+
+    private void setLocal(int slot) {
+        int top = this.depth - 1;
+        if (this.kinds[top] == REGISTER && this.values[top] == slot) return;
+
+        boolean aliased = false;
+        for (int p = 0; p < top; p++) {
+            if (p != slot && this.kinds[p] == REGISTER && this.values[p] == slot) {
+                aliased = true;
+                break;
+            }
+        }
+
+        if (this.lastResult != null && this.lastResult.a == top && this.kinds[top] == CANONICAL && !aliased) {
+            this.lastResult.a = slot;
+            this.kinds[top] = REGISTER;
+            this.values[top] = slot;
+        } else {
+            // 引用旧值的位置先取出旧值
+            for (int p = 0; p < top; p++) {
+                if (p != slot && this.kinds[p] == REGISTER && this.values[p] == slot) {
+                    materialize(p);
+                }
+            }
+            load(slot, top);
+        }
+        this.kinds[slot] = CANONICAL;
+        this.lastResult = null;
+    }
+
+    // 栈式指令: 落实符号栈、同步栈顶后原样执行
+    private void stackOp(Insn insn) {
+        flush();
+        sync(this.depth);
+        insn.line = this.line;
+        emit(insn);
+        if (insn.target != null) this.jumps.add(insn);
+        this.depth += StackDepth.effect(insn);
+        for (int p = 0; p < this.depth; p++) {
+            this.kinds[p] = CANONICAL;
+        }
+        this.synced = this.depth;
+    }
+
+    private void push(int kind, int value) {
+        this.kinds[this.depth] = kind;
+        this.values[this.depth] = value;
+        this.depth++;
+    }
+
+    private void reset(int depth) {
+        this.depth = depth;
+        this.synced = -1;
+        for (int p = 0; p < depth; p++) {
+            this.kinds[p] = CANONICAL;
+        }
+        this.lastResult = null;
+    }
+
+    private void flush() {
+        for (int p = 0; p < this.depth; p++) {
+            materialize(p);
+        }
+    }
+
+    private void materialize(int position) {
+        if (this.kinds[position] == CANONICAL) return;
+        load(position, position);
+        this.kinds[position] = CANONICAL;
+    }
+
+    // 把 position 处的值写入寄存器 register
+    private void load(int register, int position) {
+        Insn insn;
+        switch (this.kinds[position]) {
+            case CANONICAL:
+                insn = new Insn(OpCode.MOVE, this.line);
+                insn.b = position;
+                break;
+            case REGISTER:
+                insn = new Insn(OpCode.MOVE, this.line);
+                insn.b = this.values[position];
+                break;
+            case CONSTANT:
+                insn = new Insn(OpCode.LOADK, this.line);
+                insn.b = this.values[position];
+                break;
+            case NIL:
+                insn = new Insn(OpCode.LOAD_NIL, this.line);
+                break;
+            default:
+                insn = new Insn(OpCode.LOAD_BOOL, this.line);
+                insn.b = this.kinds[position] == TRUE ? 1 : 0;
+                break;
+        }
+        insn.a = register;
+        emit(insn);
+    }
+
+    // position 处的值作为 RK 操作数, 无法编码时返回 -1
+    private int rk(int position) {
+        switch (this.kinds[position]) {
+            case REGISTER:
+                return this.values[position] <= RK_MAX ? this.values[position] : -1;
+            case CONSTANT:
+                if (this.values[position] <= RK_MAX) return RK_CONSTANT | this.values[position];
+                break;
+            default:
+                break;
+        }
+        materialize(position);
+        return position <= RK_MAX ? position : -1;
+    }
+
+    private void sync(int depth) {
+        if (this.synced == depth) return;
+        Insn insn = new Insn(OpCode.SET_TOP, this.line);
+        insn.a = depth;
+        emit(insn);
+        this.synced = depth;
+    }
+
+    private void jump(Insn insn, Insn target) {
+        insn.target = target;
+        emit(insn);
+        this.jumps.add(insn);
+    }
+
+    private void emit(Insn insn) {
+        this.out.add(insn);
+        for (Insn label : this.pendingLabels) {
+            this.labels.put(label, insn);
+        }
+        this.pendingLabels.clear();
+        this.lastResult = null;
+    }
+}
@@ -0,0 +1,548 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjClosure;
+import com.craftinginterpreters.lox.optimizer.ControlFlowGraph.Block;
+import com.craftinginterpreters.lox.optimizer.ControlFlowGraph.Loop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 栈式字节码上的 SSA 值图
+ *
+ * 按逆后序抽象执行每个基本块, 记录栈帧里每个槽位 (局部变量和表达式临时值) 当前是哪个值节点:
+ * GET_LOCAL 直接取槽位里的节点, 运算和读取按 (指令, 操作数节点, 内存版本) 做值编号, 相同的计算得到同一个节点
+ * 汇合点上来自不同前驱的槽位生成 PHI; 循环头部对循环里写过的槽位直接生成 PHI, 没写过的沿用循环外的节点
+ *
+ * 全局变量、堆 (实例字段) 和升值各有一个内存版本, 写入时换成新版本, 调用可能执行任意代码, 三者都换新
+ * 被闭包按单元捕获的局部变量在调用之后也换成新节点
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class Ssa {
+
+    // 不对应字节码的节点
+    public static final byte PARAM = -1;        // 函数入口时的槽位
+    public static final byte PHI = -2;
+    public static final byte OPAQUE = -3;       // 调用结果等无法分析的值
+    public static final byte MEMORY = -4;       // 内存版本
+
+    public static final class Node {
+
+        public final int id;
+
+        public final byte op;
+
+        public final int a;                     // 常量下标、全局槽位、升值下标或属性名常量
+
+        public final Node[] operands;
+
+        public final Node memory;               // 读取依赖的内存版本
+
+        public final Block block;               // PARAM、PHI、OPAQUE 定义所在的块
+
+        public final int line;
+
+        Node(int id, byte op, int a, Node[] operands, Node memory, Block block, int line) {
+            this.id = id;
+            this.op = op;
+            this.a = a;
+            this.operands = operands;
+            this.memory = memory;
+            this.block = block;
+            this.line = line;
+        }
+    }
+
+    // 循环里的写入, 决定循环头部哪些槽位和内存需要 PHI, 以及哪些读取在循环里不变
+    public static final class LoopEffects {
+
+        public final BitSet slots = new BitSet();
+
+        public final Set<Integer> globals = new HashSet<>();
+
+        public final Set<Integer> upvalues = new HashSet<>();
+
+        public final Set<Integer> properties = new HashSet<>();
+
+        public boolean calls;
+    }
+
+    private static final Node[] NO_OPERANDS = new Node[0];
+
+    public final ControlFlowGraph cfg;
+
+    // 每条指令压入栈顶的节点, 不压栈的指令为 null
+    public final Node[] results;
+
+    // 结果由 [rangeStarts[i], i] 这一段只读不写的连续指令算出, 不满足时为 -1
+    public final int[] rangeStarts;
+
+    // 可复用的计算: {起点, 终点, 已经持有同一个值的槽位}
+    public final List<int[]> reuses = new ArrayList<>();
+
+    // 被闭包按单元捕获的槽位
+    public final BitSet cellSlots = new BitSet();
+
+    private final Map<Loop, LoopEffects> effects = new IdentityHashMap<>();
+
+    private final Node[][] entrySlots;
+
+    private final Node[][] exitSlots;
+
+    private final Node[][] exitMemory;
+
+    private final Map<Key, Node> numbering = new HashMap<>();
+
+    private int nodeCount;
+
+    // 抽象执行时的状态
+    private Node[] slots;
+    private int[] starts;
+    private int depth;
+    private Node globals;
+    private Node heap;
+    private Node upvalues;
+
+    private Ssa(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        this.results = new Node[cfg.insns.size()];
+        this.rangeStarts = new int[cfg.insns.size()];
+        Arrays.fill(this.rangeStarts, -1);
+        this.entrySlots = new Node[cfg.blocks.size()][];
+        this.exitSlots = new Node[cfg.blocks.size()][];
+        this.exitMemory = new Node[cfg.blocks.size()][];
+    }
+
+    // 遇到优化遍不认识的指令或者不可归约的控制流时返回 null
+    public static Ssa build(ControlFlowGraph cfg) {
+        if (cfg.order.isEmpty() || !cfg.isReducible()) return null;
+        int maxDepth = 0;
+        for (int i = 0; i < cfg.insns.size(); i++) {
+            if (cfg.depths[i] == -1) continue;
+            if (pops(cfg.insns.get(i)) == -1) return null;
+            maxDepth = Math.max(maxDepth, Math.max(cfg.depths[i], cfg.depths[i] + StackDepth.effect(cfg.insns.get(i))));
+        }
+
+        Ssa ssa = new Ssa(cfg);
+        ssa.slots = new Node[maxDepth + 1];
+        ssa.starts = new int[maxDepth + 1];
+        ssa.cellSlots.or(cellSlots(cfg.insns, cfg.depths));
+        for (Loop loop : cfg.loops) {
+            ssa.effects.put(loop, ssa.computeEffects(loop));
+        }
+        for (Block block : cfg.order) {
+            ssa.enter(block);
+            for (int i = block.start; i < block.end; i++) {
+                ssa.execute(i);
+            }
+            ssa.exitSlots[block.id] = Arrays.copyOf(ssa.slots, ssa.depth);
+            ssa.exitMemory[block.id] = new Node[]{ssa.globals, ssa.heap, ssa.upvalues};
+        }
+        return ssa;
+    }
+
+    public LoopEffects effects(Loop loop) {
+        return this.effects.get(loop);
+    }
+
+    // 进入基本块时各槽位的节点
+    public Node[] entrySlots(Block block) {
+        return this.entrySlots[block.id];
+    }
+
+    // 被可达的 CLOSURE 按单元捕获的槽位, 调用被捕获的闭包可能改写它们
+    static BitSet cellSlots(List<Insn> insns, int[] depths) {
+        BitSet slots = new BitSet();
+        for (int i = 0; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            if (insn.op != OpCode.CLOSURE || depths[i] == -1) continue;
+            for (int j = 0; j < insn.upvalues.length; j += 2) {
+                if (insn.upvalues[j] == ObjClosure.CAPTURE_CELL) {
+                    slots.set(insn.upvalues[j + 1] & 0xff);
+                }
+            }
+        }
+        return slots;
+    }
+
+    private LoopEffects computeEffects(Loop loop) {
+        LoopEffects effects = new LoopEffects();
+        for (Block block : this.cfg.blocks) {
+            if (!loop.contains(block)) continue;
+            for (int i = block.start; i < block.end; i++) {
+                Insn insn = this.cfg.insns.get(i);
+                int after = this.cfg.depths[i] + StackDepth.effect(insn);
+                int pushes = pops(insn) + StackDepth.effect(insn);
+                effects.slots.set(after - pushes, after);
+                switch (insn.op) {
+                    case OpCode.SET_LOCAL:
+                        effects.slots.set(insn.a);
+                        break;
+                    case OpCode.SET_GLOBAL:
+                    case OpCode.DEFINE_GLOBAL:
+                        effects.globals.add(insn.a);
+                        break;
+                    case OpCode.SET_UPVALUE:
+                        effects.upvalues.add(insn.a);
+                        break;
+                    case OpCode.SET_PROPERTY:
+                        effects.properties.add(insn.a);
+                        break;
+                    default:
+                        if (clobbersMemory(insn.op)) effects.calls = true;
+                        break;
+                }
+            }
+        }
+        if (effects.calls) effects.slots.or(this.cellSlots);
+        return effects;
+    }
+
+    private void enter(Block block) {
+        this.depth = this.cfg.depths[block.start];
+        Arrays.fill(this.starts, -1);
+
+        if (block.order == 0) {
+            for (int p = 0; p < this.depth; p++) {
+                this.slots[p] = node(PARAM, p, NO_OPERANDS, null, block, 0);
+            }
+            this.globals = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            this.heap = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            this.upvalues = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+        } else {
+            merge(block);
+        }
+
+        Loop loop = block.loop;
+        if (loop != null) {
+            LoopEffects effects = this.effects.get(loop);
+            for (int p = effects.slots.nextSetBit(0); p >= 0 && p < this.depth; p = effects.slots.nextSetBit(p + 1)) {
+                this.slots[p] = node(PHI, p, NO_OPERANDS, null, block, 0);
+            }
+            if (effects.calls || !effects.globals.isEmpty()) this.globals = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            if (effects.calls || !effects.properties.isEmpty()) this.heap = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            if (effects.calls || !effects.upvalues.isEmpty()) this.upvalues = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+        }
+        this.entrySlots[block.id] = Arrays.copyOf(this.slots, this.depth);
+    }
+
+    // 合并已经处理过的前驱, 循环头部的回边由 enter 按循环里的写入处理
+    private void merge(Block block) {
+        boolean first = true;
+        for (Block predecessor : block.predecessors) {
+            if (predecessor.order >= block.order) continue;
+            Node[] slots = this.exitSlots[predecessor.id];
+            Node[] memory = this.exitMemory[predecessor.id];
+            if (first) {
+                System.arraycopy(slots, 0, this.slots, 0, this.depth);
+                this.globals = memory[0];
+                this.heap = memory[1];
+                this.upvalues = memory[2];
+                first = false;
+                continue;
+            }
+            for (int p = 0; p < this.depth; p++) {
+                if (this.slots[p] != slots[p] && this.slots[p].block != block) {
+                    this.slots[p] = node(PHI, p, NO_OPERANDS, null, block, 0);
+                }
+            }
+            if (this.globals != memory[0]) this.globals = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            if (this.heap != memory[1]) this.heap = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            if (this.upvalues != memory[2]) this.upvalues = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+        }
+    }
+
+    private void execute(int i) {
+        Insn insn = this.cfg.insns.get(i);
+        Block block = this.cfg.blockOf(i);
+        int pops = pops(insn);
+        int pushes = pops + StackDepth.effect(insn);
+
+        if (isValueOp(insn.op)) {
+            Node result;
+            int start = pops == 0 ? i : this.starts[this.depth - pops];
+            switch (insn.op) {
+                case OpCode.GET_LOCAL:
+                    result = this.slots[insn.a];
+                    break;
+                case OpCode.GET_GLOBAL:
+                    result = number(insn, NO_OPERANDS, this.globals);
+                    break;
+                case OpCode.GET_UPVALUE:
+                    result = number(insn, NO_OPERANDS, this.upvalues);
+                    break;
+                case OpCode.GET_PROPERTY:
+                    result = number(insn, operands(pops), this.heap);
+                    break;
+                default:
+                    result = number(insn, operands(pops), null);
+                    break;
+            }
+            this.depth -= pops;
+            if (insn.op != OpCode.GET_LOCAL && start != -1) {
+                findReuse(start, i, result);
+            }
+            push(result, start);
+            this.results[i] = result;
+            this.rangeStarts[i] = start;
+            return;
+        }
+
+        // 其他指令打断连续的计算段
+        Arrays.fill(this.starts, 0, this.depth, -1);
+        switch (insn.op) {
+            case OpCode.SET_LOCAL:
+                this.slots[insn.a] = this.slots[this.depth - 1];
+                return;
+            case OpCode.POP:
+                this.depth--;
+                return;
+            case OpCode.JUMP:
+            case OpCode.LOOP:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE:
+            case OpCode.GUARD_CALL:
+            case OpCode.GUARD_INVOKE:
+                return;
+            case OpCode.SET_PROPERTY: {
+                // 结果就是赋的值
+                Node value = this.slots[this.depth - 1];
+                this.depth -= 2;
+                this.heap = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+                push(value, -1);
+                this.results[i] = value;
+                return;
+            }
+            case OpCode.SET_GLOBAL:
+                this.globals = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+                return;
+            case OpCode.DEFINE_GLOBAL:
+                this.depth--;
+                this.globals = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+                return;
+            case OpCode.SET_UPVALUE:
+                this.upvalues = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+                return;
+            default:
+                break;
+        }
+
+        this.depth -= pops;
+        if (clobbersMemory(insn.op)) {
+            this.globals = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            this.heap = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            this.upvalues = node(MEMORY, 0, NO_OPERANDS, null, block, 0);
+            // 被调用的闭包可能通过单元改写局部变量
+            for (int p = this.cellSlots.nextSetBit(0); p >= 0 && p < this.depth; p = this.cellSlots.nextSetBit(p + 1)) {
+                this.slots[p] = node(OPAQUE, p, NO_OPERANDS, null, block, insn.line);
+            }
+        }
+        for (int j = 0; j < pushes; j++) {
+            Node result = node(OPAQUE, 0, NO_OPERANDS, null, block, insn.line);
+            push(result, -1);
+            this.results[i] = result;
+        }
+    }
+
+    // 已经有槽位持有同一个值时, 这段计算可以换成读取那个槽位
+    private void findReuse(int start, int end, Node result) {
+        for (int p = 0; p < this.depth; p++) {
+            if (this.slots[p] == result) {
+                this.reuses.add(new int[]{start, end, p});
+                return;
+            }
+        }
+    }
+
+    private Node[] operands(int count) {
+        return Arrays.copyOfRange(this.slots, this.depth - count, this.depth);
+    }
+
+    private void push(Node node, int start) {
+        this.slots[this.depth] = node;
+        this.starts[this.depth] = start;
+        this.depth++;
+    }
+
+    // 值编号: 相同的指令、操作数和内存版本得到同一个节点
+    private Node number(Insn insn, Node[] operands, Node memory) {
+        int[] parts = new int[operands.length + 3];
+        parts[0] = insn.op;
+        parts[1] = insn.op == OpCode.NIL || insn.op == OpCode.TRUE || insn.op == OpCode.FALSE ? 0 : insn.a;
+        parts[2] = memory == null ? -1 : memory.id;
+        for (int i = 0; i < operands.length; i++) {
+            parts[i + 3] = operands[i].id;
+        }
+        Key key = new Key(parts);
+        Node node = this.numbering.get(key);
+        if (node == null) {
+            node = node(insn.op, parts[1], operands, memory, null, insn.line);
+            this.numbering.put(key, node);
+        }
+        return node;
+    }
+
+    private Node node(byte op, int a, Node[] operands, Node memory, Block block, int line) {
+        return new Node(this.nodeCount++, op, a, operands, memory, block, line);
+    }
+
+    private static final class Key {
+
+        private final int[] parts;
+
+        private final int hash;
+
+        Key(int[] parts) {
+            this.parts = parts;
+            this.hash = Arrays.hashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(this.parts, ((Key) other).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    // 只读取栈、槽位或内存并压入一个结果的指令
+    public static boolean isValueOp(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.GET_PROPERTY:
+            case OpCode.EQUAL:
+            case OpCode.GREATER:
+            case OpCode.LESS:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.NOT:
+            case OpCode.NEGATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 可能报运行时错误的取值指令
+    public static boolean isFallible(byte op) {
+        switch (op) {
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_PROPERTY:
+            case OpCode.GREATER:
+            case OpCode.LESS:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.NEGATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 可能执行任意代码或者改写类的指令
+    public static boolean clobbersMemory(byte op) {
+        switch (op) {
+            case OpCode.CALL:
+            case OpCode.TAIL_CALL:
+            case OpCode.CALL_ALIAS:
+            case OpCode.INVOKE:
+            case OpCode.SUPER_INVOKE:
+            case OpCode.CLASS:
+            case OpCode.INHERIT:
+            case OpCode.METHOD:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 指令弹出 (或读取后重新压入) 的栈顶值个数, 不认识的指令返回 -1
+    public static int pops(Insn insn) {
+        switch (insn.op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.CLOSURE:
+            case OpCode.CLASS:
+            case OpCode.JUMP:
+            case OpCode.LOOP:
+            case OpCode.JUMP_IF_FALSE:
+            case OpCode.JUMP_IF_TRUE:
+            case OpCode.GUARD_CALL:
+            case OpCode.GUARD_INVOKE:
+                return 0;
+            case OpCode.POP:
+            case OpCode.SET_LOCAL:
+            case OpCode.SET_GLOBAL:
+            case OpCode.SET_UPVALUE:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.GET_PROPERTY:
+            case OpCode.NOT:
+            case OpCode.NEGATE:
+            case OpCode.PRINT:
+            case OpCode.CLOSE_UPVALUE:
+            case OpCode.RETURN:
+            case OpCode.GET_ALIAS:
+            case OpCode.GET_ALIAS_METHOD:
+                return 1;
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.EQUAL:
+            case OpCode.GREATER:
+            case OpCode.LESS:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.INHERIT:
+            case OpCode.METHOD:
+                return 2;
+            case OpCode.CALL:
+            case OpCode.TAIL_CALL:
+                return insn.a + 1;
+            case OpCode.CALL_ALIAS:
+                return insn.a + 2;
+            case OpCode.INVOKE:
+                return insn.b + 1;
+            case OpCode.SUPER_INVOKE:
+                return insn.b + 2;
+            default:
+                return -1;
+        }
+    }
+
+    // 指令读取的栈顶值个数, 条件跳转和守卫只看不弹
+    public static int reads(Insn insn) {
+        if (insn.op == OpCode.JUMP_IF_FALSE || insn.op == OpCode.JUMP_IF_TRUE) return 1;
+        if (insn.op == OpCode.GUARD_CALL || insn.op == OpCode.GUARD_INVOKE) return insn.a + 1;
+        if (insn.op == OpCode.POP) return 0;
+        return pops(insn);
+    }
+}
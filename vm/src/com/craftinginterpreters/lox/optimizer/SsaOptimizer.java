@@ -0,0 +1,197 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+import com.craftinginterpreters.lox.objects.ObjClosure;
+import com.craftinginterpreters.lox.optimizer.ControlFlowGraph.Block;
+import com.craftinginterpreters.lox.optimizer.ControlFlowGraph.Loop;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * -O3 的优化层: 在控制流图和 SSA 值图上做循环不变量外提、公共子表达式消除和死存储消除, 结果仍写回栈式字节码
+ *
+ * 1. 循环不变量外提, 见 LoopHoisting; 先内层后外层, 每外提一次重新分析
+ * 2. 公共子表达式消除: 同一个值已经在某个槽位 (局部变量或者还在栈上的临时值) 里时, 重新计算的那一段改成 GET_LOCAL
+ * 3. 死存储消除: 之后不会再读的局部变量赋值删掉, 被闭包按单元捕获的局部变量除外
+ *
+ * 不认识的指令或者不可归约的控制流直接放弃, 字节码保持原样; 改动过的字节码再交给 Peephole 清理
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class SsaOptimizer {
+
+    // 外提的轮数上限, 每轮处理一个循环
+    private static final int MAX_ROUNDS = 16;
+
+    private SsaOptimizer() {}
+
+    // 返回字节码是否有改动
+    public static boolean optimize(Chunk chunk, int arity) {
+        List<Insn> insns = Bytecode.decode(chunk);
+        boolean changed = false;
+        for (int round = 0; round < MAX_ROUNDS && hoistLoop(insns, arity); round++) {
+            changed = true;
+        }
+        changed |= eliminateCommonSubexpressions(insns, arity);
+        changed |= eliminateDeadStores(insns, arity);
+        if (changed) {
+            Bytecode.encode(insns, chunk);
+        }
+        return changed;
+    }
+
+    private static boolean hoistLoop(List<Insn> insns, int arity) {
+        ControlFlowGraph cfg = new ControlFlowGraph(insns, arity);
+        Ssa ssa = Ssa.build(cfg);
+        if (ssa == null) return false;
+        // 内层循环排在外层之后, 倒序先处理内层
+        for (int i = cfg.loops.size() - 1; i >= 0; i--) {
+            Loop loop = cfg.loops.get(i);
+            if (LoopHoisting.hoist(cfg, ssa, loop)) return true;
+        }
+        return false;
+    }
+
+    private static boolean eliminateCommonSubexpressions(List<Insn> insns, int arity) {
+        ControlFlowGraph cfg = new ControlFlowGraph(insns, arity);
+        Ssa ssa = Ssa.build(cfg);
+        if (ssa == null) return false;
+
+        // 按终点排序后从后往前取, 嵌套的计算段只保留最外层
+        List<int[]> reuses = new ArrayList<>(ssa.reuses);
+        reuses.sort((x, y) -> Integer.compare(x[1], y[1]));
+        boolean[] removed = new boolean[insns.size()];
+        boolean changed = false;
+        int coveredFrom = Integer.MAX_VALUE;
+        for (int r = reuses.size() - 1; r >= 0; r--) {
+            int start = reuses.get(r)[0];
+            int end = reuses.get(r)[1];
+            int slot = reuses.get(r)[2];
+            if (end >= coveredFrom) continue;
+            byte op = insns.get(end).op;
+            if (start == end && op != OpCode.GET_GLOBAL && op != OpCode.GET_UPVALUE) continue;
+            if (!identitySafe(cfg, start, end)) continue;
+
+            Insn first = insns.get(start);
+            first.op = OpCode.GET_LOCAL;
+            first.a = slot;
+            for (int i = start + 1; i <= end; i++) {
+                removed[i] = true;
+            }
+            coveredFrom = start;
+            changed = true;
+        }
+        Bytecode.remove(insns, removed);
+        return changed;
+    }
+
+    /*
+     * 以 GET_PROPERTY 结尾的计算每次都可能创建新的绑定方法, 复用之前的结果会让两处拿到同一个对象
+     * 只有结果紧接着被调用、被读取属性或参与运算这类看不出同一性的用法时才能复用
+     */
+    static boolean identitySafe(ControlFlowGraph cfg, int start, int end) {
+        if (cfg.insns.get(end).op != OpCode.GET_PROPERTY) return true;
+        int position = cfg.depths[start];
+        Block block = cfg.blockOf(end);
+        for (int k = end + 1; k < block.end; k++) {
+            Insn insn = cfg.insns.get(k);
+            int depth = cfg.depths[k];
+            if (insn.op == OpCode.POP && position == depth - 1) return true;
+            if (position < depth - Ssa.reads(insn)) continue;
+            switch (insn.op) {
+                case OpCode.GREATER:
+                case OpCode.LESS:
+                case OpCode.ADD:
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE:
+                case OpCode.NOT:
+                case OpCode.NEGATE:
+                case OpCode.GET_PROPERTY:
+                case OpCode.PRINT:
+                    return true;
+                case OpCode.CALL:
+                    return position == depth - insn.a - 1;
+                case OpCode.INVOKE:
+                    return position == depth - insn.b - 1;
+                case OpCode.SET_PROPERTY:
+                    return position == depth - 2;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean eliminateDeadStores(List<Insn> insns, int arity) {
+        ControlFlowGraph cfg = new ControlFlowGraph(insns, arity);
+        Ssa ssa = Ssa.build(cfg);
+        if (ssa == null) return false;
+
+        // 逆后序倒过来迭代到不动点, 得到每个块入口处活跃的槽位
+        BitSet[] liveIn = new BitSet[cfg.blocks.size()];
+        for (Block block : cfg.blocks) {
+            liveIn[block.id] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = cfg.order.size() - 1; b >= 0; b--) {
+                Block block = cfg.order.get(b);
+                BitSet live = liveOut(block, liveIn);
+                for (int i = block.end - 1; i >= block.start; i--) {
+                    transfer(cfg, i, live);
+                }
+                if (!live.equals(liveIn[block.id])) {
+                    liveIn[block.id] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean[] removed = new boolean[insns.size()];
+        boolean eliminated = false;
+        for (Block block : cfg.order) {
+            BitSet live = liveOut(block, liveIn);
+            for (int i = block.end - 1; i >= block.start; i--) {
+                Insn insn = insns.get(i);
+                if (insn.op == OpCode.SET_LOCAL && !live.get(insn.a) && !ssa.cellSlots.get(insn.a)) {
+                    removed[i] = true;
+                    eliminated = true;
+                }
+                transfer(cfg, i, live);
+            }
+        }
+        Bytecode.remove(insns, removed);
+        return eliminated;
+    }
+
+    private static BitSet liveOut(Block block, BitSet[] liveIn) {
+        BitSet live = new BitSet();
+        for (Block successor : block.successors) {
+            live.or(liveIn[successor.id]);
+        }
+        return live;
+    }
+
+    // 倒着执行一条指令: 先去掉它写入的槽位, 再加上它读取的槽位; POP 丢弃的值不算读取
+    private static void transfer(ControlFlowGraph cfg, int i, BitSet live) {
+        Insn insn = cfg.insns.get(i);
+        int before = cfg.depths[i];
+        int after = before + StackDepth.effect(insn);
+        int pushes = Ssa.pops(insn) + StackDepth.effect(insn);
+        live.clear(after - pushes, after);
+        if (insn.op == OpCode.SET_LOCAL) live.clear(insn.a);
+        live.set(before - Ssa.reads(insn), before);
+        if (insn.op == OpCode.GET_LOCAL) live.set(insn.a);
+        if (insn.op == OpCode.CLOSURE) {
+            for (int j = 0; j < insn.upvalues.length; j += 2) {
+                if (insn.upvalues[j] != ObjClosure.CAPTURE_UPVALUE) live.set(insn.upvalues[j + 1] & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 计算函数执行时值栈的最大深度 (从栈帧基址算起, 含槽位 0、参数和局部变量)
+ * 编译器生成的字节码在每条指令处的栈深度都是固定的, 沿控制流传播一遍即可
+ * 虚拟机在调用时据此保证值栈容量, 分派循环里的压栈不用再检查越界
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class StackDepth {
+
+    // 融合指令的慢路径会临时多压入两个操作数
+    private static final int SLOW_PATH_EXTRA = 2;
+
+    private StackDepth() {}
+
+    public static int compute(Chunk chunk, int arity) {
+        List<Insn> insns = Bytecode.decode(chunk);
+        int[] depths = depths(insns, arity);
+        int max = 1 + arity;
+        for (int i = 0; i < insns.size(); i++) {
+            if (depths[i] == -1) continue;
+            max = Math.max(max, Math.max(depths[i], depths[i] + effect(insns.get(i))));
+        }
+        return max + SLOW_PATH_EXTRA;
+    }
+
+    // 每条指令执行前的栈深度, 不可达的指令为 -1
+    public static int[] depths(List<Insn> insns, int arity) {
+        Map<Insn, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < insns.size(); i++) {
+            indexes.put(insns.get(i), i);
+        }
+
+        int[] depths = new int[insns.size()];
+        Arrays.fill(depths, -1);
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        if (!insns.isEmpty()) {
+            depths[0] = 1 + arity;
+            worklist.push(0);
+        }
+
+        while (!worklist.isEmpty()) {
+            int i = worklist.pop();
+            Insn insn = insns.get(i);
+            int after = depths[i] + effect(insn);
+
+            if (insn.target != null) {
+                flow(depths, worklist, indexes.get(insn.target), after);
+            }
+            if (fallsThrough(insn.op) && i + 1 < insns.size()) {
+                flow(depths, worklist, i + 1, after);
+            }
+        }
+        return depths;
+    }
+
+    private static void flow(int[] depths, ArrayDeque<Integer> worklist, int index, int depth) {
+        if (depths[index] != -1) return;
+        depths[index] = depth;
+        worklist.push(index);
+    }
+
+    static boolean fallsThrough(byte op) {
+        return op != OpCode.JUMP && op != OpCode.LOOP && op != OpCode.RETURN;
+    }
+
+    // 指令执行后栈深度的变化量
+    public static int effect(Insn insn) {
+        switch (insn.op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.CLOSURE:
+            case OpCode.CLASS:
+            case OpCode.ADD_LOCAL_CONSTANT:
+            case OpCode.SUBTRACT_LOCAL_CONSTANT:
+            case OpCode.GET_ALIAS:
+            case OpCode.GET_ALIAS_METHOD:
+                return 1;
+            case OpCode.GET_LOCAL_LOCAL:
+            case OpCode.GET_LOCAL_CONSTANT:
+                return 2;
+            case OpCode.POP:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.EQUAL:
+            case OpCode.GREATER:
+            case OpCode.LESS:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.ADD_UNCHECKED:
+            case OpCode.SUBTRACT_UNCHECKED:
+            case OpCode.MULTIPLY_UNCHECKED:
+            case OpCode.DIVIDE_UNCHECKED:
+            case OpCode.GREATER_UNCHECKED:
+            case OpCode.LESS_UNCHECKED:
+            case OpCode.PRINT:
+            case OpCode.CLOSE_UPVALUE:
+            case OpCode.RETURN:
+            case OpCode.INHERIT:
+            case OpCode.METHOD:
+                return -1;
+            case OpCode.EQUAL_JUMP_IF_FALSE:
+            case OpCode.GREATER_JUMP_IF_FALSE:
+            case OpCode.LESS_JUMP_IF_FALSE:
+                return -2;
+            case OpCode.CALL:
+            case OpCode.TAIL_CALL:
+                return -insn.a;
+            case OpCode.CALL_ALIAS:
+                return -insn.a - 1;
+            case OpCode.INVOKE:
+                return -insn.b;
+            case OpCode.SUPER_INVOKE:
+                return -insn.b - 1;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox.optimizer;
+
+import com.craftinginterpreters.lox.chunk.Chunk;
+import com.craftinginterpreters.lox.chunk.OpCode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 超级指令融合
+ * 编译结束后把高频的指令序列改写成一条融合指令, 减少分派次数
+ * 序列中除第一条外都不能是跳转目标, 融合后的指令沿用第一条指令的行号
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class Superinstructions {
+
+    private Superinstructions() {}
+
+    public static void fuse(Chunk chunk) {
+        List<Insn> insns = Bytecode.decode(chunk);
+
+        Map<Insn, Integer> indexes = new IdentityHashMap<>();
+        Set<Insn> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < insns.size(); i++) {
+            Insn insn = insns.get(i);
+            indexes.put(insn, i);
+            if (insn.target != null) targets.add(insn.target);
+        }
+
+        List<Insn> fused = new ArrayList<>(insns.size());
+        for (int i = 0; i < insns.size(); ) {
+            fused.add(insns.get(i));
+            i += fuseAt(insns, i, indexes, targets);
+        }
+
+        if (fused.size() != insns.size()) {
+            Bytecode.encode(fused, chunk);
+        }
+    }
+
+    // 尝试以第 i 条指令开头融合, 原地改写第一条指令, 返回消耗的指令数
+    private static int fuseAt(List<Insn> insns, int i, Map<Insn, Integer> indexes, Set<Insn> targets) {
+        Insn first = insns.get(i);
+
+        // 不检查类型的指令按原指令融合, 融合指令自带的类型检查很便宜, 省下的分派更多
+        switch (OpCode.checked(first.op)) {
+            case OpCode.GET_LOCAL: {
+                // 融合指令的常量下标只有一个字节, 带 WIDE 前缀的常量不参与融合
+                boolean narrow = i + 1 < insns.size() && insns.get(i + 1).a <= 0xff;
+                if (narrow && matches(insns, i, targets, OpCode.GET_LOCAL, OpCode.CONSTANT, OpCode.ADD, OpCode.SET_LOCAL, OpCode.POP)
+                        && insns.get(i + 3).a == first.a) {
+                    return rewrite(first, OpCode.INCREMENT_LOCAL, insns.get(i + 1).a, 5);
+                }
+                if (narrow && matches(insns, i, targets, OpCode.GET_LOCAL, OpCode.CONSTANT, OpCode.ADD)) {
+                    return rewrite(first, OpCode.ADD_LOCAL_CONSTANT, insns.get(i + 1).a, 3);
+                }
+                if (narrow && matches(insns, i, targets, OpCode.GET_LOCAL, OpCode.CONSTANT, OpCode.SUBTRACT)) {
+                    return rewrite(first, OpCode.SUBTRACT_LOCAL_CONSTANT, insns.get(i + 1).a, 3);
+                }
+                if (narrow && matches(insns, i, targets, OpCode.GET_LOCAL, OpCode.CONSTANT)) {
+                    return rewrite(first, OpCode.GET_LOCAL_CONSTANT, insns.get(i + 1).a, 2);
+                }
+                if (matches(insns, i, targets, OpCode.GET_LOCAL, OpCode.GET_LOCAL)) {
+                    return rewrite(first, OpCode.GET_LOCAL_LOCAL, insns.get(i + 1).a, 2);
+                }
+                return 1;
+            }
+            case OpCode.EQUAL:
+                return compareAndBranch(insns, i, indexes, targets, OpCode.EQUAL_JUMP_IF_FALSE);
+            case OpCode.GREATER:
+                return compareAndBranch(insns, i, indexes, targets, OpCode.GREATER_JUMP_IF_FALSE);
+            case OpCode.LESS:
+                return compareAndBranch(insns, i, indexes, targets, OpCode.LESS_JUMP_IF_FALSE);
+            default:
+                return 1;
+        }
+    }
+
+    /*
+     * 比较; JUMP_IF_FALSE L; POP 且 L 处也是 POP 时, 两条路径都会丢弃条件值,
+     * 融合后的指令直接弹出操作数并跳到 L 之后, L 处的 POP 留给其他可能到达它的路径
+     */
+    private static int compareAndBranch(List<Insn> insns, int i, Map<Insn, Integer> indexes,
+                                        Set<Insn> targets, byte fusedOp) {
+        Insn first = insns.get(i);
+        if (!matches(insns, i, targets, OpCode.checked(first.op), OpCode.JUMP_IF_FALSE, OpCode.POP)) return 1;
+
+        Insn jump = insns.get(i + 1);
+        int targetIndex = indexes.get(jump.target);
+        if (jump.target.op != OpCode.POP || targetIndex + 1 >= insns.size()) return 1;
+
+        Insn target = insns.get(targetIndex + 1);
+        targets.add(target);
+        first.op = fusedOp;
+        first.target = target;
+        return 3;
+    }
+
+    private static int rewrite(Insn first, byte op, int b, int length) {
+        first.op = op;
+        first.b = b;
+        return length;
+    }
+
+    private static boolean matches(List<Insn> insns, int i, Set<Insn> targets, byte... ops) {
+        if (i + ops.length > insns.size()) return false;
+        for (int j = 0; j < ops.length; j++) {
+            Insn insn = insns.get(i + j);
+            if (OpCode.checked(insn.op) != ops[j]) return false;
+            if (j > 0 && targets.contains(insn)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+package com.craftinginterpreters.lox.value;
+
+import com.craftinginterpreters.lox.objects.Obj;
+import com.craftinginterpreters.lox.objects.ObjString;
+import com.craftinginterpreters.lox.objects.ObjType;
+
+/**
+ * NaN-boxing 编码的值操作
+ * 数字直接使用 double 的位模式, nil/true/false/对象 编码在 quiet NaN 的空间中
+ * 对象本身的引用不在 long 中, 由调用方放在平行的 Obj 数组里
+ *
+ * 数字另有一种小整数表示: 高 16 位是 INT_TAG, 低 32 位是 int; 规整后的 NaN 只有一个, 不会和它冲突
+ * 整数字面量和整数之间的加、减、乘、取负得到小整数, 溢出或者结果是 -0 时改用 double, 除法总是得到 double
+ * 两种表示只是内部的区别: isNumber/asNumber 同时接受两者, 相等比较按数值, 打印时都按 double 格式输出
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public final class NanBox {
+
+    private static final long SIGN_BIT = 0x8000000000000000L;
+
+    private static final long QNAN = 0x7ffc000000000000L;
+
+    private static final long TAG_NIL = 1;   // 01.
+
+    private static final long TAG_FALSE = 2; // 10.
+
+    private static final long TAG_TRUE = 3;  // 11.
+
+    private static final long INT_TAG = QNAN | 0x0001000000000000L;
+
+    private static final long INT_TAG_MASK = 0xffff000000000000L;
+
+    public static final long NIL_VAL = QNAN | TAG_NIL;
+
+    public static final long FALSE_VAL = QNAN | TAG_FALSE;
+
+    public static final long TRUE_VAL = QNAN | TAG_TRUE;
+
+    public static final long OBJ_VAL = SIGN_BIT | QNAN;
+
+    // 标签 0 不对应任何值, 用作全局变量表中未定义槽位的哨兵
+    public static final long UNDEFINED_VAL = QNAN;
+
+    private NanBox() {}
+
+    // 非数字的值去掉符号位和低两位标签后都是 QNAN, 小整数带着 INT_TAG 多出的那一位, double 的 NaN 已经规整过
+    public static boolean isNumber(long value) {
+        return (value & ~(SIGN_BIT | 3)) != QNAN;
+    }
+
+    public static boolean isInt(long value) {
+        return (value & INT_TAG_MASK) == INT_TAG;
+    }
+
+    // 高 16 位取与之后还是 INT_TAG 的只有两个小整数, 其他值按位取与都会缺少某一位
+    public static boolean bothInts(long a, long b) {
+        return (a & b & INT_TAG_MASK) == INT_TAG;
+    }
+
+    public static boolean isNil(long value) {
+        return value == NIL_VAL;
+    }
+
+    public static boolean isBool(long value) {
+        return (value | 1) == TRUE_VAL;
+    }
+
+    public static boolean isObj(long value) {
+        return value == OBJ_VAL;
+    }
+
+    public static boolean isObjType(long value, Obj obj, ObjType type) {
+        return value == OBJ_VAL && obj.getType() == type;
+    }
+
+    public static double asNumber(long value) {
+        return isInt(value) ? (int) value : Double.longBitsToDouble(value);
+    }
+
+    public static boolean asBool(long value) {
+        return value == TRUE_VAL;
+    }
+
+    // doubleToLongBits 会把所有 NaN 规整为同一个, 保证不会和标签值冲突
+    public static long number(double number) {
+        return Double.doubleToLongBits(number);
+    }
+
+    public static long smallInt(int number) {
+        return INT_TAG | (number & 0xffffffffL);
+    }
+
+    // 常量用: 能用小整数表示的数字 (int 范围内的整数, 不含 -0) 用小整数, 否则用 double
+    public static long narrow(double number) {
+        int i = (int) number;
+        if (i == number && (i != 0 || Double.doubleToRawLongBits(number) == 0)) return smallInt(i);
+        return number(number);
+    }
+
+    // 调用方已经确认 a、b 都是数字
+    public static long add(long a, long b) {
+        if (bothInts(a, b)) {
+            int x = (int) a;
+            int y = (int) b;
+            int r = x + y;
+            // 同号相加得到异号的结果就是溢出
+            if (((x ^ r) & (y ^ r)) >= 0) return smallInt(r);
+        }
+        return number(asNumber(a) + asNumber(b));
+    }
+
+    public static long subtract(long a, long b) {
+        if (bothInts(a, b)) {
+            int x = (int) a;
+            int y = (int) b;
+            int r = x - y;
+            if (((x ^ y) & (x ^ r)) >= 0) return smallInt(r);
+        }
+        return number(asNumber(a) - asNumber(b));
+    }
+
+    public static long multiply(long a, long b) {
+        if (bothInts(a, b)) {
+            int x = (int) a;
+            int y = (int) b;
+            long r = (long) x * y;
+            // 0 乘负数在 double 里是 -0, 交给下面按 double 计算
+            if ((int) r == r && (r != 0 || (x | y) >= 0)) return smallInt((int) r);
+        }
+        return number(asNumber(a) * asNumber(b));
+    }
+
+    public static long divide(long a, long b) {
+        return number(asNumber(a) / asNumber(b));
+    }
+
+    public static long negate(long a) {
+        if (isInt(a)) {
+            int x = (int) a;
+            if (x != 0 && x != Integer.MIN_VALUE) return smallInt(-x);
+        }
+        return number(-asNumber(a));
+    }
+
+    public static boolean less(long a, long b) {
+        if (bothInts(a, b)) return (int) a < (int) b;
+        return asNumber(a) < asNumber(b);
+    }
+
+    public static boolean greater(long a, long b) {
+        if (bothInts(a, b)) return (int) a > (int) b;
+        return asNumber(a) > asNumber(b);
+    }
+
+    public static long bool(boolean bool) {
+        return bool ? TRUE_VAL : FALSE_VAL;
+    }
+
+    public static boolean isFalsey(long value) {
+        return value == NIL_VAL || value == FALSE_VAL;
+    }
+
+    public static boolean valuesEqual(long a, Obj aObj, long b, Obj bObj) {
+        // 同一个数可能是小整数也可能是 double, 按数值比较
+        if (isNumber(a) && isNumber(b)) return asNumber(a) == asNumber(b);
+        if (a == OBJ_VAL && b == OBJ_VAL) {
+            if (aObj == bObj) return true;
+            // 拼接出来的绳索还没有驻留, 按内容比较
+            return aObj.getType() == ObjType.STRING && bObj.getType() == ObjType.STRING
+                    && ((ObjString) aObj).contentEquals((ObjString) bObj);
+        }
+        return a == b;
+    }
+
+    public static void print(long value, Obj obj) {
+        if (isNumber(value)) {
+            System.out.print(asNumber(value));
+        } else if (value == NIL_VAL) {
+            System.out.print("nil");
+        } else if (isBool(value)) {
+            System.out.print(asBool(value) ? "true" : "false");
+        } else {
+            obj.print();
+        }
+    }
+}
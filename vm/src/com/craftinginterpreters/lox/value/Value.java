@@ -3,77 +3,88 @@ package com.craftinginterpreters.lox.value;
 import com.craftinginterpreters.lox.objects.*;
 
 /**
+ * 值的装箱形式, 用于常量表、全局变量、字段等堆上存储
+ * 内部就是 NaN-boxing 的位模式加上对象引用, 虚拟机栈上则直接使用未装箱的 long
+ *
  * @author hlx
  * @date 2023-08-05
  */
 public class Value {
 
-    private final ValueType type;
+    public static final Value NIL = new Value();
 
-    private boolean bool;
+    public static final Value TRUE = new Value(ValueType.BOOL, true);
 
-    private Double number;
+    public static final Value FALSE = new Value(ValueType.BOOL, false);
 
-    private Obj obj;
+    private final long bits;
+
+    private final Obj obj;
 
     public Obj getObj() {
         return obj;
     }
 
-    public void setObj(Obj obj) {
-        this.obj = obj;
+    public long getBits() {
+        return bits;
     }
 
     public Value(ValueType type, Obj obj) {
-        this.type = type;
+        this.bits = NanBox.OBJ_VAL;
         this.obj = obj;
     }
 
     public Value(ValueType type, double number) {
-        this.type = type;
-        this.number = number;
+        this.bits = NanBox.number(number);
+        this.obj = null;
     }
 
     public Value(ValueType type, boolean bool) {
-        this.type = type;
-        this.bool = bool;
+        this.bits = NanBox.bool(bool);
+        this.obj = null;
     }
 
     public Value() {
-        this.type = ValueType.NIL;
+        this.bits = NanBox.NIL_VAL;
+        this.obj = null;
+    }
+
+    private Value(long bits) {
+        this.bits = bits;
+        this.obj = null;
+    }
+
+    // 数字常量, 整数用小整数表示
+    public static Value number(double number) {
+        return new Value(NanBox.narrow(number));
+    }
+
+    // 从栈上的未装箱值装箱, nil/布尔/对象 都复用已有实例
+    public static Value of(long bits, Obj obj) {
+        if (NanBox.isNumber(bits)) return new Value(bits);
+        if (bits == NanBox.OBJ_VAL) return obj.toValue();
+        if (bits == NanBox.NIL_VAL) return NIL;
+        return bits == NanBox.TRUE_VAL ? TRUE : FALSE;
     }
 
     public void print() {
-        switch (this.type) {
-            case BOOL:
-                System.out.printf(this.bool ? "true" : "false");
-                break;
-            case NIL:
-                System.out.print("nil");
-                break;
-            case NUMBER:
-                System.out.print(this.number);
-                break;
-            case OBJ:
-                this.obj.print();
-                break;
-        }
+        NanBox.print(this.bits, this.obj);
     }
 
     public boolean isNumber() {
-        return this.type == ValueType.NUMBER;
+        return NanBox.isNumber(this.bits);
     }
 
     public boolean isBool() {
-        return this.type == ValueType.BOOL;
+        return NanBox.isBool(this.bits);
     }
 
     public boolean asBool() {
-        return this.bool;
+        return NanBox.asBool(this.bits);
     }
 
     public boolean isInstance() {
-        return this.type == ValueType.OBJ && this.obj.getType() == ObjType.INSTANCE;
+        return NanBox.isObjType(this.bits, this.obj, ObjType.INSTANCE);
     }
 
     public ObjInstance asInstance() {
@@ -81,7 +92,7 @@ public class Value {
     }
 
     public boolean isClosure() {
-        return this.type == ValueType.OBJ && this.obj.getType() == ObjType.CLOSURE;
+        return NanBox.isObjType(this.bits, this.obj, ObjType.CLOSURE);
     }
 
     public ObjClosure asClosure() {
@@ -89,7 +100,7 @@ public class Value {
     }
 
     public boolean isClass() {
-        return this.type == ValueType.OBJ && this.obj.getType() == ObjType.CLASS;
+        return NanBox.isObjType(this.bits, this.obj, ObjType.CLASS);
     }
 
     public ObjClass asClass() {
@@ -97,7 +108,7 @@ public class Value {
     }
 
     public boolean isString() {
-        return this.type == ValueType.OBJ && this.obj.getType() == ObjType.STRING;
+        return NanBox.isObjType(this.bits, this.obj, ObjType.STRING);
     }
 
     public ObjString asString() {
@@ -105,15 +116,15 @@ public class Value {
     }
 
     public double asNumber() {
-        return this.number;
+        return NanBox.asNumber(this.bits);
     }
 
     public boolean isNil() {
-        return this.type == ValueType.NIL;
+        return NanBox.isNil(this.bits);
     }
 
     public boolean isObj() {
-        return this.type == ValueType.OBJ;
+        return NanBox.isObj(this.bits);
     }
 
     public ObjBoundMethod asBoundMethod() {
@@ -129,19 +140,6 @@ public class Value {
     }
 
     public boolean equals(Value value) {
-        if (this.type != value.type) return false;
-        switch (this.type) {
-            case BOOL:
-                return this.asBool() == value.asBool();
-            case NIL:
-                return true;
-            case NUMBER:
-                return this.asNumber() == value.asNumber();
-            case OBJ: {
-                return this.obj == value.obj;
-            }
-            default:
-                return false; // Unreachable.
-        }
+        return NanBox.valuesEqual(this.bits, this.obj, value.bits, value.obj);
     }
 }
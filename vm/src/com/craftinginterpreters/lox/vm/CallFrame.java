@@ -1,7 +1,9 @@
 package com.craftinginterpreters.lox.vm;
 
 
+import com.craftinginterpreters.lox.chunk.Chunk;
 import com.craftinginterpreters.lox.objects.ObjClosure;
+import com.craftinginterpreters.lox.value.Value;
 
 /**
  * @author hlx
@@ -11,6 +13,13 @@ public class CallFrame {
 
     private ObjClosure closure;
 
+    // 缓存当前函数的字节码和常量, 分派循环切换栈帧时直接取用
+    private Chunk chunk;
+
+    private byte[] codes;
+
+    private Value[] constants;
+
     private int ip;
 
     private int slots;
@@ -23,6 +32,22 @@ public class CallFrame {
 
     public void setClosure(ObjClosure closure) {
         this.closure = closure;
+        Chunk chunk = closure.getFunction().getChunk();
+        this.chunk = chunk;
+        this.codes = chunk.getCodes();
+        this.constants = chunk.getConstants();
+    }
+
+    public Chunk getChunk() {
+        return chunk;
+    }
+
+    public byte[] getCodes() {
+        return codes;
+    }
+
+    public Value[] getConstants() {
+        return constants;
     }
 
     public int getIp() {
@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.objects.Obj;
+import com.craftinginterpreters.lox.objects.ObjString;
+import com.craftinginterpreters.lox.objects.StringTable;
+import com.craftinginterpreters.lox.objects.Table;
+import com.craftinginterpreters.lox.optimizer.Inliner;
+import com.craftinginterpreters.lox.value.NanBox;
+import com.craftinginterpreters.lox.value.Value;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 全局变量表
+ * 编译器在编译期把全局变量名解析成槽位, 字节码直接按槽位读写, 运行时不再哈希变量名
+ * 槽位只分配不回收, 还没定义的槽位存放 NanBox.UNDEFINED_VAL
+ * 嵌入方和 REPL 仍然可以按名字读写, 名字先驻留再查表
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class Globals {
+
+    public static final int SLOTS_MAX = 1 << 16;
+
+    private final StringTable strings;
+
+    private final Table<Integer> slots;
+
+    private ObjString[] names;
+
+    // 与虚拟机栈相同的未装箱表示
+    long[] values;
+
+    Obj[] refs;
+
+    private int count;
+
+    // 编译器记录的顶层可内联函数, 按槽位索引, 和槽位一起属于这个虚拟机
+    private Map<Integer, Inliner.Template> inlineFunctions = new HashMap<>();
+
+    public Globals(StringTable strings) {
+        this.strings = strings;
+        this.slots = new Table<>();
+        this.names = new ObjString[16];
+        this.values = new long[16];
+        this.refs = new Obj[16];
+    }
+
+    // 返回名字对应的槽位, 没有则分配一个未定义的槽位; 槽位用尽时返回 -1
+    public int resolve(String name) {
+        return resolve(this.strings.intern(name));
+    }
+
+    public int resolve(ObjString name) {
+        Integer slot = this.slots.get(name);
+        if (slot != null) return slot;
+        if (this.count == SLOTS_MAX) return -1;
+
+        if (this.count == this.names.length) {
+            int capacity = this.count * 2;
+            this.names = Arrays.copyOf(this.names, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.refs = Arrays.copyOf(this.refs, capacity);
+        }
+        this.names[this.count] = name;
+        this.values[this.count] = NanBox.UNDEFINED_VAL;
+        this.slots.put(name, this.count);
+        return this.count++;
+    }
+
+    public String getName(int slot) {
+        return this.names[slot].getString();
+    }
+
+    // 按槽位读取未装箱的值, 供即时编译的代码使用; 未定义时是 NanBox.UNDEFINED_VAL
+    public long getBits(int slot) {
+        return this.values[slot];
+    }
+
+    public Obj getRef(int slot) {
+        return this.refs[slot];
+    }
+
+    public boolean isDefined(int slot) {
+        return this.values[slot] != NanBox.UNDEFINED_VAL;
+    }
+
+    // 按名字读取, 未定义时返回 null
+    public Value get(String name) {
+        Integer slot = this.slots.get(this.strings.intern(name));
+        if (slot == null || !isDefined(slot)) return null;
+        return Value.of(this.values[slot], this.refs[slot]);
+    }
+
+    public void define(String name, Value value) {
+        int slot = resolve(name);
+        if (slot == -1) {
+            throw new IllegalStateException("Too many global variables.");
+        }
+        this.values[slot] = value.getBits();
+        this.refs[slot] = value.getObj();
+        // 嵌入方按名字重新定义后, 编译期记录的函数体不再对应这个槽位
+        this.inlineFunctions.remove(slot);
+    }
+
+    public Map<Integer, Inliner.Template> getInlineFunctions() {
+        return inlineFunctions;
+    }
+
+    public void setInlineFunctions(Map<Integer, Inliner.Template> inlineFunctions) {
+        this.inlineFunctions = inlineFunctions;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,114 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.objects.ObjClass;
+import com.craftinginterpreters.lox.objects.ObjClosure;
+import com.craftinginterpreters.lox.objects.Shape;
+
+import java.util.Arrays;
+
+/**
+ * GET_PROPERTY、SET_PROPERTY、INVOKE 调用点上的内联缓存
+ * 按接收者的 Shape 缓存解析结果, Shape 由类的根 Shape 转移而来, 所以同时决定了接收者的类
+ * 先是单态, 最多缓存 POLYMORPHIC_MAX 个 Shape, 再多就转为超多态, 之后只走慢路径
+ *
+ * @author hlx
+ * @date 2026-10-18
+ */
+public class InlineCache {
+
+    public static final int POLYMORPHIC_MAX = 4;
+
+    /**
+     * 一条缓存项
+     * 字段: slot 是字段槽位, next 不为空时表示添加字段, 要转移到 next
+     * 方法: method 是解析出的闭包, 只在类的版本号没变时有效
+     */
+    static final class Entry {
+        final Shape shape;
+        final int slot;
+        final Shape next;
+        final ObjClass klass;
+        final int version;
+        final ObjClosure method;
+
+        private Entry(Shape shape, int slot, Shape next, ObjClass klass, ObjClosure method) {
+            this.shape = shape;
+            this.slot = slot;
+            this.next = next;
+            this.klass = klass;
+            this.version = klass == null ? 0 : klass.getVersion();
+            this.method = method;
+        }
+    }
+
+    static Entry field(Shape shape, int slot) {
+        return new Entry(shape, slot, null, null, null);
+    }
+
+    static Entry transition(Shape shape, Shape next) {
+        return new Entry(shape, shape.getFieldCount(), next, null, null);
+    }
+
+    static Entry method(Shape shape, ObjClass klass, ObjClosure method) {
+        return new Entry(shape, -1, null, klass, method);
+    }
+
+    private final Entry[] entries = new Entry[POLYMORPHIC_MAX];
+
+    private int count;
+
+    private boolean megamorphic;
+
+    private int hits;
+
+    private int misses;
+
+    Entry lookup(Shape shape) {
+        for (int i = 0; i < this.count; i++) {
+            Entry entry = this.entries[i];
+            if (entry.shape == shape && (entry.klass == null || entry.klass.getVersion() == entry.version)) {
+                this.hits++;
+                return entry;
+            }
+        }
+        this.misses++;
+        return null;
+    }
+
+    void update(Entry entry) {
+        if (this.megamorphic) return;
+
+        // 同一 Shape 的旧项是类被修改后失效的, 原地替换
+        for (int i = 0; i < this.count; i++) {
+            if (this.entries[i].shape == entry.shape) {
+                this.entries[i] = entry;
+                return;
+            }
+        }
+        if (this.count == POLYMORPHIC_MAX) {
+            this.megamorphic = true;
+            this.count = 0;
+            Arrays.fill(this.entries, null);
+            return;
+        }
+        this.entries[this.count++] = entry;
+    }
+
+    public String getState() {
+        if (this.megamorphic) return "megamorphic";
+        if (this.count == 0) return "uninitialized";
+        return this.count == 1 ? "monomorphic" : "polymorphic";
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+}
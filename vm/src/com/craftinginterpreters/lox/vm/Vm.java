@@ -1,18 +1,20 @@
 package com.craftinginterpreters.lox.vm;
 
 import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.chunk.Chunk;
 import com.craftinginterpreters.lox.chunk.OpCode;
 import com.craftinginterpreters.lox.compiler.Compiler;
 import com.craftinginterpreters.lox.compiler.FunctionType;
 import com.craftinginterpreters.lox.debug.Debug;
+import com.craftinginterpreters.lox.jit.CompiledFunction;
+import com.craftinginterpreters.lox.jit.Jit;
 import com.craftinginterpreters.lox.objects.*;
 import com.craftinginterpreters.lox.scanner.Scanner;
+import com.craftinginterpreters.lox.value.NanBox;
 import com.craftinginterpreters.lox.value.Value;
 import com.craftinginterpreters.lox.value.ValueType;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * @author hlx
@@ -20,41 +22,68 @@ import java.util.Map;
  */
 public class Vm {
 
-    private static final int FRAMES_MAX = 64;
+    // 默认的调用深度上限, 可以通过构造函数调整
+    public static final int DEFAULT_FRAMES_MAX = 1 << 16;
 
-    private static final int STACK_MAX = (FRAMES_MAX * Byte.MAX_VALUE);
+    private static final int INITIAL_FRAMES = 8;
 
-    private final CallFrame[] frames;
+    private static final int INITIAL_STACK = 256;
+
+    // 运行时错误的调用栈里, 最内层和最外层各打印的帧数
+    private static final int TRACE_FRAMES = 16;
+
+    private final int framesMax;
+
+    // 栈帧数组和值栈都按需翻倍增长; 栈帧基址是下标, 扩容后不需要重新定位
+    private CallFrame[] frames;
 
     private int frameCount;
 
-    private final Value[] stack;
+    // 值栈: 数字、布尔、nil 以 NaN-boxing 编码在 stack 中, 对象引用放在平行的 refs 中
+    private long[] stack;
+
+    private Obj[] refs;
 
     private int stackTop;
 
-    private final Map<ObjString, Value> globals;
+    private final Globals globals;
+
+    private final StringTable strings;
 
-    public Map<ObjString, Value> strings;
+    private final Selectors selectors;
 
-    private final String initString;
+    private final ObjString initString;
 
+    // 打开的单元链表, 头部是最近打开的; openCells 按栈槽位索引同一批单元
     private ObjUpvalue openUpvalues;
 
+    private ObjUpvalue[] openCells;
+
+    // 关闭即时编译时为 null
+    private final Jit jit;
+
     public Vm() {
+        this(DEFAULT_FRAMES_MAX);
+    }
+
+    public Vm(int framesMax) {
         resetStack();
-        this.frames = new CallFrame[FRAMES_MAX];
-        for (int i = 0; i < FRAMES_MAX; i++) {
+        this.framesMax = framesMax;
+        this.frames = new CallFrame[Math.min(INITIAL_FRAMES, framesMax)];
+        for (int i = 0; i < this.frames.length; i++) {
             this.frames[i] = new CallFrame();
         }
 
-        this.stack = new Value[STACK_MAX];
-        for (int i = 0; i < STACK_MAX; i++) {
-            this.stack[i] = new Value();
-        }
+        this.stack = new long[INITIAL_STACK];
+        this.refs = new Obj[INITIAL_STACK];
+        this.openCells = new ObjUpvalue[INITIAL_STACK];
 
-        this.globals = new HashMap<>();
-        this.strings = new HashMap<>();
-        this.initString = "init";
+        this.strings = new StringTable();
+        this.globals = new Globals(this.strings);
+        this.selectors = new Selectors();
+        this.initString = this.strings.intern("init");
+        // 即时编译器只认识栈式字节码
+        this.jit = Lox.ENABLE_JIT && !Lox.REGISTER_VM ? new Jit() : null;
 
         defineNative("clock", (argCount, args) -> {
             return new Value(ValueType.NUMBER, System.currentTimeMillis());
@@ -64,503 +93,1361 @@ public class Vm {
     private void resetStack() {
         this.stackTop = 0;
         this.frameCount = 0;
+        for (ObjUpvalue cell = this.openUpvalues; cell != null; cell = cell.getNext()) {
+            this.openCells[cell.getLocation()] = null;
+        }
         this.openUpvalues = null;
     }
 
     private void defineNative(String name, NativeFn function) {
-        push(new ObjString(name).toValue());
-        push(new ObjNative(function).toValue());
-        this.globals.put(this.stack[0].asString(), this.stack[1]);
-        pop();
-        pop();
+        this.globals.define(name, new ObjNative(function).toValue());
+    }
+
+    public StringTable getStrings() {
+        return strings;
+    }
+
+    public Selectors getSelectors() {
+        return selectors;
+    }
+
+    public Globals getGlobals() {
+        return globals;
     }
 
     public void push(Value value) {
+        this.stack[stackTop] = value.getBits();
+        this.refs[stackTop] = value.getObj();
+        this.stackTop++;
+    }
+
+    private void push(long value) {
+        this.stack[stackTop++] = value;
+    }
+
+    private void push(long value, Obj obj) {
         this.stack[stackTop] = value;
+        this.refs[stackTop] = obj;
         this.stackTop++;
     }
 
-    public Value pop() {
-        this.stackTop--;
-        return stackTop < 0 ? null : this.stack[stackTop];
+    private void pushObj(Obj obj) {
+        push(NanBox.OBJ_VAL, obj);
     }
 
-    private Value peek(int distance) {
+    // 弹出后对象引用仍留在 refs[stackTop] 中, 需要时由调用方读取
+    public long pop() {
+        return this.stack[--this.stackTop];
+    }
+
+    private long peek(int distance) {
         return this.stack[this.stackTop - 1 - distance];
     }
 
+    private Obj peekObj(int distance) {
+        return this.refs[this.stackTop - 1 - distance];
+    }
+
+    private boolean peekIs(int distance, ObjType type) {
+        return NanBox.isObjType(peek(distance), peekObj(distance), type);
+    }
+
+    // 装箱栈上的值, 仅在写入堆上存储时使用
+    private Value peekValue(int distance) {
+        int slot = this.stackTop - 1 - distance;
+        return Value.of(this.stack[slot], this.refs[slot]);
+    }
+
+    private void setSlot(int slot, Value value) {
+        this.stack[slot] = value.getBits();
+        this.refs[slot] = value.getObj();
+    }
+
     private void runtimeError(String message, Object... args) {
         System.err.printf(message + "%n", args);
 
-        for (int i = this.frameCount - 1; i >= 0; i--) {
-            CallFrame frame = this.frames[i];
+        // 错误出在内联展开的代码里时, 被内联的函数在调用栈中仍然单独打印一帧; 只有最内层的栈帧会停在内联代码里
+        CallFrame top = this.frames[this.frameCount - 1];
+        ObjFunction inlined = top.getClosure().getFunction().getChunk().getInlinedFunction(top.getIp() - 1);
+        int extra = inlined == null ? 0 : 1;
+        int total = this.frameCount + extra;
+        for (int k = 0; k < total; k++) {
+            // 调用很深时只打印最内层和最外层的若干帧
+            if (k == TRACE_FRAMES && total - k > TRACE_FRAMES) {
+                System.err.printf("... %d more frames\n", total - 2 * TRACE_FRAMES);
+                k = total - TRACE_FRAMES;
+            }
+            if (k < extra) {
+                printFrame(inlined, top.getClosure().getFunction().getChunk().getLine(top.getIp() - 1));
+                continue;
+            }
+            CallFrame frame = this.frames[total - 1 - k];
             ObjFunction function = frame.getClosure().getFunction();
             int instruction = frame.getIp() - 1;
-            System.err.printf("[line %d] in ", function.getChunk().getLines().get(instruction));
-            if (function.getName() == null) {
-                System.err.print("script\n");
-            } else {
-                System.err.printf("%s()\n", function.getName());
-            }
+            printFrame(function, frame == top && inlined != null
+                    ? function.getChunk().getCallLine(instruction) : function.getChunk().getLine(instruction));
         }
         resetStack();
     }
 
+    private static void printFrame(ObjFunction function, int line) {
+        System.err.printf("[line %d] in ", line);
+        if (function.getName() == null) {
+            System.err.print("script\n");
+        } else {
+            System.err.printf("%s()\n", function.getName());
+        }
+    }
+
     private boolean call(ObjClosure closure, int argCount) {
         if (argCount != closure.getFunction().getArity()) {
             runtimeError("Expected %d arguments but got %d.", closure.getFunction().getArity(), argCount);
             return false;
         }
         // 调用栈过长
-        if (this.frameCount == FRAMES_MAX) {
+        if (this.frameCount == this.framesMax) {
             runtimeError("Stack overflow.");
             return false;
         }
+        if (this.frameCount == this.frames.length) {
+            growFrames();
+        }
+        int base = this.stackTop - argCount - 1;
+        ensureStack(base + closure.getFunction().getMaxSlots());
+
         // 记录新函数栈帧
         CallFrame frame = this.frames[this.frameCount++];
         frame.setClosure(closure);
 
         frame.setIp(0);
-        frame.setSlots(this.stackTop - argCount - 1);
+        frame.setSlots(base);
+        enter(frame);
         return true;
     }
 
-    private byte readByte(CallFrame frame) {
-        List<Byte> codes = frame.getClosure().getFunction().getChunk().getCodes();
-        int index = frame.getIp();
-        frame.setIp(index + 1);
-        return codes.get(index);
-    }
-
-    private short readShort(CallFrame frame) {
-        List<Byte> codes = frame.getClosure().getFunction().getChunk().getCodes();
-        frame.setIp(frame.getIp() + 2);
-        return (short) ((codes.get(frame.getIp() - 2) << 8) | codes.get(frame.getIp() - 1));
-    }
-
-    private Value readConstant(CallFrame frame) {
-        List<Value> constants = frame.getClosure().getFunction().getChunk().getConstants();
-        return constants.get(readByte(frame));
-    }
-
-    private ObjString readString(CallFrame frame) {
-        return (ObjString) readConstant(frame).getObj();
-    }
+    /*
+     * 在函数开头或循环头: 函数已编译时从 frame 的 ip 处执行编译后的代码,
+     * 返回后 frame 的 ip 和栈顶停在解释器要接着执行的指令上; 否则只计数
+     */
+    private void enter(CallFrame frame) {
+        if (this.jit == null) return;
+        ObjFunction function = frame.getClosure().getFunction();
+        CompiledFunction compiled = function.getCompiled();
+        if (compiled == null) {
+            this.jit.profile(function);
+            return;
+        }
 
-    private void binaryOp(ValueType type, String op) throws Exception {
-        if (!peek(0).isNumber() && !peek(1).isNumber()) {
-            runtimeError("Operands must be numbers.");
-            throw new Exception("INTERPRET_RUNTIME_ERROR");
+        int base = frame.getSlots();
+        int ip = compiled.run(this.stack, this.refs, frame.getConstants(), base, frame.getIp());
+        if (ip < 0) {
+            ip = ~ip;
+            if (compiled.guardFailed()) {
+                function.setCompiled(null);
+            }
         }
-        double b = pop().asNumber();
-        double a = pop().asNumber();
+        frame.setIp(ip);
+        this.stackTop = base + compiled.getDepth(ip);
+    }
 
-        switch (op) {
-            case "-":
-                push(new Value(type, a - b));
-                break;
-            case "*":
-                push(new Value(type, a * b));
-                break;
-            case "/":
-                push(new Value(type, a / b));
-                break;
-            case ">":
-                push(new Value(type, a > b));
-                break;
-            case "<":
-                push(new Value(type, a < b));
-                break;
-            default:
-                runtimeError("operator must be - * / > <.");
-                throw new Exception("INTERPRET_RUNTIME_ERROR");
+    private void growFrames() {
+        int count = this.frames.length;
+        this.frames = Arrays.copyOf(this.frames, Math.min(count * 2, this.framesMax));
+        for (int i = count; i < this.frames.length; i++) {
+            this.frames[i] = new CallFrame();
         }
     }
 
+    // 分派循环在调用之后会重新读取 stack 和 refs
+    private void ensureStack(int capacity) {
+        if (capacity <= this.stack.length) return;
+        int size = this.stack.length;
+        while (size < capacity) size *= 2;
+        this.stack = Arrays.copyOf(this.stack, size);
+        this.refs = Arrays.copyOf(this.refs, size);
+        this.openCells = Arrays.copyOf(this.openCells, size);
+    }
 
+    /*
+     * 分派循环: 直接按原始字节 switch, ip、栈帧基址、字节码和常量缓存在局部变量中
+     * 只在调用、返回和可能报错的指令前把 ip 写回栈帧
+     * 不常执行或较长的指令处理放在单独的方法里, 让 run 保持在 HotSpot 的大方法限制之内
+     */
     private InterpretResult run() {
         CallFrame frame = this.frames[this.frameCount - 1];
+        byte[] code = frame.getCodes();
+        Value[] constants = frame.getConstants();
+        int ip = frame.getIp();
+        int base = frame.getSlots();
+        long[] stack = this.stack;
+        Obj[] refs = this.refs;
 
         for (; ; ) {
             if (Lox.DEBUG_TRACE_EXECUTION) {
-                System.out.print("          ");
-                for (int slot = 0; slot < this.stackTop; slot++) {
-                    System.out.print("[ ");
-                    this.stack[slot].print();
-                    System.out.print(" ]");
-                }
-                System.out.println();
-                Debug.disassembleInstruction(frame.getClosure().getFunction().getChunk(), frame.getIp());
+                frame.setIp(ip);
+                traceExecution(frame);
             }
 
-            byte instruction = readByte(frame);
-            switch (OpCode.intOf(instruction)) {
-                case CONSTANT: {
-                    Value constant = readConstant(frame);
-                    push(constant);
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    push(constants[code[ip++] & 0xff]);
                     break;
-                }
-                case NIL:
-                    push(new Value());
+                case OpCode.NIL:
+                    push(NanBox.NIL_VAL);
                     break;
-                case TRUE:
-                    push(new Value(ValueType.BOOL, true));
+                case OpCode.TRUE:
+                    push(NanBox.TRUE_VAL);
                     break;
-                case FALSE:
-                    push(new Value(ValueType.BOOL, false));
+                case OpCode.FALSE:
+                    push(NanBox.FALSE_VAL);
                     break;
-                case POP:
-                    pop();
+                case OpCode.POP:
+                    this.stackTop--;
                     break;
-                case GET_LOCAL: {
-                    byte slot = readByte(frame);
-                    push(this.stack[frame.getSlots() + slot]);
+                case OpCode.GET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    push(stack[slot], refs[slot]);
                     break;
                 }
-                case SET_LOCAL: {
-                    byte slot = readByte(frame);
-                    this.stack[frame.getSlots() + slot] = peek(0);
+                case OpCode.SET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[slot] = stack[this.stackTop - 1];
+                    refs[slot] = refs[this.stackTop - 1];
                     break;
                 }
-                case GET_GLOBAL: {
-                    ObjString name = readString(frame);
-
-                    Value value = this.globals.get(name);
-                    if (value == null) {
-                        runtimeError("Undefined variable '%s'.", name.getString());
-                        return InterpretResult.RUNTIME_ERROR;
+                case OpCode.GET_GLOBAL:
+                    ip += 2;
+                    if (!getGlobal(((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff))) {
+                        frame.setIp(ip);
+                        return globalError(((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff));
                     }
-                    push(value);
                     break;
-                }
-                case DEFINE_GLOBAL: {
-                    ObjString name = readString(frame);
-                    this.globals.put(name, peek(0));
-                    pop();
+                case OpCode.DEFINE_GLOBAL:
+                    ip += 2;
+                    defineGlobal(((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff));
                     break;
-                }
-                case SET_GLOBAL: {
-                    ObjString name = readString(frame);
-                    if (this.globals.put(name, peek(0)) == null) {
-                        globals.remove(name);
-                        runtimeError("Undefined variable '%s'.", name.getString());
-                        return InterpretResult.RUNTIME_ERROR;
+                case OpCode.SET_GLOBAL:
+                    ip += 2;
+                    if (!setGlobal(((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff))) {
+                        frame.setIp(ip);
+                        return globalError(((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff));
                     }
                     break;
-                }
-                case GET_UPVALUE: {
-                    byte slot = readByte(frame);
-                    ObjUpvalue upvalue = frame.getClosure().getUpvalues().get(slot);
-                    int location = upvalue.getLocation();
-                    if (!upvalue.getClosed().isNil()) {
-                        push(upvalue.getClosed());
-                    } else {
-                        push(this.stack[location]);
-                    }
+                case OpCode.GET_UPVALUE:
+                    getUpvalue(frame, code[ip++] & 0xff);
                     break;
-                }
-                case SET_UPVALUE: {
-                    byte slot = readByte(frame);
-                    ObjUpvalue upvalue = frame.getClosure().getUpvalues().get(slot);
-                    upvalue.setLocation(this.stackTop - 1);
-                    upvalue.setClosed(this.stack[this.stackTop - 1]);
+                case OpCode.SET_UPVALUE:
+                    setUpvalue(frame, code[ip++] & 0xff);
                     break;
-                }
-                case GET_PROPERTY: {
-                    if (!peek(0).isInstance()) {
-                        runtimeError("Only instances have properties.");
+                case OpCode.GET_PROPERTY:
+                    frame.setIp(ip + 1);
+                    if (!getProperty(frame.getChunk().getInlineCache(ip - 1), (ObjString) constants[code[ip++] & 0xff].getObj(), false)) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
-
-                    ObjInstance instance = peek(0).asInstance();
-                    ObjString name = readString(frame);
-
-                    Value value = instance.getFields().get(name);
-
-                    if (value != null) {
-                        pop(); // Instance.
-                        push(value);
-                        break;
+                    break;
+                case OpCode.SET_PROPERTY:
+                    frame.setIp(ip + 1);
+                    if (!setProperty(frame.getChunk().getInlineCache(ip - 1), (ObjString) constants[code[ip++] & 0xff].getObj())) {
+                        return InterpretResult.RUNTIME_ERROR;
                     }
-
-                    if (!bindMethod(instance.getKlass(), name)) {
+                    break;
+                case OpCode.GET_SUPER: {
+                    frame.setIp(ip + 1);
+                    ObjString name = (ObjString) constants[code[ip++] & 0xff].getObj();
+                    ObjClass superclass = (ObjClass) refs[--this.stackTop];
+                    if (!bindMethod(superclass, name)) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
                     break;
                 }
-                case SET_PROPERTY: {
-                    if (!peek(1).isInstance()) {
-                        runtimeError("Only instances have fields.");
+                case OpCode.GET_ALIAS:
+                case OpCode.GET_ALIAS_METHOD: {
+                    boolean alias = code[ip - 1] == OpCode.GET_ALIAS_METHOD;
+                    frame.setIp(ip + 1);
+                    if (!getProperty(frame.getChunk().getInlineCache(ip - 1), (ObjString) constants[code[ip++] & 0xff].getObj(), alias)) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
-
-                    ObjInstance instance = peek(1).asInstance();
-                    instance.getFields().put(readString(frame), peek(0));
-                    Value value = pop();
-                    pop();
-                    push(value);
+                    if (!alias) push(NanBox.NIL_VAL);
                     break;
                 }
-                case GET_SUPER: {
-                    ObjString name = readString(frame);
-                    ObjClass superclass = pop().asClass();
-
-                    if (!bindMethod(superclass, name)) {
+                case OpCode.EQUAL: {
+                    int top = this.stackTop;
+                    stack[top - 2] = NanBox.bool(NanBox.valuesEqual(stack[top - 2], refs[top - 2], stack[top - 1], refs[top - 1]));
+                    this.stackTop = top - 1;
+                    break;
+                }
+                case OpCode.GREATER: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
                         return InterpretResult.RUNTIME_ERROR;
                     }
+                    stack[--this.stackTop - 1] = NanBox.bool(NanBox.greater(a, b));
                     break;
                 }
-                case EQUAL: {
-                    Value b = pop();
-                    Value a = pop();
-                    push(new Value(ValueType.BOOL, a.equals(b)));
+                case OpCode.LESS: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[--this.stackTop - 1] = NanBox.bool(NanBox.less(a, b));
                     break;
                 }
-                case GREATER:
-                    try {
-                        binaryOp(ValueType.BOOL, ">");
-                    } catch (Exception e) {
+                case OpCode.ADD: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (NanBox.isNumber(a) && NanBox.isNumber(b)) {
+                        code[ip - 1] = OpCode.ADD_NUM;
+                        stack[this.stackTop - 2] = NanBox.add(a, b);
+                        this.stackTop--;
+                        break;
+                    }
+                    frame.setIp(ip);
+                    if (!addObjects()) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
+                    // addObjects 只在两边都是字符串时成功
+                    code[ip - 1] = OpCode.ADD_STR;
                     break;
-                case LESS:
-                    try {
-                        binaryOp(ValueType.BOOL, "<");
-                    } catch (Exception e) {
-                        return InterpretResult.RUNTIME_ERROR;
+                }
+                case OpCode.ADD_NUM: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (NanBox.isNumber(a) && NanBox.isNumber(b)) {
+                        stack[this.stackTop - 2] = NanBox.add(a, b);
+                        this.stackTop--;
+                        break;
                     }
+                    // 类型变了: 退回通用指令并重新执行, 由它按新的类型再次改写
+                    code[--ip] = OpCode.ADD;
                     break;
-                case ADD: {
-                    if (peek(0).isString() && peek(1).isString()) {
+                }
+                case OpCode.ADD_STR: {
+                    int top = this.stackTop;
+                    if (stack[top - 1] == NanBox.OBJ_VAL && stack[top - 2] == NanBox.OBJ_VAL
+                            && refs[top - 1].getType() == ObjType.STRING && refs[top - 2].getType() == ObjType.STRING) {
                         concatenate();
-                    } else if (peek(0).isNumber() && peek(1).isNumber()) {
-                        double b = pop().asNumber();
-                        double a = pop().asNumber();
-                        push(new Value(ValueType.NUMBER, a + b));
-                    } else {
-                        runtimeError("Operands must be two numbers or two strings.");
-                        return InterpretResult.RUNTIME_ERROR;
+                        break;
                     }
+                    code[--ip] = OpCode.ADD;
                     break;
                 }
-                case SUBTRACT:
-                    try {
-                        binaryOp(ValueType.NUMBER, "-");
-                    } catch (Exception e) {
+                case OpCode.SUBTRACT: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
                         return InterpretResult.RUNTIME_ERROR;
                     }
+                    stack[--this.stackTop - 1] = NanBox.subtract(a, b);
                     break;
-                case MULTIPLY:
-                    try {
-                        binaryOp(ValueType.NUMBER, "*");
-                    } catch (Exception e) {
+                }
+                case OpCode.MULTIPLY: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
                         return InterpretResult.RUNTIME_ERROR;
                     }
+                    stack[--this.stackTop - 1] = NanBox.multiply(a, b);
                     break;
-                case DIVIDE:
-                    try {
-                        binaryOp(ValueType.NUMBER, "/");
-                    } catch (Exception e) {
+                }
+                case OpCode.DIVIDE: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
                         return InterpretResult.RUNTIME_ERROR;
                     }
+                    stack[--this.stackTop - 1] = NanBox.divide(a, b);
                     break;
-                case NOT:
-                    push(new Value(ValueType.BOOL, isFalsey(pop())));
+                }
+                case OpCode.NOT:
+                    stack[this.stackTop - 1] = NanBox.bool(NanBox.isFalsey(stack[this.stackTop - 1]));
                     break;
-                case NEGATE:
-                    if (!peek(0).isNumber()) {
+                case OpCode.NEGATE:
+                    if (!NanBox.isNumber(peek(0))) {
+                        frame.setIp(ip);
                         runtimeError("Operand must be a number.");
                         return InterpretResult.RUNTIME_ERROR;
                     }
-                    push(new Value(ValueType.NUMBER, -pop().asNumber()));
+                    stack[this.stackTop - 1] = NanBox.negate(stack[this.stackTop - 1]);
+                    break;
+                case OpCode.ADD_UNCHECKED: {
+                    int top = --this.stackTop;
+                    stack[top - 1] = NanBox.add(stack[top - 1], stack[top]);
                     break;
-                case PRINT: {
-                    pop().print();
+                }
+                case OpCode.SUBTRACT_UNCHECKED: {
+                    int top = --this.stackTop;
+                    stack[top - 1] = NanBox.subtract(stack[top - 1], stack[top]);
+                    break;
+                }
+                case OpCode.MULTIPLY_UNCHECKED: {
+                    int top = --this.stackTop;
+                    stack[top - 1] = NanBox.multiply(stack[top - 1], stack[top]);
+                    break;
+                }
+                case OpCode.DIVIDE_UNCHECKED: {
+                    int top = --this.stackTop;
+                    stack[top - 1] = NanBox.divide(stack[top - 1], stack[top]);
+                    break;
+                }
+                case OpCode.GREATER_UNCHECKED: {
+                    int top = --this.stackTop;
+                    stack[top - 1] = NanBox.bool(NanBox.greater(stack[top - 1], stack[top]));
+                    break;
+                }
+                case OpCode.LESS_UNCHECKED: {
+                    int top = --this.stackTop;
+                    stack[top - 1] = NanBox.bool(NanBox.less(stack[top - 1], stack[top]));
+                    break;
+                }
+                case OpCode.NEGATE_UNCHECKED:
+                    stack[this.stackTop - 1] = NanBox.negate(stack[this.stackTop - 1]);
+                    break;
+                case OpCode.PRINT: {
+                    long value = pop();
+                    NanBox.print(value, refs[this.stackTop]);
                     System.out.println();
                     break;
                 }
-                case JUMP: {
-                    short offset = readShort(frame);
-                    frame.setIp(frame.getIp() + offset);
+                case OpCode.JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (NanBox.isFalsey(stack[this.stackTop - 1])) ip += offset;
                     break;
                 }
-                case JUMP_IF_FALSE: {
-                    short offset = readShort(frame);
-                    if (isFalsey(peek(0))) frame.setIp(frame.getIp() + offset);
+                case OpCode.JUMP_IF_TRUE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!NanBox.isFalsey(stack[this.stackTop - 1])) ip += offset;
                     break;
                 }
-                case LOOP: {
-                    short offset = readShort(frame);
-                    frame.setIp(frame.getIp() - offset);
+                case OpCode.LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    if (this.jit != null) {
+                        frame.setIp(ip);
+                        enter(frame);
+                        ip = frame.getIp();
+                    }
                     break;
                 }
-                case CALL: {
-                    int argCount = readByte(frame);
-                    if (!callValue(peek(argCount), argCount)) {
+                case OpCode.GUARD_CALL:
+                case OpCode.GUARD_INVOKE: {
+                    if (!guard(frame.getChunk(), ip - 1, code[ip] & 0xff, constants[code[ip + 1] & 0xff].asFunction())) {
+                        ip += ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+                    }
+                    ip += 4;
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++];
+                    frame.setIp(ip);
+                    if (!callValue(peek(argCount), peekObj(argCount), argCount)) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
                     // 调用成功后将栈帧还回去
                     frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
+                    stack = this.stack;
+                    refs = this.refs;
                     break;
                 }
-                case INVOKE: {
-                    ObjString method = readString(frame);
-                    int argCount = readByte(frame);
-                    if (!invoke(method, argCount)) {
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++];
+                    frame.setIp(ip);
+                    if (!tailCall(frame, argCount)) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
                     frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
+                    stack = this.stack;
+                    refs = this.refs;
                     break;
                 }
-                case SUPER_INVOKE: {
-                    ObjString method = readString(frame);
-                    int argCount = readByte(frame);
-                    ObjClass superclass = pop().asClass();
-                    if (!invokeFromClass(superclass, method, argCount)) {
+                case OpCode.INVOKE: {
+                    ObjString method = (ObjString) constants[code[ip] & 0xff].getObj();
+                    int argCount = code[ip + 1];
+                    InlineCache cache = frame.getChunk().getInlineCache(ip - 1);
+                    ip += 2;
+                    frame.setIp(ip);
+                    if (!invoke(cache, method, argCount)) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
-                    frame = this.frames[frameCount - 1];
+                    frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
+                    stack = this.stack;
+                    refs = this.refs;
                     break;
                 }
-                case CLOSURE: {
-                    ObjFunction function = readConstant(frame).asFunction();
-                    ObjClosure closure = new ObjClosure(function);
-                    push(closure.toValue());
-                    for (int i = 0; i < closure.getUpvalueCount(); i++) {
-                        byte isLocal = readByte(frame);
-                        byte index = readByte(frame);
-                        if (isLocal != 0) {
-                            closure.getUpvalues().set(i, captureUpvalue(frame.getSlots() + index));
-                        } else {
-                            closure.getUpvalues().set(i, frame.getClosure().getUpvalues().get(index));
-                        }
+                case OpCode.CALL_ALIAS: {
+                    int argCount = code[ip++];
+                    frame.setIp(ip);
+                    if (!callAlias(argCount)) {
+                        return InterpretResult.RUNTIME_ERROR;
                     }
+                    frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
+                    stack = this.stack;
+                    refs = this.refs;
                     break;
                 }
-                case CLOSE_UPVALUE:
-                    closeUpvalues(stackTop - 1);
-                    pop();
+                case OpCode.SUPER_INVOKE: {
+                    ObjString method = (ObjString) constants[code[ip] & 0xff].getObj();
+                    int argCount = code[ip + 1];
+                    ip += 2;
+                    frame.setIp(ip);
+                    ObjClass superclass = (ObjClass) refs[--this.stackTop];
+                    if (!invokeFromClass(superclass, method, argCount)) {
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
+                    stack = this.stack;
+                    refs = this.refs;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    ObjFunction function = constants[code[ip++] & 0xff].asFunction();
+                    ip = closure(frame, function, code, ip);
                     break;
-                case RETURN: {
-                    Value result = pop();
-                    closeUpvalues(frame.getSlots());
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    if (this.openCells[this.stackTop - 1] != null) {
+                        closeCell(this.openCells[this.stackTop - 1]);
+                    }
+                    this.stackTop--;
+                    break;
+                case OpCode.RETURN: {
+                    long result = pop();
+                    Obj resultObj = refs[this.stackTop];
+                    closeUpvalues(base);
                     this.frameCount--;
                     if (this.frameCount == 0) {
                         pop();
                         return InterpretResult.OK;
                     }
 
-                    this.stackTop = frame.getSlots();
-                    push(result);
+                    this.stackTop = base;
+                    push(result, resultObj);
                     frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
                     break;
                 }
-                case CLASS:
-                    push(new ObjClass(readString(frame)).toValue());
+                case OpCode.CLASS:
+                    pushObj(new ObjClass((ObjString) constants[code[ip++] & 0xff].getObj()));
                     break;
-                case INHERIT: {
-                    Value superclass = peek(1);
-                    if (!superclass.isClass()) {
-                        runtimeError("Superclass must be a class.");
+                case OpCode.INHERIT:
+                    frame.setIp(ip);
+                    if (!inherit()) {
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    break;
+                case OpCode.METHOD:
+                    defineMethod((ObjString) constants[code[ip++] & 0xff].getObj());
+                    break;
+                case OpCode.GET_LOCAL_LOCAL: {
+                    int first = base + (code[ip] & 0xff);
+                    int second = base + (code[ip + 1] & 0xff);
+                    ip += 2;
+                    push(stack[first], refs[first]);
+                    push(stack[second], refs[second]);
+                    break;
+                }
+                case OpCode.GET_LOCAL_CONSTANT: {
+                    int slot = base + (code[ip] & 0xff);
+                    Value constant = constants[code[ip + 1] & 0xff];
+                    ip += 2;
+                    push(stack[slot], refs[slot]);
+                    push(constant);
+                    break;
+                }
+                case OpCode.ADD_LOCAL_CONSTANT: {
+                    int slot = base + (code[ip] & 0xff);
+                    Value constant = constants[code[ip + 1] & 0xff];
+                    ip += 2;
+                    long a = stack[slot];
+                    if (NanBox.isNumber(a) && constant.isNumber()) {
+                        push(NanBox.add(a, constant.getBits()));
+                        break;
+                    }
+                    push(a, refs[slot]);
+                    push(constant);
+                    frame.setIp(ip);
+                    if (!addObjects()) {
                         return InterpretResult.RUNTIME_ERROR;
                     }
-
-                    ObjClass subclass = peek(0).asClass();
-                    subclass.getMethods().putAll(superclass.asClass().getMethods());
-                    pop(); // Subclass.
                     break;
                 }
-                case METHOD:
-                    defineMethod(readString(frame));
+                case OpCode.SUBTRACT_LOCAL_CONSTANT: {
+                    int slot = base + (code[ip] & 0xff);
+                    Value constant = constants[code[ip + 1] & 0xff];
+                    ip += 2;
+                    long a = stack[slot];
+                    if (NanBox.isNumber(a) && constant.isNumber()) {
+                        push(NanBox.subtract(a, constant.getBits()));
+                        break;
+                    }
+                    frame.setIp(ip);
+                    runtimeError("Operands must be numbers.");
+                    return InterpretResult.RUNTIME_ERROR;
+                }
+                case OpCode.INCREMENT_LOCAL: {
+                    int slot = base + (code[ip] & 0xff);
+                    Value constant = constants[code[ip + 1] & 0xff];
+                    ip += 2;
+                    long a = stack[slot];
+                    if (NanBox.isNumber(a) && constant.isNumber()) {
+                        stack[slot] = NanBox.add(a, constant.getBits());
+                        break;
+                    }
+                    push(a, refs[slot]);
+                    push(constant);
+                    frame.setIp(ip);
+                    if (!addObjects()) {
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    this.stackTop--;
+                    stack[slot] = stack[this.stackTop];
+                    refs[slot] = refs[this.stackTop];
+                    break;
+                }
+                case OpCode.EQUAL_JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    int top = this.stackTop -= 2;
+                    if (!NanBox.valuesEqual(stack[top], refs[top], stack[top + 1], refs[top + 1])) ip += offset;
+                    break;
+                }
+                case OpCode.GREATER_JUMP_IF_FALSE: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip + 2);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    this.stackTop -= 2;
+                    if (!NanBox.greater(a, b)) ip += offset;
+                    break;
+                }
+                case OpCode.LESS_JUMP_IF_FALSE: {
+                    long b = stack[this.stackTop - 1];
+                    long a = stack[this.stackTop - 2];
+                    if (!NanBox.isNumber(a) || !NanBox.isNumber(b)) {
+                        frame.setIp(ip + 2);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    this.stackTop -= 2;
+                    if (!NanBox.less(a, b)) ip += offset;
+                    break;
+                }
+                case OpCode.MOVE: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = base + (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[a] = stack[b];
+                    refs[a] = refs[b];
+                    break;
+                }
+                case OpCode.LOADK: {
+                    int a = base + (code[ip] & 0xff);
+                    Value constant = constants[code[ip + 1] & 0xff];
+                    ip += 2;
+                    stack[a] = constant.getBits();
+                    refs[a] = constant.getObj();
+                    break;
+                }
+                case OpCode.LOAD_NIL:
+                    stack[base + (code[ip++] & 0xff)] = NanBox.NIL_VAL;
+                    break;
+                case OpCode.LOAD_BOOL:
+                    stack[base + (code[ip] & 0xff)] = NanBox.bool(code[ip + 1] != 0);
+                    ip += 2;
+                    break;
+                case OpCode.ADD_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    if (NanBox.isNumber(x) && NanBox.isNumber(y)) {
+                        stack[a] = NanBox.add(x, y);
+                        break;
+                    }
+                    frame.setIp(ip);
+                    Obj xObj = b < 0 ? constants[b & 0x7f].getObj() : refs[base + b];
+                    Obj yObj = c < 0 ? constants[c & 0x7f].getObj() : refs[base + c];
+                    if (!addRegisters(a, x, xObj, y, yObj)) {
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
                     break;
+                }
+                case OpCode.SUBTRACT_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[a] = NanBox.subtract(x, y);
+                    break;
+                }
+                case OpCode.MULTIPLY_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[a] = NanBox.multiply(x, y);
+                    break;
+                }
+                case OpCode.DIVIDE_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[a] = NanBox.divide(x, y);
+                    break;
+                }
+                case OpCode.GREATER_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[a] = NanBox.bool(NanBox.greater(x, y));
+                    break;
+                }
+                case OpCode.LESS_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[a] = NanBox.bool(NanBox.less(x, y));
+                    break;
+                }
+                case OpCode.EQUAL_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    int c = code[ip + 2];
+                    ip += 3;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    long y = c < 0 ? constants[c & 0x7f].getBits() : stack[base + c];
+                    Obj xObj = b < 0 ? constants[b & 0x7f].getObj() : refs[base + b];
+                    Obj yObj = c < 0 ? constants[c & 0x7f].getObj() : refs[base + c];
+                    stack[a] = NanBox.bool(NanBox.valuesEqual(x, xObj, y, yObj));
+                    break;
+                }
+                case OpCode.NOT_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    ip += 2;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    stack[a] = NanBox.bool(NanBox.isFalsey(x));
+                    break;
+                }
+                case OpCode.NEGATE_RK: {
+                    int a = base + (code[ip] & 0xff);
+                    int b = code[ip + 1];
+                    ip += 2;
+                    long x = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    if (!NanBox.isNumber(x)) {
+                        frame.setIp(ip);
+                        runtimeError("Operand must be a number.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    stack[a] = NanBox.negate(x);
+                    break;
+                }
+                case OpCode.TEST_JUMP_IF_FALSE: {
+                    int a = code[ip];
+                    long x = a < 0 ? constants[a & 0x7f].getBits() : stack[base + a];
+                    int offset = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                    ip += 3;
+                    if (NanBox.isFalsey(x)) ip += offset;
+                    break;
+                }
+                case OpCode.EQUAL_RK_JUMP_IF_FALSE: {
+                    int a = code[ip];
+                    int b = code[ip + 1];
+                    long x = a < 0 ? constants[a & 0x7f].getBits() : stack[base + a];
+                    long y = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    Obj xObj = a < 0 ? constants[a & 0x7f].getObj() : refs[base + a];
+                    Obj yObj = b < 0 ? constants[b & 0x7f].getObj() : refs[base + b];
+                    int offset = ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+                    ip += 4;
+                    if (!NanBox.valuesEqual(x, xObj, y, yObj)) ip += offset;
+                    break;
+                }
+                case OpCode.GREATER_RK_JUMP_IF_FALSE: {
+                    int a = code[ip];
+                    int b = code[ip + 1];
+                    long x = a < 0 ? constants[a & 0x7f].getBits() : stack[base + a];
+                    long y = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip + 4);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    int offset = ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+                    ip += 4;
+                    if (!NanBox.greater(x, y)) ip += offset;
+                    break;
+                }
+                case OpCode.LESS_RK_JUMP_IF_FALSE: {
+                    int a = code[ip];
+                    int b = code[ip + 1];
+                    long x = a < 0 ? constants[a & 0x7f].getBits() : stack[base + a];
+                    long y = b < 0 ? constants[b & 0x7f].getBits() : stack[base + b];
+                    if (!NanBox.isNumber(x) || !NanBox.isNumber(y)) {
+                        frame.setIp(ip + 4);
+                        runtimeError("Operands must be numbers.");
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    int offset = ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+                    ip += 4;
+                    if (!NanBox.less(x, y)) ip += offset;
+                    break;
+                }
+                case OpCode.SET_TOP:
+                    this.stackTop = base + (code[ip++] & 0xff);
+                    break;
+                case OpCode.WIDE:
+                    if (!wide(frame, code, ip)) {
+                        return InterpretResult.RUNTIME_ERROR;
+                    }
+                    frame = this.frames[this.frameCount - 1];
+                    code = frame.getCodes();
+                    constants = frame.getConstants();
+                    ip = frame.getIp();
+                    base = frame.getSlots();
+                    stack = this.stack;
+                    refs = this.refs;
+                    break;
+                default:
+                    frame.setIp(ip);
+                    runtimeError("Unknown opcode %d.", code[ip - 1]);
+                    return InterpretResult.RUNTIME_ERROR;
             }
         }
     }
 
-    private void defineMethod(ObjString name) {
-        Value method = peek(0);
-        ObjClass klass = peek(1).asClass();
-        klass.getMethods().put(name, method);
-        pop();
+    /*
+     * 带 WIDE 前缀的指令, ip 指向前缀之后的操作码
+     * 常量下标是两个字节, 其余语义与对应的短指令相同; 执行后的 ip 写回 frame, 可能已经压入新的栈帧
+     */
+    private boolean wide(CallFrame frame, byte[] code, int ip) {
+        int start = ip - 1;
+        byte op = code[ip];
+        Value constant = frame.getConstants()[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+        ip += 3;
+        frame.setIp(ip);
+
+        switch (op) {
+            case OpCode.CONSTANT:
+                push(constant);
+                return true;
+            case OpCode.GET_PROPERTY:
+                return getProperty(frame.getChunk().getInlineCache(start), (ObjString) constant.getObj(), false);
+            case OpCode.SET_PROPERTY:
+                return setProperty(frame.getChunk().getInlineCache(start), (ObjString) constant.getObj());
+            case OpCode.GET_SUPER: {
+                ObjClass superclass = (ObjClass) this.refs[--this.stackTop];
+                return bindMethod(superclass, (ObjString) constant.getObj());
+            }
+            case OpCode.INVOKE: {
+                int argCount = code[ip];
+                frame.setIp(ip + 1);
+                return invoke(frame.getChunk().getInlineCache(start), (ObjString) constant.getObj(), argCount);
+            }
+            case OpCode.SUPER_INVOKE: {
+                int argCount = code[ip];
+                frame.setIp(ip + 1);
+                ObjClass superclass = (ObjClass) this.refs[--this.stackTop];
+                return invokeFromClass(superclass, (ObjString) constant.getObj(), argCount);
+            }
+            case OpCode.CLOSURE:
+                frame.setIp(closure(frame, constant.asFunction(), code, ip));
+                return true;
+            case OpCode.CLASS:
+                pushObj(new ObjClass((ObjString) constant.getObj()));
+                return true;
+            case OpCode.METHOD:
+                defineMethod((ObjString) constant.getObj());
+                return true;
+            default:
+                runtimeError("Unknown opcode %d.", op);
+                return false;
+        }
     }
 
-    private void closeUpvalues(int last) {
-        while (this.openUpvalues != null && this.openUpvalues.getLocation() >= last) {
-            ObjUpvalue upvalue = this.openUpvalues;
-            upvalue.setClosed(this.stack[upvalue.getLocation()]);
-            this.openUpvalues = upvalue.getNext();
+    private void traceExecution(CallFrame frame) {
+        System.out.print("          ");
+        for (int slot = 0; slot < this.stackTop; slot++) {
+            System.out.print("[ ");
+            NanBox.print(this.stack[slot], this.refs[slot]);
+            System.out.print(" ]");
+        }
+        System.out.println();
+        Debug.disassembleInstruction(frame.getClosure().getFunction().getChunk(), frame.getIp());
+    }
+
+    // 全局变量按槽位读写, 槽位仍是未定义哨兵时返回 false, 由调用方报错
+    private boolean getGlobal(int slot) {
+        long value = this.globals.values[slot];
+        if (value == NanBox.UNDEFINED_VAL) return false;
+        push(value, this.globals.refs[slot]);
+        return true;
+    }
+
+    private void defineGlobal(int slot) {
+        int top = --this.stackTop;
+        this.globals.values[slot] = this.stack[top];
+        this.globals.refs[slot] = this.refs[top];
+    }
+
+    private boolean setGlobal(int slot) {
+        if (this.globals.values[slot] == NanBox.UNDEFINED_VAL) return false;
+        this.globals.values[slot] = this.stack[this.stackTop - 1];
+        this.globals.refs[slot] = this.refs[this.stackTop - 1];
+        return true;
+    }
+
+    private InterpretResult globalError(int slot) {
+        runtimeError("Undefined variable '%s'.", this.globals.getName(slot));
+        return InterpretResult.RUNTIME_ERROR;
+    }
+
+    private void getUpvalue(CallFrame frame, int slot) {
+        ObjClosure closure = frame.getClosure();
+        Obj ref = closure.getUpvalueRef(slot);
+        if (!(ref instanceof ObjUpvalue)) {
+            push(closure.getUpvalue(slot), ref);
+            return;
+        }
+
+        ObjUpvalue cell = (ObjUpvalue) ref;
+        if (cell.isOpen()) {
+            push(this.stack[cell.getLocation()], this.refs[cell.getLocation()]);
+        } else {
+            push(cell.getClosed(), cell.getClosedRef());
+        }
+    }
+
+    // 被赋值的变量总是通过单元捕获
+    private void setUpvalue(CallFrame frame, int slot) {
+        ObjUpvalue cell = (ObjUpvalue) frame.getClosure().getUpvalueRef(slot);
+        if (cell.isOpen()) {
+            this.stack[cell.getLocation()] = peek(0);
+            this.refs[cell.getLocation()] = this.refs[this.stackTop - 1];
+        } else {
+            cell.setClosed(peek(0), this.refs[this.stackTop - 1]);
+        }
+    }
+
+    /*
+     * 读取栈顶实例的属性, 替换栈顶
+     * alias 时 (GET_ALIAS_METHOD) 读到方法则保留接收者并压入方法闭包, 读到字段则再压入 nil, 不创建绑定方法
+     */
+    private boolean getProperty(InlineCache cache, ObjString name, boolean alias) {
+        if (!peekIs(0, ObjType.INSTANCE)) {
+            runtimeError("Only instances have properties.");
+            return false;
+        }
+
+        ObjInstance instance = (ObjInstance) peekObj(0);
+        Shape shape = instance.getShape();
+        InlineCache.Entry entry = cache.lookup(shape);
+        if (entry != null) {
+            if (entry.method != null) {
+                pushMethod(entry.method, alias);
+            } else {
+                pushField(instance, entry.slot, alias);
+            }
+            return true;
+        }
+
+        int slot = shape.lookup(name);
+        if (slot != -1) {
+            cache.update(InlineCache.field(shape, slot));
+            pushField(instance, slot, alias);
+            return true;
+        }
+
+        ObjClass klass = instance.getKlass();
+        ObjClosure method = klass.getMethod(name);
+        if (method == null) {
+            runtimeError("Undefined property '%s'.", name);
+            return false;
+        }
+        cache.update(InlineCache.method(shape, klass, method));
+        pushMethod(method, alias);
+        return true;
+    }
+
+    private void pushMethod(ObjClosure method, boolean alias) {
+        if (alias) {
+            pushObj(method);
+        } else {
+            bindMethod(method);
+        }
+    }
+
+    private void pushField(ObjInstance instance, int slot, boolean alias) {
+        this.stack[this.stackTop - 1] = instance.getFieldAt(slot);
+        this.refs[this.stackTop - 1] = instance.getFieldRefAt(slot);
+        if (alias) {
+            push(NanBox.NIL_VAL);
         }
     }
 
-    private ObjUpvalue captureUpvalue(int local) {
-        ObjUpvalue prevUpvalue = null;
-        ObjUpvalue upvalue = this.openUpvalues;
-        while (upvalue != null && upvalue.getLocation() > local) {
-            prevUpvalue = upvalue;
-            upvalue = upvalue.getNext();
+    private boolean setProperty(InlineCache cache, ObjString name) {
+        if (!peekIs(1, ObjType.INSTANCE)) {
+            runtimeError("Only instances have fields.");
+            return false;
         }
 
-        if (upvalue != null && upvalue.getClosed() == this.stack[local]) {
-            return upvalue;
+        ObjInstance instance = (ObjInstance) peekObj(1);
+        Shape shape = instance.getShape();
+        long value = peek(0);
+        // 栈上非对象值的 refs 可能是残留的引用, 不能带进实例里
+        Obj ref = NanBox.isObj(value) ? this.refs[this.stackTop - 1] : null;
+        InlineCache.Entry entry = cache.lookup(shape);
+        if (entry == null) {
+            int slot = shape.lookup(name);
+            entry = slot != -1 ? InlineCache.field(shape, slot) : InlineCache.transition(shape, shape.transition(name));
+            cache.update(entry);
+        }
+        if (entry.next == null) {
+            instance.setFieldAt(entry.slot, value, ref);
+        } else {
+            instance.addField(entry.next, value, ref);
+        }
+
+        // 弹出值和实例, 再把值压回去
+        int top = --this.stackTop;
+        this.stack[top - 1] = this.stack[top];
+        this.refs[top - 1] = this.refs[top];
+        return true;
+    }
+
+    // ADD_RK 的慢路径, 两个操作数都是字符串时拼接到寄存器 a
+    private boolean addRegisters(int a, long x, Obj xObj, long y, Obj yObj) {
+        if (NanBox.isObjType(x, xObj, ObjType.STRING) && NanBox.isObjType(y, yObj, ObjType.STRING)) {
+            ObjString result = ObjString.concat(this.strings, (ObjString) xObj, (ObjString) yObj);
+            this.stack[a] = NanBox.OBJ_VAL;
+            this.refs[a] = result;
+            return true;
+        }
+        runtimeError("Operands must be two numbers or two strings.");
+        return false;
+    }
+
+    private boolean addObjects() {
+        if (peekIs(0, ObjType.STRING) && peekIs(1, ObjType.STRING)) {
+            concatenate();
+            return true;
+        }
+        runtimeError("Operands must be two numbers or two strings.");
+        return false;
+    }
+
+    // 创建闭包并读取其后的升值操作数, 返回新的 ip
+    private int closure(CallFrame frame, ObjFunction function, byte[] code, int ip) {
+        ObjClosure closure = new ObjClosure(function);
+        pushObj(closure);
+        for (int i = 0; i < closure.getUpvalueCount(); i++) {
+            byte capture = code[ip++];
+            int index = code[ip++] & 0xff;
+            if (capture == ObjClosure.CAPTURE_VALUE) {
+                int slot = frame.getSlots() + index;
+                closure.setUpvalue(i, this.stack[slot], this.refs[slot]);
+            } else if (capture == ObjClosure.CAPTURE_CELL) {
+                closure.setUpvalue(i, 0, captureCell(frame.getSlots() + index));
+            } else {
+                ObjClosure enclosing = frame.getClosure();
+                closure.setUpvalue(i, enclosing.getUpvalue(index), enclosing.getUpvalueRef(index));
+            }
+        }
+        return ip;
+    }
+
+    private boolean inherit() {
+        if (!peekIs(1, ObjType.CLASS)) {
+            runtimeError("Superclass must be a class.");
+            return false;
+        }
+
+        ObjClass superclass = (ObjClass) peekObj(1);
+        ObjClass subclass = (ObjClass) peekObj(0);
+        subclass.inheritMethods(superclass);
+        pop(); // Subclass.
+        return true;
+    }
+
+    private void defineMethod(ObjString name) {
+        ObjClosure method = (ObjClosure) peekObj(0);
+        ObjClass klass = (ObjClass) peekObj(1);
+        klass.putMethod(name, method);
+        if (name == initString) {
+            klass.setInitializer(method);
         }
+        pop();
+    }
 
-        ObjUpvalue createdUpvalue = new ObjUpvalue(local);
+    /*
+     * 关闭 last 及以上槽位的单元
+     * 只在返回和尾调用时以栈帧基址调用: 当前栈帧打开的单元都比调用者的晚, 都在链表头部
+     */
+    private void closeUpvalues(int last) {
+        while (this.openUpvalues != null && this.openUpvalues.getLocation() >= last) {
+            closeCell(this.openUpvalues);
+        }
+    }
 
-        createdUpvalue.setNext(upvalue);
+    private void closeCell(ObjUpvalue cell) {
+        int location = cell.getLocation();
+        this.openCells[location] = null;
+        cell.close(this.stack[location], this.refs[location]);
 
-        if (prevUpvalue == null) {
-            this.openUpvalues = createdUpvalue;
+        ObjUpvalue prev = cell.getPrev();
+        ObjUpvalue next = cell.getNext();
+        if (prev == null) {
+            this.openUpvalues = next;
         } else {
-            prevUpvalue.setNext(createdUpvalue);
+            prev.setNext(next);
+        }
+        if (next != null) {
+            next.setPrev(prev);
+        }
+        cell.setPrev(null);
+        cell.setNext(null);
+    }
+
+    private ObjUpvalue captureCell(int local) {
+        ObjUpvalue cell = this.openCells[local];
+        if (cell != null) {
+            return cell;
         }
 
-        return createdUpvalue;
+        cell = new ObjUpvalue(local);
+        cell.setNext(this.openUpvalues);
+        if (this.openUpvalues != null) {
+            this.openUpvalues.setPrev(cell);
+        }
+        this.openUpvalues = cell;
+        this.openCells[local] = cell;
+        return cell;
     }
 
 
     private boolean invokeFromClass(ObjClass klass, ObjString name, int argCount) {
-        Value method = klass.getMethods().get(name);
+        ObjClosure method = klass.getMethod(name);
         if (method == null) {
             runtimeError("Undefined property '%s'.", name);
             return false;
         }
-        return call(method.asClosure(), argCount);
+        return call(method, argCount);
     }
 
-    private boolean invoke(ObjString name, int argCount) {
-        Value receiver = peek(argCount);
+    /*
+     * 内联调用点的守卫: 被调用者仍是编译时内联的 function 时返回 true
+     * GUARD_INVOKE 和 INVOKE 一样先看字段再找方法, 按接收者的 Shape 缓存解析出的方法
+     */
+    private boolean guard(Chunk chunk, int offset, int argCount, ObjFunction function) {
+        if (chunk.getCodes()[offset] == OpCode.GUARD_CALL) {
+            return peekIs(argCount, ObjType.CLOSURE) && ((ObjClosure) peekObj(argCount)).getFunction() == function;
+        }
+        if (!peekIs(argCount, ObjType.INSTANCE)) return false;
+        ObjInstance instance = (ObjInstance) peekObj(argCount);
+        Shape shape = instance.getShape();
+        InlineCache cache = chunk.getInlineCache(offset);
+        InlineCache.Entry entry = cache.lookup(shape);
+        if (entry == null) {
+            if (instance.getField(function.getName()) != null) return false;
+            ObjClass klass = instance.getKlass();
+            ObjClosure method = klass.getMethod(function.getName());
+            if (method == null) return false;
+            entry = InlineCache.method(shape, klass, method);
+            cache.update(entry);
+        }
+        return entry.method.getFunction() == function;
+    }
 
-        if (!receiver.isInstance()) {
+    private boolean invoke(InlineCache cache, ObjString name, int argCount) {
+        if (!peekIs(argCount, ObjType.INSTANCE)) {
             runtimeError("Only instances have methods.");
             return false;
         }
 
-        ObjInstance instance = receiver.asInstance();
+        ObjInstance instance = (ObjInstance) peekObj(argCount);
+        Shape shape = instance.getShape();
+        InlineCache.Entry entry = cache.lookup(shape);
+        if (entry != null) {
+            return call(entry.method, argCount);
+        }
 
-        Value value = instance.getFields().get(name);
+        // 字段里存放的可调用对象不缓存, 每次都走慢路径
+        Value value = instance.getField(name);
 
         if (value != null) {
-            this.stack[stackTop - argCount - 1] = value;
-            return callValue(value, argCount);
+            setSlot(stackTop - argCount - 1, value);
+            return callValue(value.getBits(), value.getObj(), argCount);
         }
 
-        return invokeFromClass(instance.getKlass(), name, argCount);
+        ObjClass klass = instance.getKlass();
+        ObjClosure method = klass.getMethod(name);
+        if (method == null) {
+            runtimeError("Undefined property '%s'.", name);
+            return false;
+        }
+        cache.update(InlineCache.method(shape, klass, method));
+        return call(method, argCount);
     }
 
-    private boolean callValue(Value callee, int argCount) {
-        if (callee.isObj()) {
-            switch (callee.getObj().getType()) {
+    /*
+     * 尾调用: 被调用的是闭包或绑定方法时, 先关闭当前栈帧上的升值,
+     * 再把被调用者和参数移到当前栈帧的基址, 直接复用这个栈帧
+     * 其他情况 (本地函数、类、参数个数不符等) 按普通调用处理, 之后由紧跟的 RETURN 返回
+     */
+    private boolean tailCall(CallFrame frame, int argCount) {
+        int calleeSlot = this.stackTop - argCount - 1;
+        long callee = this.stack[calleeSlot];
+        Obj obj = this.refs[calleeSlot];
+
+        ObjClosure closure = null;
+        Value receiver = null;
+        if (NanBox.isObj(callee)) {
+            if (obj.getType() == ObjType.CLOSURE) {
+                closure = (ObjClosure) obj;
+            } else if (obj.getType() == ObjType.BOUND_METHOD) {
+                closure = ((ObjBoundMethod) obj).getMethod();
+                receiver = ((ObjBoundMethod) obj).getReceiver();
+            }
+        }
+        if (closure == null || closure.getFunction().getArity() != argCount) {
+            return callValue(callee, obj, argCount);
+        }
+        if (receiver != null) {
+            setSlot(calleeSlot, receiver);
+        }
+
+        int base = frame.getSlots();
+        closeUpvalues(base);
+        System.arraycopy(this.stack, calleeSlot, this.stack, base, argCount + 1);
+        System.arraycopy(this.refs, calleeSlot, this.refs, base, argCount + 1);
+        this.stackTop = base + argCount + 1;
+        ensureStack(base + closure.getFunction().getMaxSlots());
+
+        frame.setClosure(closure);
+        frame.setIp(0);
+        enter(frame);
+        return true;
+    }
+
+    /*
+     * 栈上是 [别名变量, 隐藏槽位, 参数...], 先去掉隐藏槽位
+     * 隐藏槽位是方法闭包时别名变量就是接收者, 直接调用方法; 是 nil 时调用别名变量的值
+     */
+    private boolean callAlias(int argCount) {
+        int slot = this.stackTop - argCount - 1;
+        long method = this.stack[slot];
+        Obj methodObj = this.refs[slot];
+        System.arraycopy(this.stack, slot + 1, this.stack, slot, argCount);
+        System.arraycopy(this.refs, slot + 1, this.refs, slot, argCount);
+        this.stackTop--;
+        if (NanBox.isNil(method)) {
+            return callValue(peek(argCount), peekObj(argCount), argCount);
+        }
+        return call((ObjClosure) methodObj, argCount);
+    }
+
+    private boolean callValue(long callee, Obj obj, int argCount) {
+        if (NanBox.isObj(callee)) {
+            switch (obj.getType()) {
                 case BOUND_METHOD: {
-                    ObjBoundMethod bound = callee.asBoundMethod();
-                    this.stack[stackTop - argCount - 1] = bound.getReceiver();
+                    ObjBoundMethod bound = (ObjBoundMethod) obj;
+                    setSlot(stackTop - argCount - 1, bound.getReceiver());
                     return call(bound.getMethod(), argCount);
                 }
                 case CLASS: {
-                    ObjClass klass = callee.asClass();
-                    this.stack[stackTop - argCount - 1] = new ObjInstance(klass).toValue();
-                    Value initializer = klass.getMethods().get(new ObjString(initString));
+                    ObjClass klass = (ObjClass) obj;
+                    this.stack[stackTop - argCount - 1] = NanBox.OBJ_VAL;
+                    this.refs[stackTop - argCount - 1] = new ObjInstance(klass);
+                    ObjClosure initializer = klass.getInitializer();
                     if (initializer != null) {
-                        return call(initializer.asClosure(), argCount);
+                        return call(initializer, argCount);
                     } else if (argCount != 0) {
                         runtimeError("Expected 0 arguments but got %d.", argCount);
                         return false;
@@ -568,9 +1455,9 @@ public class Vm {
                     return true;
                 }
                 case CLOSURE:
-                    return call(callee.asClosure(), argCount);
+                    return call((ObjClosure) obj, argCount);
                 case NATIVE: {
-                    NativeFn nativefn = callee.asNative().getFunction();
+                    NativeFn nativefn = ((ObjNative) obj).getFunction();
                     Value result = nativefn.call(argCount, this.stackTop - argCount);
                     this.stackTop -= argCount + 1;
                     push(result);
@@ -584,47 +1471,53 @@ public class Vm {
         return false;
     }
 
-    private boolean isFalsey(Value value) {
-        return value.isNil() || (value.isBool() && !value.asBool());
-    }
-
     private void concatenate() {
-        ObjString b = peek(0).asString();
-        ObjString a = peek(1).asString();
+        ObjString b = (ObjString) peekObj(0);
+        ObjString a = (ObjString) peekObj(1);
 
-        ObjString result = new ObjString(a.getString() + b.getString());
+        ObjString result = ObjString.concat(this.strings, a, b);
 
         pop();
         pop();
 
-        push(result.toValue());
+        pushObj(result);
     }
 
     private boolean bindMethod(ObjClass klass, ObjString name) {
-        Value method = klass.getMethods().get(name);
+        ObjClosure method = klass.getMethod(name);
         if (method == null) {
             runtimeError("Undefined property '%s'.", name);
             return false;
         }
 
-        ObjBoundMethod bound = new ObjBoundMethod(peek(0), method.asClosure());
-        pop();
-        push(bound.toValue());
+        bindMethod(method);
         return true;
     }
 
+    // 用栈顶的接收者和方法创建绑定方法, 替换栈顶
+    private void bindMethod(ObjClosure method) {
+        ObjBoundMethod bound = new ObjBoundMethod(peekValue(0), method);
+        pop();
+        pushObj(bound);
+    }
+
     public InterpretResult interpret(String source) {
         Compiler compiler = new Compiler(new Scanner(source), FunctionType.SCRIPT);
 
         ObjFunction function = compiler.compile();
         if (function == null) return InterpretResult.COMPILE_ERROR;
 
-        push(function.toValue());
+        pushObj(function);
         ObjClosure closure = new ObjClosure(function);
         pop();
+        pushObj(closure);
         call(closure, 0);
 
-        return run();
+        InterpretResult result = run();
+        if (Lox.DEBUG_PRINT_INLINE_CACHES) {
+            Debug.printInlineCaches(function);
+        }
+        return result;
     }
 
 